@@ -0,0 +1,80 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures formatting the addresses of an email, done for every recipient of every email sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GmailAddressBenchmark {
+
+	@Param({"1", "10", "100"})
+	private int recipientCount;
+
+	private List<Map.Entry<String, String>> named;
+	private List<Map.Entry<String, String>> unnamed;
+
+	@Setup
+	public void setup() {
+		named = new ArrayList<>();
+		unnamed = new ArrayList<>();
+		for (int i = 0; i < recipientCount; i++) {
+			String address = String.format("recipient%s@example.com", i);
+			named.add(new AbstractMap.SimpleImmutableEntry<>(address, "Recipient " + i));
+			unnamed.add(new AbstractMap.SimpleImmutableEntry<>(address, null));
+		}
+	}
+
+	@Benchmark
+	public void formatNamedAddresses(Blackhole blackhole) {
+		for (Map.Entry<String, String> address : named) {
+			blackhole.consume(GmailMailer.Transformers.FormatInternetAddress.from(address));
+		}
+	}
+
+	@Benchmark
+	public void formatUnnamedAddresses(Blackhole blackhole) {
+		for (Map.Entry<String, String> address : unnamed) {
+			blackhole.consume(GmailMailer.Transformers.FormatInternetAddress.from(address));
+		}
+	}
+}
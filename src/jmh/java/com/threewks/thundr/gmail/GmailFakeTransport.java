@@ -0,0 +1,168 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for Gmail and the Google OAuth token endpoint, answering requests in process so the full send path can be driven without
+ * a network. Pass it as the {@link com.google.api.client.http.HttpTransport} the authorization code flow is built with,
+ * as the {@link GmailModule} does with the injected transport.
+ * <p>
+ * Request bodies are read in full, as Gmail would read them, before the response is delayed by the configured latency. A share of
+ * sends can be failed with a server error or a rate limit. Token requests always succeed. Batch requests and resumable uploads are not
+ * supported.
+ */
+public class GmailFakeTransport extends MockHttpTransport {
+
+	private final long latencyMillis;
+	private final long latencyJitterMillis;
+	private final double errorRate;
+	private final double rateLimitRate;
+	private final int retryAfterSeconds;
+	private final long tokenLifetimeSeconds;
+
+	private final AtomicLong sends = new AtomicLong();
+	private final AtomicLong tokenRefreshes = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong injectedRateLimits = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/**
+	 * @param latencyMillis how long each request takes to answer
+	 * @param latencyJitterMillis up to how much longer each request randomly takes
+	 * @param errorRate the share of sends, between 0 and 1, failed with a 500 backend error
+	 * @param rateLimitRate the share of sends, between 0 and 1, failed with a 429 rate limit
+	 * @param retryAfterSeconds the Retry-After of rate limits, or 0 to leave it out
+	 * @param tokenLifetimeSeconds how long refreshed access tokens last
+	 */
+	public GmailFakeTransport(long latencyMillis, long latencyJitterMillis, double errorRate, double rateLimitRate, int retryAfterSeconds, long tokenLifetimeSeconds) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = latencyJitterMillis;
+		this.errorRate = errorRate;
+		this.rateLimitRate = rateLimitRate;
+		this.retryAfterSeconds = retryAfterSeconds;
+		this.tokenLifetimeSeconds = tokenLifetimeSeconds;
+	}
+
+	@Override
+	public LowLevelHttpRequest buildRequest(String method, String url) {
+		return new MockLowLevelHttpRequest(url) {
+			@Override
+			public LowLevelHttpResponse execute() throws IOException {
+				if (getStreamingContent() != null) {
+					CountingOutputStream body = new CountingOutputStream();
+					getStreamingContent().writeTo(body);
+					bytesReceived.addAndGet(body.count);
+				}
+				delay();
+				return respond(getUrl());
+			}
+		};
+	}
+
+	public long getSends() {
+		return sends.get();
+	}
+
+	public long getTokenRefreshes() {
+		return tokenRefreshes.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public long getInjectedRateLimits() {
+		return injectedRateLimits.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	private LowLevelHttpResponse respond(String url) {
+		if (url.contains("/token")) {
+			tokenRefreshes.incrementAndGet();
+			return json(200, String.format("{\"access_token\":\"token-%s\",\"token_type\":\"Bearer\",\"expires_in\":%s}", tokenRefreshes.get(), tokenLifetimeSeconds));
+		}
+		if (url.contains("uploadType=resumable") || url.contains("/batch")) {
+			return json(501, error(501, "notImplemented", "The fake Gmail transport doesn't support batch requests or resumable uploads"));
+		}
+		double roll = ThreadLocalRandom.current().nextDouble();
+		if (roll < rateLimitRate) {
+			injectedRateLimits.incrementAndGet();
+			MockLowLevelHttpResponse response = json(429, error(429, "rateLimitExceeded", "Rate Limit Exceeded"));
+			if (retryAfterSeconds > 0) {
+				response.addHeader("Retry-After", String.valueOf(retryAfterSeconds));
+			}
+			return response;
+		}
+		if (roll < rateLimitRate + errorRate) {
+			injectedErrors.incrementAndGet();
+			return json(500, error(500, "backendError", "Backend Error"));
+		}
+		long id = sends.incrementAndGet();
+		return json(200, String.format("{\"id\":\"%x\",\"threadId\":\"%x\",\"labelIds\":[\"SENT\"]}", id, id));
+	}
+
+	private void delay() throws InterruptedIOException {
+		long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the fake Gmail response");
+			}
+		}
+	}
+
+	private static MockLowLevelHttpResponse json(int status, String content) {
+		return new MockLowLevelHttpResponse().setStatusCode(status).setContentType(Json.MEDIA_TYPE).setContent(content);
+	}
+
+	private static String error(int code, String reason, String message) {
+		return String.format("{\"error\":{\"code\":%s,\"message\":\"%s\",\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"%s\",\"message\":\"%s\"}]}}", code, message, reason, message);
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
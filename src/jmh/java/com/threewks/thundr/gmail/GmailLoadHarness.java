@@ -0,0 +1,277 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import com.google.api.services.gmail.GmailScopes;
+import com.threewks.thundr.request.ThreadLocalRequestContainer;
+import com.threewks.thundr.view.ViewResolverRegistry;
+import com.threewks.thundr.view.file.Disposition;
+import com.threewks.thundr.view.string.StringView;
+import com.threewks.thundr.view.string.StringViewResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Drives the {@link GmailMailer} as hard as the given concurrency allows against a {@link GmailFakeTransport}, then reports the send
+ * throughput and latency percentiles.
+ * <p>
+ * Everything but the network is real: credentials are stored in and loaded from a data store, access tokens are refreshed through the
+ * OAuth token endpoint, and emails are rendered, built, encoded and posted as they would be to Gmail. Run it with
+ *
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec -Dbenchmark.main=com.threewks.thundr.gmail.GmailLoadHarness -Dbenchmark.args="--concurrency 32 --latency 50"
+ * </pre>
+ *
+ * Options, each given as {@code --name value}:
+ * <ul>
+ * <li>{@code concurrency} - the number of threads sending at once, 16 by default</li>
+ * <li>{@code messages} - the number of emails measured, 10000 by default</li>
+ * <li>{@code warmup} - the number of emails sent before measuring, 1000 by default</li>
+ * <li>{@code mode} - {@code sync} to send with {@link GmailMailer#send(GmailMessage)}, or {@code async} to send with
+ * {@link GmailMailer#sendAsync(GmailMessage)} on {@code concurrency} send threads, sync by default</li>
+ * <li>{@code credentials} - the number of credentials emails are spread over, 1 by default</li>
+ * <li>{@code latency} and {@code jitter} - the time in milliseconds the fake Gmail takes to answer, 20 and 10 by default</li>
+ * <li>{@code error-rate} and {@code rate-limit-rate} - the share of sends failed with a 500 or a 429, 0 by default</li>
+ * <li>{@code retry-after} - the Retry-After in seconds sent with a 429, 0 (none) by default</li>
+ * <li>{@code retry-attempts} and {@code retry-delay} - the retry policy's attempts and initial delay in milliseconds, 4 and 100 by default</li>
+ * <li>{@code token-lifetime} - how long access tokens last in seconds, 3600 by default. Less than 300 refreshes tokens on every load.</li>
+ * <li>{@code body-size}, {@code attachments} and {@code attachment-size} - the size of each email, 4096 bytes of body and no
+ * attachments by default</li>
+ * </ul>
+ */
+public class GmailLoadHarness {
+
+	private static final List<String> OPTIONS = Arrays.asList("concurrency", "messages", "warmup", "mode", "credentials", "latency", "jitter", "error-rate", "rate-limit-rate",
+			"retry-after", "retry-attempts", "retry-delay", "token-lifetime", "body-size", "attachments", "attachment-size");
+
+	private final Map<String, String> options;
+	private final int concurrency;
+	private final boolean async;
+	private final List<String> credentialIds = new ArrayList<>();
+	private final GmailFakeTransport transport;
+	private final GmailHistogramMetrics metrics = new GmailHistogramMetrics();
+	private final GmailSendExecutor sendExecutor;
+	private final GmailTokenManager tokenManager;
+	private final GmailMailer mailer;
+	private final StringView body;
+	private final List<com.threewks.thundr.mail.Attachment> attachments = new ArrayList<>();
+
+	public GmailLoadHarness(Map<String, String> options) throws Exception {
+		this.options = options;
+		this.concurrency = intOption("concurrency", 16);
+		String mode = options.getOrDefault("mode", "sync");
+		if (!"sync".equals(mode) && !"async".equals(mode)) {
+			throw new IllegalArgumentException(String.format("Option `mode` must be one of sync or async but was `%s`", mode));
+		}
+		this.async = "async".equals(mode);
+		long tokenLifetime = intOption("token-lifetime", 3600);
+		this.transport = new GmailFakeTransport(intOption("latency", 20), intOption("jitter", 10), doubleOption("error-rate", 0), doubleOption("rate-limit-rate", 0),
+				intOption("retry-after", 0), tokenLifetime);
+
+		// built as the GmailModule builds it, with the fake transport standing in for the injected one
+		GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(transport, JacksonFactory.getDefaultInstance(), "load-test-client-id", "load-test-client-secret",
+				Collections.singleton(GmailScopes.GMAIL_COMPOSE)).setDataStoreFactory(new MemoryDataStoreFactory()).build();
+		for (int i = 0; i < intOption("credentials", 1); i++) {
+			String credentialId = "load-test-" + i;
+			flow.createAndStoreCredential(new TokenResponse().setAccessToken("initial-token").setRefreshToken("refresh-token-" + i).setExpiresInSeconds(tokenLifetime), credentialId);
+			credentialIds.add(credentialId);
+		}
+		tokenManager = new GmailTokenManager(flow, GmailTokenManager.DEFAULT_REFRESH_AHEAD_SECONDS, GmailTokenManager.newScheduler());
+		GmailClientCache clientCache = new GmailClientCache(flow, tokenManager, GmailClientCache.DEFAULT_MAX_SIZE, GmailClientCache.DEFAULT_TTL_SECONDS);
+		sendExecutor = GmailSendExecutor.threadPool(concurrency, concurrency);
+		GmailSettings settings = new GmailSettings()
+				.setMetrics(metrics)
+				.setResumableUploadThreshold(Integer.MAX_VALUE)
+				.setRetryPolicy(new GmailRetryPolicy().setMaxAttempts(intOption("retry-attempts", 4)).setInitialDelayMillis(intOption("retry-delay", 100)));
+
+		ViewResolverRegistry viewResolverRegistry = new ViewResolverRegistry();
+		viewResolverRegistry.addResolver(StringView.class, new StringViewResolver());
+		mailer = new GmailMailer(viewResolverRegistry, flow, new ThreadLocalRequestContainer(), clientCache, sendExecutor, settings);
+
+		Random random = new Random(0);
+		char[] text = new char[intOption("body-size", 4096)];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (char) ('a' + random.nextInt(26));
+		}
+		body = new StringView("<p>" + new String(text) + "</p>").withContentType("text/html");
+		for (int i = 0; i < intOption("attachments", 0); i++) {
+			byte[] data = new byte[intOption("attachment-size", 64 * 1024)];
+			random.nextBytes(data);
+			attachments.add(new com.threewks.thundr.mail.Attachment(String.format("attachment%s.pdf", i), new GmailRenderedView(data, Attachment.DEFAULT_CONTENT_TYPE, "UTF-8"),
+					Disposition.Attachment));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		// retries and credential loads are logged for every email, which would swamp the report
+		java.util.logging.Logger.getLogger("").setLevel(Level.SEVERE);
+		GmailLoadHarness harness = new GmailLoadHarness(parse(args));
+		try {
+			harness.run();
+		} finally {
+			harness.shutdown();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void run() throws InterruptedException {
+		int warmup = intOption("warmup", 1000);
+		if (warmup > 0) {
+			System.out.printf("Warming up with %s emails%n", warmup);
+			send(warmup);
+			metrics.reset();
+		}
+		int messages = intOption("messages", 10000);
+		System.out.printf("Sending %s emails %s from %s threads through %s credentials%n", messages, async ? "asynchronously" : "synchronously", concurrency, credentialIds.size());
+		long refreshesBefore = transport.getTokenRefreshes();
+		Result result = send(messages);
+
+		long[] latencies = Arrays.copyOf(result.latencies, result.completed);
+		Arrays.sort(latencies);
+		double seconds = result.elapsedNanos / 1e9;
+		System.out.println();
+		System.out.printf("Sent:           %s, failed: %s in %.2fs%n", result.completed - result.failures.get(), result.failures.get(), seconds);
+		System.out.printf("Throughput:     %.1f emails/s%n", result.completed / seconds);
+		System.out.printf("Latency (ms):   p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n", percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+				percentile(latencies, 1));
+		System.out.printf("Fake Gmail:     %s sends, %s injected errors, %s injected rate limits, %s token refreshes, %.1f MB received%n", transport.getSends(),
+				transport.getInjectedErrors(), transport.getInjectedRateLimits(), transport.getTokenRefreshes() - refreshesBefore, transport.getBytesReceived() / 1e6);
+		System.out.println();
+		System.out.println("Stages (ms, to within a factor of two):");
+		for (Map.Entry<String, Object> stage : metrics.getSnapshot().entrySet()) {
+			for (Map.Entry<String, Map<String, Map<String, Object>>> credential : ((Map<String, Map<String, Map<String, Object>>>) stage.getValue()).entrySet()) {
+				for (Map.Entry<String, Map<String, Object>> outcome : credential.getValue().entrySet()) {
+					Map<String, Object> summary = outcome.getValue();
+					System.out.printf("  %-18s %-14s %-8s count %s, mean %s, p50 %s, p99 %s, max %s%n", stage.getKey(), credential.getKey(), outcome.getKey(), summary.get("count"),
+							summary.get("meanMillis"), summary.get("p50Millis"), summary.get("p99Millis"), summary.get("maxMillis"));
+				}
+			}
+		}
+	}
+
+	public void shutdown() {
+		sendExecutor.shutdown(5, TimeUnit.SECONDS);
+		tokenManager.shutdown();
+	}
+
+	private Result send(int messages) throws InterruptedException {
+		Result result = new Result(messages);
+		AtomicInteger next = new AtomicInteger();
+		ExecutorService senders = Executors.newFixedThreadPool(concurrency, GmailSendExecutor.daemonThreads("gmail-load"));
+		long started = System.nanoTime();
+		for (int thread = 0; thread < concurrency; thread++) {
+			senders.execute(() -> {
+				for (int i = next.getAndIncrement(); i < messages; i = next.getAndIncrement()) {
+					GmailMessage message = message(i);
+					long sendStarted = System.nanoTime();
+					try {
+						if (async) {
+							mailer.sendAsync(message).join();
+						} else {
+							mailer.send(message);
+						}
+					} catch (RuntimeException e) {
+						if (result.failures.incrementAndGet() == 1) {
+							System.out.printf("First failure: %s%n", e.getMessage());
+						}
+					}
+					result.record(i, System.nanoTime() - sendStarted);
+				}
+			});
+		}
+		senders.shutdown();
+		senders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		result.elapsedNanos = System.nanoTime() - started;
+		return result;
+	}
+
+	private GmailMessage message(int i) {
+		GmailMessage message = new GmailMessage()
+				.from("sender@example.com", "Load Test")
+				.to(String.format("recipient%s@example.com", i), "Recipient " + i)
+				.subject("Load test email " + i)
+				.body(body)
+				.credentialId(credentialIds.get(i % credentialIds.size()));
+		for (com.threewks.thundr.mail.Attachment attachment : attachments) {
+			message.attach(attachment);
+		}
+		return message;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private double doubleOption(String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(percentile * sorted.length) - 1));
+		return sorted[index] / 1e6;
+	}
+
+	static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i += 2) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+			if (!OPTIONS.contains(name) || i + 1 >= args.length) {
+				throw new IllegalArgumentException(String.format("Expected one of --%s followed by a value but was `%s`", String.join(", --", OPTIONS), args[i]));
+			}
+			options.put(name, args[i + 1]);
+		}
+		return options;
+	}
+
+	private static class Result {
+		private final long[] latencies;
+		private final AtomicLong failures = new AtomicLong();
+		private volatile int completed;
+		private long elapsedNanos;
+
+		private Result(int messages) {
+			this.latencies = new long[messages];
+		}
+
+		private synchronized void record(int index, long nanos) {
+			latencies[index] = nanos;
+			completed++;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.services.gmail.model.Message;
+import com.threewks.thundr.view.ViewResolverRegistry;
+import com.threewks.thundr.view.file.Disposition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building and encoding emails, the work done on the sending thread before each email is sent to Gmail.
+ * <p>
+ * Run with the gc profiler (the default of the benchmarks profile) to see the allocation rate alongside the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GmailMimeBenchmark {
+
+	@Param({"1024", "65536"})
+	private int bodySize;
+
+	@Param({"0", "1", "5"})
+	private int attachmentCount;
+
+	@Param({"10240", "1048576"})
+	private int attachmentSize;
+
+	@Param({"1", "10", "100"})
+	private int recipientCount;
+
+	/**
+	 * Whether attachments are encoded once through a {@link GmailPartCache}, rather than for every email.
+	 */
+	@Param({"false", "true"})
+	private boolean partCache;
+
+	private GmailMailer mailer;
+	private GmailSendExecutor sendExecutor;
+	private String body;
+	private InternetAddress from;
+	private Set<InternetAddress> to;
+	private Map<String, String> toAddresses;
+	private List<com.threewks.thundr.mail.Attachment> attachments;
+	private List<Attachment> draftAttachments;
+	private MimeMessage email;
+
+	@Setup
+	public void setup() throws Exception {
+		sendExecutor = GmailSendExecutor.threadPool(1, 1);
+		mailer = new GmailMailer(new ViewResolverRegistry(), null, null, new GmailClientCache(null), sendExecutor,
+				new GmailSettings().setPartCache(partCache ? new GmailPartCache() : null));
+		Random random = new Random(bodySize + attachmentCount + attachmentSize + recipientCount);
+
+		char[] text = new char[bodySize];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (char) ('a' + random.nextInt(26));
+		}
+		body = "<p>" + new String(text) + "</p>";
+
+		from = new InternetAddress("sender@example.com", "Sender");
+		to = new LinkedHashSet<>();
+		toAddresses = new LinkedHashMap<>();
+		for (int i = 0; i < recipientCount; i++) {
+			String address = String.format("recipient%s@example.com", i);
+			to.add(new InternetAddress(address, "Recipient " + i));
+			toAddresses.put(address, "Recipient " + i);
+		}
+
+		attachments = new ArrayList<>();
+		draftAttachments = new ArrayList<>();
+		for (int i = 0; i < attachmentCount; i++) {
+			byte[] data = new byte[attachmentSize];
+			random.nextBytes(data);
+			String name = String.format("attachment%s.pdf", i);
+			// already rendered, so the benchmark measures building the email rather than rendering views
+			attachments.add(new com.threewks.thundr.mail.Attachment(name, new GmailRenderedView(data, Attachment.DEFAULT_CONTENT_TYPE, "UTF-8"), Disposition.Attachment));
+			draftAttachments.add(new Attachment(name, data));
+		}
+
+		email = createEmailWithAttachment();
+	}
+
+	@TearDown
+	public void tearDown() {
+		sendExecutor.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public MimeMessage createEmailWithAttachment() {
+		return mailer.createEmailWithAttachment(to, from, null, null, null, "Benchmark", body, attachments);
+	}
+
+	@Benchmark
+	public MimeMessage createMime() throws MessagingException {
+		return mailer.createMime(body, "Benchmark", toAddresses, draftAttachments);
+	}
+
+	@Benchmark
+	public Message createMessageWithEmail() {
+		return mailer.createMessageWithEmail(email);
+	}
+
+	/**
+	 * Building and encoding together, as the small emails sent as raw json messages are.
+	 */
+	@Benchmark
+	public Message createAndEncodeEmail() {
+		return mailer.createMessageWithEmail(createEmailWithAttachment());
+	}
+}
@@ -17,20 +17,176 @@
  */
 package com.threewks.thundr.gmail;
 
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An attachment to a draft created by {@link GmailMailer#createDraft(String, String, java.util.Map, java.util.List, String)}.
+ * <p>
+ * Other than the byte array constructor, attachments are read as the email is written, so the attachment is never held on the heap
+ * in full. An email may be written more than once (for example to find its length before it is sent), so the data must be
+ * readable more than once.
+ */
 public class Attachment {
+	public static final String DEFAULT_CONTENT_TYPE = "application/pdf";
+
+	/**
+	 * Opens the data of an attachment, each call must return a new stream positioned at the start of the data.
+	 */
+	public interface Source {
+		InputStream open() throws IOException;
+	}
+
 	private String fileName;
-	private byte[] data;
+	private String contentType;
+	private Source source;
+
+	public Attachment(String fileName, final byte[] data) {
+		this(fileName, DEFAULT_CONTENT_TYPE, data == null ? null : new Source() {
+			@Override
+			public InputStream open() {
+				return new ByteArrayInputStream(data);
+			}
+		});
+	}
 
-	public Attachment(String fileName, byte[] data) {
+	public Attachment(String fileName, String contentType, Source source) {
 		this.fileName = fileName;
-		this.data = data;
+		this.contentType = contentType;
+		this.source = source;
+	}
+
+	/**
+	 * @param fileName the name of the attachment
+	 * @param contentType the content type of the attachment
+	 * @param file the file to attach, which is memory mapped rather than read onto the heap
+	 * @return an attachment backed by the given file
+	 */
+	public static Attachment fromFile(String fileName, String contentType, final Path file) {
+		return new Attachment(fileName, contentType, new Source() {
+			private MappedByteBuffer mapped;
+
+			@Override
+			public synchronized InputStream open() throws IOException {
+				if (mapped == null) {
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+						mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					}
+				}
+				return new ByteBufferInputStream(mapped.duplicate());
+			}
+		});
+	}
+
+	/**
+	 * @param fileName the name of the attachment
+	 * @param contentType the content type of the attachment
+	 * @param data the data to attach, for example a direct buffer held off the heap. The buffer's position and limit are not changed.
+	 * @return an attachment backed by the remaining bytes of the given buffer
+	 */
+	public static Attachment fromBuffer(String fileName, String contentType, final ByteBuffer data) {
+		return new Attachment(fileName, contentType, new Source() {
+			@Override
+			public InputStream open() {
+				return new ByteBufferInputStream(data.duplicate());
+			}
+		});
 	}
 
 	public String getFileName() {
 		return fileName;
 	}
 
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the data of the attachment, read fully onto the heap
+	 */
 	public byte[] getData() {
-		return data;
+		if (source == null) {
+			return null;
+		}
+		try (InputStream in = source.open()) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				data.write(buffer, 0, read);
+			}
+			return data.toByteArray();
+		} catch (IOException e) {
+			throw new GmailException(e, "Failed to read attachment %s: %s", fileName, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the attachment as a data source which opens the data each time it is read
+	 */
+	public DataSource getDataSource() {
+		return new DataSource() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				if (source == null) {
+					throw new IOException("Attachment " + fileName + " has no data");
+				}
+				return source.open();
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				throw new IOException("Attachment " + fileName + " is read only");
+			}
+
+			@Override
+			public String getContentType() {
+				return contentType;
+			}
+
+			@Override
+			public String getName() {
+				return fileName;
+			}
+		};
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int read = Math.min(len, buffer.remaining());
+			buffer.get(b, off, read);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
 	}
 }
@@ -22,20 +22,43 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
 import com.threewks.thundr.logger.Logger;
 import com.threewks.thundr.route.Router;
+import com.threewks.thundr.view.json.JsonView;
 import com.threewks.thundr.view.redirect.RedirectView;
 import com.threewks.thundr.view.string.StringView;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class GmailAdminController {
 
 	private final GoogleAuthorizationCodeFlow flow;
 	private final String callbackUrl;
+	private final GmailClientCache gmailClientCache;
+	private final GmailSettings gmailSettings;
+	private final GmailSendExecutor gmailSendExecutor;
 
 	public GmailAdminController(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, Router router, String host) {
+		this(gmailAuthorizationCodeFlow, router, host, null);
+	}
+
+	public GmailAdminController(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, Router router, String host, GmailClientCache gmailClientCache) {
+		this(gmailAuthorizationCodeFlow, router, host, gmailClientCache, null);
+	}
+
+	public GmailAdminController(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, Router router, String host, GmailClientCache gmailClientCache, GmailSettings gmailSettings) {
+		this(gmailAuthorizationCodeFlow, router, host, gmailClientCache, gmailSettings, null);
+	}
+
+	public GmailAdminController(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, Router router, String host, GmailClientCache gmailClientCache, GmailSettings gmailSettings,
+			GmailSendExecutor gmailSendExecutor) {
 		this.flow = gmailAuthorizationCodeFlow;
 		this.callbackUrl = String.format("%s%s", host, router.getNamedRoute("gmail.admin.oauthCallback").getRoute());
+		this.gmailClientCache = gmailClientCache;
+		this.gmailSettings = gmailSettings;
+		this.gmailSendExecutor = gmailSendExecutor;
 	}
 
 	/**
@@ -70,6 +93,9 @@ public class GmailAdminController {
 	 * <p>
 	 * If using credentialId you will need to make sure your callbackUrl and credentialId=paramValue is included.
 	 * otherwise it won't match.
+	 * <p>
+	 * Any cached {@link com.google.api.services.gmail.Gmail} client for the credential is discarded, and its circuit closed, so the next send
+	 * uses the new credential.
 	 *
 	 * @param code
 	 * @param credentialId
@@ -91,8 +117,69 @@ public class GmailAdminController {
 				GmailMailer.CREDENTIAL_USER_ID : credentialId);
 
 		flow.createAndStoreCredential(tokenResponse, credentialId);
+		if (gmailClientCache != null) {
+			gmailClientCache.invalidate(credentialId);
+		}
+		GmailCircuitBreaker circuitBreaker = circuitBreaker();
+		if (circuitBreaker != null) {
+			circuitBreaker.reset(credentialId);
+		}
 
 		return new StringView("Gmail setup complete");
 	}
 
+	/**
+	 * Shows the state of the circuit of each credential which has been sent with.
+	 *
+	 * @return the state, failures in a row and time until a trial request of each circuit, keyed by credential id
+	 */
+	public JsonView circuits() {
+		GmailCircuitBreaker circuitBreaker = circuitBreaker();
+		return new JsonView(circuitBreaker == null ? Collections.emptyMap() : circuitBreaker.getStatus());
+	}
+
+	/**
+	 * Closes the circuit of the given credential, so sends through it are made straight away.
+	 *
+	 * @param credentialId the credential, or blank for {@link GmailMailer#CREDENTIAL_USER_ID}
+	 * @return the state of each circuit
+	 */
+	public JsonView resetCircuit(String credentialId) {
+		GmailCircuitBreaker circuitBreaker = circuitBreaker();
+		if (circuitBreaker != null) {
+			circuitBreaker.reset(StringUtils.isBlank(credentialId) ? GmailMailer.CREDENTIAL_USER_ID : credentialId);
+		}
+		return circuits();
+	}
+
+	/**
+	 * Shows how long each stage of sending an email has taken, by credential and outcome.
+	 *
+	 * @return the count, rate and timings of each stage, or an empty object if sends aren't timed
+	 */
+	public JsonView metrics() {
+		GmailMetrics metrics = gmailSettings == null ? null : gmailSettings.getMetrics();
+		return new JsonView(metrics == null ? Collections.emptyMap() : metrics.getSnapshot());
+	}
+
+	/**
+	 * Shows how many sends are waiting for a thread in each priority lane. How long they wait, and how long each lane's sends take
+	 * from start to finish, are the Queue and Deliver stages of the metrics.
+	 *
+	 * @return the number of waiting sends, keyed by lane, or an empty object if there is no send executor
+	 */
+	public JsonView lanes() {
+		Map<String, Integer> lanes = new LinkedHashMap<>();
+		if (gmailSendExecutor != null) {
+			for (GmailPriority priority : GmailPriority.values()) {
+				lanes.put(priority.name(), gmailSendExecutor.getQueueDepth(priority));
+			}
+		}
+		return new JsonView(lanes);
+	}
+
+	private GmailCircuitBreaker circuitBreaker() {
+		return gmailSettings == null ? null : gmailSettings.getCircuitBreaker();
+	}
+
 }
@@ -0,0 +1,43 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+/**
+ * Wraps the body or attachment view of an email, giving it the key it is cached under in the {@link GmailRenderCache}. Views
+ * with the same key are expected to render the same way.
+ * <p>
+ * eg: <code>new GmailMessage().body(new GmailCachedView("newsletter-2015-06", new JspView("newsletter.jsp", model)))</code>
+ */
+public class GmailCachedView {
+
+	private final Object key;
+	private final Object view;
+
+	public GmailCachedView(Object key, Object view) {
+		this.key = key;
+		this.view = view;
+	}
+
+	public Object getKey() {
+		return key;
+	}
+
+	public Object getView() {
+		return view;
+	}
+}
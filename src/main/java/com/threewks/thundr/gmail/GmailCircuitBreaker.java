@@ -0,0 +1,290 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.HttpResponseException;
+import com.threewks.thundr.logger.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops sending through a credential which keeps failing, so sends through a revoked or throttled account fail straight away rather
+ * than each waiting for Gmail to fail them.
+ * <p>
+ * Each credential has its own circuit. While it is {@link State#Closed} requests are made as normal. Once
+ * {@link #getFailureThreshold()} requests in a row fail because of the account or Gmail (the credential can't be loaded or is no
+ * longer authorised, rate limits, server errors and connection failures) the circuit opens and requests fail straight away with a
+ * {@link GmailException}. After {@link #getOpenMillis()} the circuit is half open and lets a single trial request through, if it
+ * succeeds the circuit closes, otherwise it opens again. Failures caused by the email itself, such as an invalid address, show the
+ * account is working and don't count.
+ */
+public class GmailCircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final int DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+	public enum State {
+		Closed,
+		Open,
+		HalfOpen
+	}
+
+	private final int failureThreshold;
+	private final long openMillis;
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+	public GmailCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * @param failureThreshold the number of failures in a row which open a credential's circuit
+	 * @param openMillis how long a circuit stays open before a trial request is let through
+	 */
+	public GmailCircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Check a request can be made with the given credential. Every request which is allowed must be followed by a call to
+	 * {@link #onSuccess(String)} or {@link #onFailure(String, Throwable)}, or to {@link #release(String)} if it isn't made after all.
+	 *
+	 * @param credentialId the credential the request is made with
+	 * @throws GmailException if the credential's circuit is open
+	 */
+	public void allowRequest(String credentialId) {
+		Circuit circuit = circuits.computeIfAbsent(credentialId, key -> new Circuit());
+		long retryIn = circuit.allow(now());
+		if (retryIn > 0) {
+			throw new GmailException("Gmail requests for %s are failing, not sending for another %sms", credentialId, retryIn);
+		}
+	}
+
+	/**
+	 * Record that a request made with the given credential succeeded.
+	 *
+	 * @param credentialId the credential the request was made with
+	 */
+	public void onSuccess(String credentialId) {
+		Circuit circuit = circuits.get(credentialId);
+		if (circuit != null && circuit.succeeded()) {
+			Logger.info("Gmail circuit for %s is closed, sending again", credentialId);
+		}
+	}
+
+	/**
+	 * Record that a request made with the given credential failed. A response from Gmail which doesn't show a problem with the
+	 * credential counts as a success, failures which didn't reach Gmail at all don't count either way.
+	 *
+	 * @param credentialId the credential the request was made with
+	 * @param error the failure
+	 */
+	public void onFailure(String credentialId, Throwable error) {
+		IOException cause = ioCause(error);
+		if (cause == null) {
+			release(credentialId);
+			return;
+		}
+		if (!isFailure(error)) {
+			onSuccess(credentialId);
+			return;
+		}
+		Circuit circuit = circuits.computeIfAbsent(credentialId, key -> new Circuit());
+		if (circuit.failed(now())) {
+			Logger.warn("Gmail circuit for %s is open after %s failures, failing sends for %sms: %s", credentialId, circuit.failures(), openMillis,
+					error.getMessage());
+		}
+	}
+
+	/**
+	 * Record that a request allowed with the given credential won't be made, or at least not yet, so a half open circuit lets another
+	 * trial request through.
+	 *
+	 * @param credentialId the credential the request was allowed for
+	 */
+	public void release(String credentialId) {
+		Circuit circuit = circuits.get(credentialId);
+		if (circuit != null) {
+			circuit.released();
+		}
+	}
+
+	/**
+	 * @param error the failure of a request
+	 * @return true if the failure shows a problem with the credential or Gmail, rather than with the request
+	 */
+	public boolean isFailure(Throwable error) {
+		IOException cause = ioCause(error);
+		if (cause instanceof HttpResponseException) {
+			return isFailure(((HttpResponseException) cause).getStatusCode());
+		}
+		return cause != null;
+	}
+
+	/**
+	 * @param statusCode the status code of a Gmail response
+	 * @return true if the status shows a problem with the credential or Gmail, rather than with the request
+	 */
+	public boolean isFailure(int statusCode) {
+		return statusCode == 401 || statusCode == 403 || statusCode == 429 || statusCode >= 500;
+	}
+
+	/**
+	 * Close the circuit of the given credential, for example because it has been authorised again.
+	 *
+	 * @param credentialId the credential
+	 */
+	public void reset(String credentialId) {
+		circuits.remove(credentialId);
+	}
+
+	/**
+	 * @param credentialId the credential
+	 * @return the state of the credential's circuit
+	 */
+	public State getState(String credentialId) {
+		Circuit circuit = circuits.get(credentialId);
+		return circuit == null ? State.Closed : circuit.state(now());
+	}
+
+	/**
+	 * @return the state of each credential's circuit which has been used
+	 */
+	public Map<String, State> getStates() {
+		Map<String, State> states = new LinkedHashMap<>();
+		long now = now();
+		for (Map.Entry<String, Circuit> circuit : circuits.entrySet()) {
+			states.put(circuit.getKey(), circuit.getValue().state(now));
+		}
+		return states;
+	}
+
+	/**
+	 * @return the state, failures in a row and time until a trial request of each credential's circuit which has been used, as shown
+	 * by the admin routes
+	 */
+	public Map<String, Map<String, Object>> getStatus() {
+		Map<String, Map<String, Object>> status = new LinkedHashMap<>();
+		long now = now();
+		for (Map.Entry<String, Circuit> circuit : circuits.entrySet()) {
+			status.put(circuit.getKey(), circuit.getValue().status(now));
+		}
+		return status;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public long getOpenMillis() {
+		return openMillis;
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static IOException ioCause(Throwable error) {
+		Throwable cause = error;
+		while (cause != null && !(cause instanceof IOException)) {
+			cause = cause.getCause();
+		}
+		return (IOException) cause;
+	}
+
+	private class Circuit {
+		private int failures;
+		private long openedAt;
+		private boolean open;
+		private boolean trialInFlight;
+		private long trialStartedAt;
+
+		/**
+		 * @return 0 if the request can be made, otherwise how long until a trial request will be let through
+		 */
+		private synchronized long allow(long now) {
+			if (!open) {
+				return 0;
+			}
+			long retryIn = openedAt + openMillis - now;
+			if (retryIn > 0) {
+				return retryIn;
+			}
+			if (trialInFlight && now - trialStartedAt < openMillis) {
+				// the trial request is still running, other requests wait for it to show whether the credential works
+				return trialStartedAt + openMillis - now;
+			}
+			trialInFlight = true;
+			trialStartedAt = now;
+			return 0;
+		}
+
+		/**
+		 * @return true if this closed the circuit
+		 */
+		private synchronized boolean succeeded() {
+			boolean closed = open;
+			failures = 0;
+			open = false;
+			trialInFlight = false;
+			return closed;
+		}
+
+		/**
+		 * @return true if this opened the circuit
+		 */
+		private synchronized boolean failed(long now) {
+			failures++;
+			boolean opening = trialInFlight || (!open && failures >= failureThreshold);
+			if (opening) {
+				open = true;
+				openedAt = now;
+			}
+			trialInFlight = false;
+			return opening;
+		}
+
+		private synchronized void released() {
+			trialInFlight = false;
+		}
+
+		private synchronized int failures() {
+			return failures;
+		}
+
+		private synchronized State state(long now) {
+			if (!open) {
+				return State.Closed;
+			}
+			return now - openedAt < openMillis ? State.Open : State.HalfOpen;
+		}
+
+		private synchronized Map<String, Object> status(long now) {
+			Map<String, Object> status = new LinkedHashMap<>();
+			status.put("state", state(now).name());
+			status.put("failures", failures);
+			status.put("retryInMillis", open ? Math.max(0, openedAt + openMillis - now) : 0);
+			return status;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.services.gmail.Gmail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, thread safe cache of {@link Gmail} clients keyed by credential id.
+ * <p>
+ * Building a client requires the {@link com.google.api.client.auth.oauth2.StoredCredential} to be read from the datastore, so clients
+ * are kept for up to the configured time to live. When the cache is full the least recently used client is evicted.
+ */
+public class GmailClientCache {
+
+	public static final int DEFAULT_MAX_SIZE = 100;
+	public static final int DEFAULT_TTL_SECONDS = 30 * 60;
+
+	private final GoogleAuthorizationCodeFlow flow;
+	private final GmailTokenManager tokenManager;
+	private final int maxSize;
+	private final long ttlMillis;
+	private final Map<String, CachedClient> clients;
+	private long generation;
+
+	public GmailClientCache(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow) {
+		this(gmailAuthorizationCodeFlow, DEFAULT_MAX_SIZE, DEFAULT_TTL_SECONDS);
+	}
+
+	public GmailClientCache(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, int maxSize, long ttlSeconds) {
+		this(gmailAuthorizationCodeFlow, new GmailTokenManager(gmailAuthorizationCodeFlow), maxSize, ttlSeconds);
+	}
+
+	public GmailClientCache(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, GmailTokenManager gmailTokenManager, final int maxSize, long ttlSeconds) {
+		this.flow = gmailAuthorizationCodeFlow;
+		this.tokenManager = gmailTokenManager;
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlSeconds * 1000;
+		this.clients = new LinkedHashMap<String, CachedClient>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedClient> eldest) {
+				if (size() > maxSize) {
+					tokenManager.release(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param credentialId the id of the {@link com.google.api.client.auth.oauth2.StoredCredential} to build a client for
+	 * @return the cached client for the given credential, loading the credential if there is no live client
+	 * @throws IOException if the credential could not be loaded
+	 */
+	public Gmail get(String credentialId) throws IOException {
+		long now = now();
+		long loadGeneration;
+		CachedClient cached;
+		synchronized (clients) {
+			cached = clients.get(credentialId);
+			if (cached == null || cached.expires <= now) {
+				clients.remove(credentialId);
+				cached = null;
+			}
+			loadGeneration = generation;
+		}
+		if (cached != null) {
+			tokenManager.ensureFresh(credentialId, cached.credential);
+			return cached.client;
+		}
+
+		// load outside the lock so a slow datastore read doesn't block senders using other credentials
+		Credential credential = loadCredential(credentialId);
+		Gmail client = new Gmail.Builder(flow.getTransport(), flow.getJsonFactory(), credential).build();
+		if (credential != null && maxSize > 0) {
+			synchronized (clients) {
+				// don't cache a client loaded before an invalidation, it may hold a replaced credential
+				if (loadGeneration == generation) {
+					clients.put(credentialId, new CachedClient(client, credential, now + ttlMillis));
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Discard the cached client for the given credential, for example when the credential has been replaced.
+	 *
+	 * @param credentialId the id of the {@link com.google.api.client.auth.oauth2.StoredCredential}
+	 */
+	public void invalidate(String credentialId) {
+		synchronized (clients) {
+			clients.remove(credentialId);
+			generation++;
+		}
+		tokenManager.release(credentialId);
+	}
+
+	public void invalidateAll() {
+		List<String> credentialIds;
+		synchronized (clients) {
+			credentialIds = new ArrayList<>(clients.keySet());
+			clients.clear();
+			generation++;
+		}
+		for (String credentialId : credentialIds) {
+			tokenManager.release(credentialId);
+		}
+	}
+
+	public int size() {
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+
+	protected Credential loadCredential(String credentialId) throws IOException {
+		return tokenManager.load(credentialId);
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static class CachedClient {
+		private final Gmail client;
+		private final Credential credential;
+		private final long expires;
+
+		private CachedClient(Gmail client, Credential credential, long expires) {
+			this.client = client;
+			this.credential = credential;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads emails which don't name a credential over several authorised Gmail accounts, so sending isn't limited by the quota of a
+ * single account. Set one with {@link GmailSettings#setCredentialPool(GmailCredentialPool)}.
+ * <p>
+ * Accounts whose circuit is open in the {@link GmailCircuitBreaker} are skipped while any other account is healthy, and a send which
+ * an account rejects without sending (because its circuit is open, its quota is used up or Gmail refused the credential) is tried
+ * through the next account.
+ * <p>
+ * Emails from an address with a route are always sent through the routed account, as Gmail only sends from addresses the account
+ * owns. They are never moved to another account.
+ */
+public class GmailCredentialPool {
+
+	/**
+	 * How the account for each email is chosen.
+	 */
+	public enum Strategy {
+		/**
+		 * Each account in turn
+		 */
+		RoundRobin,
+		/**
+		 * The account with the fewest sends in progress
+		 */
+		LeastLoaded,
+		/**
+		 * The account with the most {@link GmailRateLimiter} quota left, or the fewest sends in progress if there is no rate limiter
+		 */
+		QuotaRemaining
+	}
+
+	private final List<String> credentialIds;
+	private final Strategy strategy;
+	private final Map<String, String> routes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param credentialIds the ids of the {@link com.google.api.client.auth.oauth2.StoredCredential}s to send through
+	 * @param strategy how the account for each email is chosen
+	 */
+	public GmailCredentialPool(Collection<String> credentialIds, Strategy strategy) {
+		if (credentialIds == null || credentialIds.isEmpty()) {
+			throw new GmailException("A credential pool needs at least one credential");
+		}
+		this.credentialIds = Collections.unmodifiableList(new ArrayList<>(credentialIds));
+		this.strategy = strategy;
+		for (String credentialId : credentialIds) {
+			inFlight.put(credentialId, new AtomicInteger());
+		}
+	}
+
+	/**
+	 * Always send emails from the given address through the given account.
+	 *
+	 * @param fromAddress the from address
+	 * @param credentialId the account, which doesn't need to be one of the pool's credentials
+	 * @return this pool
+	 */
+	public GmailCredentialPool route(String fromAddress, String credentialId) {
+		routes.put(StringUtils.lowerCase(fromAddress), credentialId);
+		inFlight.putIfAbsent(credentialId, new AtomicInteger());
+		return this;
+	}
+
+	/**
+	 * Choose the account to send an email through.
+	 *
+	 * @param fromAddress the from address of the email, or null
+	 * @param excluded accounts which must not be chosen, such as accounts the email has already failed through
+	 * @param circuitBreaker used to skip failing accounts, or null
+	 * @param rateLimiter used to find the quota left by {@link Strategy#QuotaRemaining}, or null
+	 * @return the account, or null if every account which may send the email is excluded
+	 */
+	public String select(String fromAddress, Collection<String> excluded, GmailCircuitBreaker circuitBreaker, GmailRateLimiter rateLimiter) {
+		String routed = fromAddress == null ? null : routes.get(fromAddress.toLowerCase());
+		if (routed != null) {
+			return excluded.contains(routed) ? null : routed;
+		}
+		List<String> available = new ArrayList<>(credentialIds.size());
+		List<String> healthy = new ArrayList<>(credentialIds.size());
+		int start = Math.floorMod(next.getAndIncrement(), credentialIds.size());
+		for (int i = 0; i < credentialIds.size(); i++) {
+			String credentialId = credentialIds.get((start + i) % credentialIds.size());
+			if (!excluded.contains(credentialId)) {
+				available.add(credentialId);
+				if (circuitBreaker == null || circuitBreaker.getState(credentialId) != GmailCircuitBreaker.State.Open) {
+					healthy.add(credentialId);
+				}
+			}
+		}
+		// when every account is failing one is still chosen, so the email fails with the account's error
+		List<String> candidates = healthy.isEmpty() ? available : healthy;
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		switch (strategy) {
+			case LeastLoaded:
+				return leastLoaded(candidates);
+			case QuotaRemaining:
+				return rateLimiter == null ? leastLoaded(candidates) : mostQuota(candidates, rateLimiter);
+			default:
+				return candidates.get(0);
+		}
+	}
+
+	/**
+	 * Choose the account to send an email through, as {@link #select(String, Collection, GmailCircuitBreaker, GmailRateLimiter)}, and
+	 * count the send as in progress until {@link #release(String)} is called.
+	 */
+	public String acquire(String fromAddress, Collection<String> excluded, GmailCircuitBreaker circuitBreaker, GmailRateLimiter rateLimiter) {
+		String credentialId = select(fromAddress, excluded, circuitBreaker, rateLimiter);
+		if (credentialId != null) {
+			inFlight.get(credentialId).incrementAndGet();
+		}
+		return credentialId;
+	}
+
+	/**
+	 * @param credentialId an account returned by {@link #acquire(String, Collection, GmailCircuitBreaker, GmailRateLimiter)} whose
+	 *                     send has completed
+	 */
+	public void release(String credentialId) {
+		AtomicInteger count = inFlight.get(credentialId);
+		if (count != null) {
+			count.decrementAndGet();
+		}
+	}
+
+	public List<String> getCredentialIds() {
+		return credentialIds;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @return the account each routed from address is sent through
+	 */
+	public Map<String, String> getRoutes() {
+		return Collections.unmodifiableMap(routes);
+	}
+
+	/**
+	 * @return the number of sends in progress through each account
+	 */
+	public Map<String, Integer> getInFlight() {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (Map.Entry<String, AtomicInteger> count : inFlight.entrySet()) {
+			counts.put(count.getKey(), count.getValue().get());
+		}
+		return counts;
+	}
+
+	private String leastLoaded(List<String> candidates) {
+		String least = null;
+		int leastCount = Integer.MAX_VALUE;
+		for (String credentialId : candidates) {
+			int count = inFlight.get(credentialId).get();
+			if (count < leastCount) {
+				least = credentialId;
+				leastCount = count;
+			}
+		}
+		return least;
+	}
+
+	private String mostQuota(List<String> candidates, GmailRateLimiter rateLimiter) {
+		String most = null;
+		long mostUnits = -1;
+		for (String credentialId : candidates) {
+			long units = rateLimiter.getUnitsAvailable(credentialId);
+			if (units > mostUnits) {
+				most = credentialId;
+				mostUnits = units;
+			}
+		}
+		return most;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.threewks.thundr.logger.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stores spooled emails in a {@link DataStore} from the same {@link DataStoreFactory} OAuth credentials are stored in (eg: the
+ * AppEngine datastore), which is shared by every instance of the application.
+ * <p>
+ * Each email is owned by the instance which added it, and only its owner sends it. Every instance records in the store that it is
+ * still running each time it claims emails. Once an instance has not done so for the lease, or has shut down, the other instances
+ * take over its emails, so emails left by a stopped instance are sent by another one. An instance which crashed has its emails taken
+ * over once its lease runs out, which is 5 minutes by default.
+ * <p>
+ * A {@link DataStore} can't update an entry only if it hasn't changed, so an instance checks it still owns an email after taking it
+ * over. Two instances taking over the same abandoned email at the same moment may still both send it. An email is never taken from
+ * an instance which is running.
+ */
+public class GmailDataStoreSpoolStore implements GmailSpoolStore {
+
+	public static final String DATA_STORE_ID = "GmailSpool";
+	public static final String OWNERS_DATA_STORE_ID = "GmailSpoolOwners";
+	public static final long DEFAULT_LEASE_MILLIS = 5 * 60 * 1000L;
+
+	private final DataStore<GmailSpooledMessage> dataStore;
+	private final DataStore<Long> owners;
+	private final String instanceId = UUID.randomUUID().toString();
+	private final long leaseMillis;
+
+	public GmailDataStoreSpoolStore(DataStoreFactory dataStoreFactory) throws IOException {
+		this(dataStoreFactory, DEFAULT_LEASE_MILLIS);
+	}
+
+	/**
+	 * @param dataStoreFactory the factory to store emails with
+	 * @param leaseMillis how long after an instance last claimed emails the other instances take over its emails
+	 * @throws IOException if the stores could not be opened
+	 */
+	public GmailDataStoreSpoolStore(DataStoreFactory dataStoreFactory, long leaseMillis) throws IOException {
+		this.dataStore = dataStoreFactory.getDataStore(DATA_STORE_ID);
+		this.owners = dataStoreFactory.getDataStore(OWNERS_DATA_STORE_ID);
+		this.leaseMillis = leaseMillis;
+	}
+
+	@Override
+	public void add(GmailSpooledMessage message) throws IOException {
+		dataStore.set(message.getId(), message.ownedBy(instanceId));
+	}
+
+	@Override
+	public void remove(String id) throws IOException {
+		dataStore.delete(id);
+	}
+
+	@Override
+	public List<GmailSpooledMessage> load() throws IOException {
+		List<GmailSpooledMessage> messages = new ArrayList<>(dataStore.values());
+		messages.sort(Comparator.comparingLong(GmailSpooledMessage::getEnqueuedAt));
+		return messages;
+	}
+
+	/**
+	 * @return the emails owned by this instance, including those it has just taken over from stopped instances, oldest first
+	 */
+	@Override
+	public List<GmailSpooledMessage> claim() throws IOException {
+		long now = now();
+		owners.set(instanceId, now);
+		List<GmailSpooledMessage> claimed = new ArrayList<>();
+		for (GmailSpooledMessage message : load()) {
+			if (instanceId.equals(message.getOwner())) {
+				claimed.add(message);
+			} else if (isAbandoned(message.getOwner(), now)) {
+				dataStore.set(message.getId(), message.ownedBy(instanceId));
+				GmailSpooledMessage owned = dataStore.get(message.getId());
+				if (owned != null && instanceId.equals(owned.getOwner())) {
+					Logger.info("Taking over spooled email %s from stopped instance %s", message.getId(), message.getOwner());
+					claimed.add(owned);
+				}
+			}
+		}
+		for (String owner : new ArrayList<>(owners.keySet())) {
+			if (isAbandoned(owner, now)) {
+				owners.delete(owner);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * @return a third of the lease, so a running instance renews its lease well before it runs out
+	 */
+	@Override
+	public long getClaimIntervalMillis() {
+		return leaseMillis / 3;
+	}
+
+	/**
+	 * @return the id this instance owns the emails it adds with
+	 */
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Give up this instance's lease, so other instances take over its unsent emails the next time they claim emails.
+	 */
+	@Override
+	public void close() throws IOException {
+		owners.delete(instanceId);
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private boolean isAbandoned(String owner, long now) throws IOException {
+		if (owner == null) {
+			return true;
+		}
+		Long renewed = owners.get(owner);
+		return renewed == null || now - renewed > leaseMillis;
+	}
+}
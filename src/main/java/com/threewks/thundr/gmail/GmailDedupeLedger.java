@@ -0,0 +1,254 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.threewks.thundr.logger.Logger;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the idempotency keys of recently sent emails and the id Gmail assigned them, so an email sent again with the same key
+ * is not delivered twice.
+ * <p>
+ * Keys are held in memory, up to a bounded number, in front of an optional {@link DataStore} which remembers every key sent within the
+ * window. A Bloom filter of the keys held in memory lets lookups skip the in memory keys for emails this instance hasn't sent. A key
+ * which isn't held in memory is always looked up in the store, as it may have been recorded by another instance sharing the store.
+ * <p>
+ * A key is only recorded once Gmail has accepted the email, so this protects against an email being sent again after it was sent, such as
+ * an application retrying a send or a spooled email being sent again after a restart. It doesn't stop the same email being sent twice at
+ * once, or a send which failed after Gmail accepted it being retried.
+ */
+public class GmailDedupeLedger {
+
+	public static final String DATA_STORE_ID = "GmailDedupe";
+	public static final int DEFAULT_CAPACITY = 100000;
+	public static final long DEFAULT_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final int capacity;
+	private final long windowMillis;
+	private final DataStore<Sent> dataStore;
+	private final LinkedHashMap<String, Sent> recent = new LinkedHashMap<>(16, 0.75f, true);
+	private BloomFilter filter;
+	private int added;
+
+	/**
+	 * Create a ledger which only remembers keys in memory.
+	 *
+	 * @param capacity the number of keys remembered
+	 * @param windowMillis how long a key is remembered after its email is sent
+	 */
+	public GmailDedupeLedger(int capacity, long windowMillis) {
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+		this.dataStore = null;
+		this.filter = new BloomFilter(capacity);
+	}
+
+	/**
+	 * Create a ledger which remembers keys in a {@link DataStore} from the same {@link DataStoreFactory} OAuth credentials are stored in,
+	 * so keys are remembered across restarts and shared by every instance of the application.
+	 *
+	 * @param dataStoreFactory the factory to store keys with
+	 * @param capacity the number of keys also held in memory
+	 * @param windowMillis how long a key is remembered after its email is sent
+	 * @throws IOException if the stored keys could not be read
+	 */
+	public GmailDedupeLedger(DataStoreFactory dataStoreFactory, int capacity, long windowMillis) throws IOException {
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+		this.dataStore = dataStoreFactory.getDataStore(DATA_STORE_ID);
+		this.filter = new BloomFilter(capacity);
+		removeExpired();
+	}
+
+	/**
+	 * @param key the idempotency key of an email
+	 * @return the id Gmail assigned to the email sent with the given key within the window, or null if none was
+	 */
+	public String find(String key) {
+		long now = now();
+		synchronized (recent) {
+			Sent sent = filter.mightContain(key) ? recent.get(key) : null;
+			if (sent != null) {
+				return sent.isWithin(now, windowMillis) ? sent.getMessageId() : null;
+			}
+		}
+		if (dataStore == null) {
+			return null;
+		}
+		try {
+			Sent sent = dataStore.get(key);
+			return sent != null && sent.isWithin(now, windowMillis) ? sent.getMessageId() : null;
+		} catch (IOException e) {
+			// an email is sent rather than failed when the ledger can't be read
+			Logger.warn("Failed to look up Gmail idempotency key %s, sending as if it is new: %s", key, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Remember that the email with the given key was sent.
+	 *
+	 * @param key the idempotency key of the email
+	 * @param messageId the id Gmail assigned to the sent email
+	 */
+	public void record(String key, String messageId) {
+		Sent sent = new Sent(messageId, now());
+		synchronized (recent) {
+			recent.put(key, sent);
+			while (recent.size() > capacity) {
+				recent.remove(recent.keySet().iterator().next());
+			}
+			filter.add(key);
+			// a Bloom filter can't forget keys, so it is rebuilt from the keys still in memory once it has had its capacity added
+			if (++added > capacity) {
+				added = 0;
+				filter = new BloomFilter(capacity, recent.keySet());
+			}
+		}
+		if (dataStore != null) {
+			try {
+				dataStore.set(key, sent);
+			} catch (IOException e) {
+				// the email has already been sent, so failing here would only lead to it being sent again
+				Logger.warn("Failed to record Gmail idempotency key %s: %s", key, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys held in memory
+	 */
+	public int size() {
+		synchronized (recent) {
+			return recent.size();
+		}
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Remove the keys which have left the window from the store. This reads the whole store, so is only done when the ledger is
+	 * created rather than while sending.
+	 */
+	private void removeExpired() throws IOException {
+		long now = now();
+		for (String key : dataStore.keySet()) {
+			Sent sent = dataStore.get(key);
+			if (sent == null || !sent.isWithin(now, windowMillis)) {
+				dataStore.delete(key);
+			}
+		}
+	}
+
+	/**
+	 * When an email with an idempotency key was sent and the id Gmail assigned it.
+	 */
+	public static class Sent implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String messageId;
+		private final long sentAt;
+
+		public Sent(String messageId, long sentAt) {
+			this.messageId = messageId;
+			this.sentAt = sentAt;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public long getSentAt() {
+			return sentAt;
+		}
+
+		private boolean isWithin(long now, long windowMillis) {
+			return now - sentAt < windowMillis;
+		}
+	}
+
+	/**
+	 * A set of keys which can say a key is definitely not in it, or that it probably is.
+	 */
+	static class BloomFilter {
+		private final long[] bits;
+		private final int size;
+		private final int hashes;
+
+		BloomFilter(int expected) {
+			expected = Math.max(expected, 1);
+			long size = (long) Math.ceil(-expected * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+			this.size = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, size));
+			this.hashes = Math.max(1, (int) Math.round((double) this.size / expected * Math.log(2)));
+			this.bits = new long[(this.size + 63) / 64];
+		}
+
+		BloomFilter(int expected, Collection<String> keys) {
+			this(expected);
+			for (String key : keys) {
+				add(key);
+			}
+		}
+
+		void add(String key) {
+			long[] hash = hash(key);
+			for (int i = 0; i < hashes; i++) {
+				int bit = index(hash, i);
+				bits[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(String key) {
+			long[] hash = hash(key);
+			for (int i = 0; i < hashes; i++) {
+				int bit = index(hash, i);
+				if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int index(long[] hash, int i) {
+			return (int) Math.floorMod(hash[0] + i * hash[1], (long) size);
+		}
+
+		private static long[] hash(String key) {
+			try {
+				ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+				return new long[] { digest.getLong(), digest.getLong() };
+			} catch (NoSuchAlgorithmException e) {
+				throw new GmailException(e);
+			}
+		}
+	}
+}
@@ -25,4 +25,12 @@ public class GmailException extends BaseException {
         super(cause);
     }
 
+    public GmailException(String reason, Object... formatArgs) {
+        super(reason, formatArgs);
+    }
+
+    public GmailException(Throwable cause, String reason, Object... formatArgs) {
+        super(cause, reason, formatArgs);
+    }
+
 }
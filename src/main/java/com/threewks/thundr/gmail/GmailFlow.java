@@ -0,0 +1,66 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+/**
+ * The interfaces of {@code java.util.concurrent.Flow}, which isn't available before Java 9. They match it method for method, so a
+ * {@link GmailSink} can be connected to a Flow or Reactive Streams publisher with a one line adapter.
+ */
+public final class GmailFlow {
+
+	private GmailFlow() {
+	}
+
+	/**
+	 * Produces items for subscribers, no faster than they request them.
+	 */
+	public interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives the items of a publisher it has requested with its {@link Subscription}. The methods are called one at a time.
+	 */
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * Links a publisher to one subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * @param n the number of further items the subscriber is ready for, at least 1
+		 */
+		void request(long n);
+
+		void cancel();
+	}
+
+	/**
+	 * Both a subscriber and a publisher, transforming the items it receives.
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
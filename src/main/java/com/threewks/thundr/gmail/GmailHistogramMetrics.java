@@ -0,0 +1,176 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a histogram of the time taken by each stage, for each credential and outcome, in memory.
+ * <p>
+ * Each histogram counts timings in buckets which double in size (up to 1 microsecond, up to 2, up to 4 and so on), so recording a
+ * timing is a few atomic increments and a histogram takes a fixed, small amount of memory however many emails are sent. Percentiles
+ * are reported as the upper bound of the bucket they fall in, so are accurate to within a factor of two.
+ */
+public class GmailHistogramMetrics implements GmailMetrics {
+
+	private static final int BUCKETS = 48;
+	private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+	private final Map<Stage, ConcurrentMap<String, Histogram[]>> histograms = new LinkedHashMap<>();
+	private volatile long since;
+
+	public GmailHistogramMetrics() {
+		for (Stage stage : Stage.values()) {
+			histograms.put(stage, new ConcurrentHashMap<>());
+		}
+		since = now();
+	}
+
+	@Override
+	public void record(Stage stage, String credentialId, Outcome outcome, long nanos) {
+		ConcurrentMap<String, Histogram[]> byCredential = histograms.get(stage);
+		Histogram[] byOutcome = byCredential.get(credentialId);
+		if (byOutcome == null) {
+			byOutcome = byCredential.computeIfAbsent(credentialId, key -> newHistograms());
+		}
+		byOutcome[outcome.ordinal()].record(nanos);
+	}
+
+	/**
+	 * @return for each stage, credential and outcome which has been recorded: the number of timings, the number per second since the
+	 * metrics were started or reset, and the mean, maximum and percentile timings in milliseconds
+	 */
+	@Override
+	public Map<String, Object> getSnapshot() {
+		double seconds = Math.max(1, now() - since) / 1000.0;
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		for (Map.Entry<Stage, ConcurrentMap<String, Histogram[]>> stage : histograms.entrySet()) {
+			Map<String, Object> byCredential = new TreeMap<>();
+			for (Map.Entry<String, Histogram[]> credential : stage.getValue().entrySet()) {
+				Map<String, Object> byOutcome = new LinkedHashMap<>();
+				for (Outcome outcome : Outcome.values()) {
+					Histogram histogram = credential.getValue()[outcome.ordinal()];
+					if (histogram.count() > 0) {
+						byOutcome.put(outcome.name(), histogram.summary(seconds));
+					}
+				}
+				byCredential.put(credential.getKey(), byOutcome);
+			}
+			if (!byCredential.isEmpty()) {
+				snapshot.put(stage.getKey().name(), byCredential);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param stage the stage
+	 * @param credentialId the credential
+	 * @param outcome the outcome
+	 * @return the number of timings recorded
+	 */
+	public long getCount(Stage stage, String credentialId, Outcome outcome) {
+		Histogram[] byOutcome = histograms.get(stage).get(credentialId);
+		return byOutcome == null ? 0 : byOutcome[outcome.ordinal()].count();
+	}
+
+	/**
+	 * Discard the recorded timings.
+	 */
+	public void reset() {
+		for (ConcurrentMap<String, Histogram[]> byCredential : histograms.values()) {
+			byCredential.clear();
+		}
+		since = now();
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static Histogram[] newHistograms() {
+		Histogram[] histograms = new Histogram[Outcome.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+		return histograms;
+	}
+
+	private static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		private void record(long nanos) {
+			long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+			// bucket i holds timings up to 2^i microseconds
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		private long count() {
+			return count.sum();
+		}
+
+		private Map<String, Object> summary(double seconds) {
+			long count = count();
+			long max = maxNanos.get();
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("count", count);
+			summary.put("perSecond", round(count / seconds));
+			summary.put("meanMillis", millis(totalNanos.sum() / count));
+			summary.put("maxMillis", millis(max));
+			for (double percentile : PERCENTILES) {
+				summary.put(String.format("p%sMillis", Math.round(percentile * 100)), millis(Math.min(max, percentile(percentile, count))));
+			}
+			return summary;
+		}
+
+		private long percentile(double percentile, long count) {
+			long rank = (long) Math.ceil(percentile * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return TimeUnit.MICROSECONDS.toNanos(1L << i);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		private static double millis(long nanos) {
+			return round(nanos / 1000000.0);
+		}
+
+		private static double round(double value) {
+			return Math.round(value * 1000) / 1000.0;
+		}
+	}
+}
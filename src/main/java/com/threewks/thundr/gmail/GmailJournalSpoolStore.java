@@ -0,0 +1,201 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.logger.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores spooled emails in an append only journal file on local disk.
+ * <p>
+ * Adding or removing an email appends a record to the end of the journal, which is cheap. When the store is opened the journal is
+ * replayed to find the emails which haven't been removed, a record left half written by a crash is discarded. Once most of the journal
+ * is made up of removed emails it is rewritten with just the emails still waiting.
+ * <p>
+ * Records are flushed to the operating system as they are written, so they survive the application stopping or crashing. To also
+ * survive the machine losing power each record must be synced to disk, which is much slower, so this is optional.
+ */
+public class GmailJournalSpoolStore implements GmailSpoolStore {
+
+	public static final int DEFAULT_COMPACT_THRESHOLD = 1000;
+
+	private static final byte ADDED = 'A';
+	private static final byte REMOVED = 'R';
+
+	private final Path file;
+	private final boolean sync;
+	private final int compactThreshold;
+	private final Map<String, GmailSpooledMessage> messages = new LinkedHashMap<>();
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+	private int removed;
+
+	public GmailJournalSpoolStore(Path file) throws IOException {
+		this(file, false, DEFAULT_COMPACT_THRESHOLD);
+	}
+
+	/**
+	 * @param file the journal file, created if it doesn't exist
+	 * @param sync whether each record is synced to disk before it is considered stored
+	 * @param compactThreshold the number of removed emails in the journal before it is rewritten
+	 * @throws IOException if the journal could not be read or opened
+	 */
+	public GmailJournalSpoolStore(Path file, boolean sync, int compactThreshold) throws IOException {
+		this.file = file;
+		this.sync = sync;
+		this.compactThreshold = compactThreshold;
+		replay();
+		open();
+	}
+
+	@Override
+	public synchronized void add(GmailSpooledMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+			objects.writeObject(message);
+		}
+		write(ADDED, bytes.toByteArray());
+		messages.put(message.getId(), message);
+	}
+
+	@Override
+	public synchronized void remove(String id) throws IOException {
+		if (messages.remove(id) == null) {
+			return;
+		}
+		write(REMOVED, id.getBytes(StandardCharsets.UTF_8));
+		removed++;
+		if (removed >= compactThreshold && removed > messages.size()) {
+			compact();
+		}
+	}
+
+	@Override
+	public synchronized List<GmailSpooledMessage> load() {
+		return new ArrayList<>(messages.values());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void write(byte type, byte[] data) throws IOException {
+		if (out == null) {
+			throw new IOException("Gmail spool journal " + file + " is closed");
+		}
+		out.writeByte(type);
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+		if (sync) {
+			fileOut.getChannel().force(false);
+		}
+	}
+
+	private void replay() throws IOException {
+		if (!Files.exists(file)) {
+			return;
+		}
+		long size = Files.size(file);
+		long complete = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				int type = in.read();
+				if (type < 0) {
+					break;
+				}
+				int length = in.readInt();
+				if (length < 0 || length > size - complete - 5) {
+					throw new StreamCorruptedException("Invalid record length " + length);
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				if (type == ADDED) {
+					GmailSpooledMessage message = deserialize(data);
+					messages.put(message.getId(), message);
+				} else if (type == REMOVED) {
+					messages.remove(new String(data, StandardCharsets.UTF_8));
+					removed++;
+				} else {
+					throw new StreamCorruptedException("Unknown record type " + type);
+				}
+				complete += 5 + length;
+			}
+		} catch (EOFException | ObjectStreamException | ClassNotFoundException e) {
+			// everything up to the last complete record is kept, anything after it was cut off part way through being written
+			Logger.warn("Discarding damaged end of Gmail spool journal %s after %s bytes: %s", file, complete, e.getMessage());
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				channel.truncate(complete);
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		fileOut = new FileOutputStream(file.toFile(), true);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+	}
+
+	private void compact() throws IOException {
+		Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+		out.close();
+		fileOut = new FileOutputStream(compacted.toFile());
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		for (GmailSpooledMessage message : new ArrayList<>(messages.values())) {
+			add(message);
+		}
+		fileOut.getChannel().force(false);
+		out.close();
+		Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		removed = 0;
+		open();
+	}
+
+	private static GmailSpooledMessage deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		try (InputStream bytes = new ByteArrayInputStream(data); ObjectInputStream objects = new ObjectInputStream(bytes)) {
+			return (GmailSpooledMessage) objects.readObject();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in memory {@link GmailRenderCache} which evicts the least recently used views once it holds too many views, or too many bytes.
+ * It can optionally also cache views by instance, for an application which sends the same view object to many recipients.
+ */
+public class GmailLruRenderCache implements GmailRenderCache {
+
+	public static final int DEFAULT_MAX_SIZE = 100;
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	private final int maxSize;
+	private final long maxBytes;
+	private final boolean cachingByIdentity;
+	private final LinkedHashMap<Object, GmailRenderedView> views = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	public GmailLruRenderCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxSize the maximum number of views held
+	 * @param maxBytes the maximum total size of the views held, a view larger than this is never cached
+	 */
+	public GmailLruRenderCache(int maxSize, long maxBytes) {
+		this(maxSize, maxBytes, false);
+	}
+
+	/**
+	 * @param maxSize the maximum number of views held
+	 * @param maxBytes the maximum total size of the views held, a view larger than this is never cached
+	 * @param cachingByIdentity true to also cache views which aren't wrapped in a {@link GmailCachedView} by instance
+	 */
+	public GmailLruRenderCache(int maxSize, long maxBytes, boolean cachingByIdentity) {
+		this.maxSize = maxSize;
+		this.maxBytes = maxBytes;
+		this.cachingByIdentity = cachingByIdentity;
+	}
+
+	@Override
+	public boolean isCachingByIdentity() {
+		return cachingByIdentity;
+	}
+
+	@Override
+	public GmailRenderedView get(Object key) {
+		synchronized (views) {
+			return views.get(key);
+		}
+	}
+
+	@Override
+	public void put(Object key, GmailRenderedView rendered) {
+		if (rendered.size() > maxBytes) {
+			return;
+		}
+		synchronized (views) {
+			GmailRenderedView previous = views.put(key, rendered);
+			if (previous != null) {
+				bytes -= previous.size();
+			}
+			bytes += rendered.size();
+			Iterator<Map.Entry<Object, GmailRenderedView>> eldest = views.entrySet().iterator();
+			while (views.size() > maxSize || bytes > maxBytes) {
+				bytes -= eldest.next().getValue().size();
+				eldest.remove();
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (views) {
+			return views.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (views) {
+			views.clear();
+			bytes = 0;
+		}
+	}
+}
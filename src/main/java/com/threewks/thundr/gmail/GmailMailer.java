@@ -20,59 +20,117 @@ package com.threewks.thundr.gmail;
 import com.atomicleopard.expressive.ETransformer;
 import com.atomicleopard.expressive.Expressive;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.repackaged.org.apache.commons.codec.binary.Base64;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Draft;
 import com.google.api.services.gmail.model.Message;
 import com.threewks.thundr.exception.BaseException;
+import com.threewks.thundr.gmail.GmailMetrics.Outcome;
+import com.threewks.thundr.gmail.GmailMetrics.Stage;
 import com.threewks.thundr.logger.Logger;
 import com.threewks.thundr.mail.BaseMailer;
 import com.threewks.thundr.mail.Mailer;
-import com.threewks.thundr.request.InMemoryResponse;
 import com.threewks.thundr.request.RequestContainer;
 import com.threewks.thundr.view.ViewResolverRegistry;
 
 import javax.activation.DataHandler;
-import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class GmailMailer extends BaseMailer implements Mailer {
 
 	public static final String CREDENTIAL_USER_ID = "gmail-credentials";
 
+	private static final int UPLOAD_RETRY_MAX_ELAPSED_MILLIS = 2 * 60 * 1000;
+	private static final String[] IDEMPOTENCY_KEY_HEADERS = { "From", "To", "Cc", "Bcc", "Subject" };
+	/**
+	 * The parts of the responses to sends and drafts which are read, when {@link GmailSettings#isPartialResponses()} is set.
+	 */
+	static final String MESSAGE_FIELDS = "id,threadId";
+	static final String DRAFT_FIELDS = "id,message(id,threadId)";
+
 	private final GoogleAuthorizationCodeFlow flow;
+	private final GmailClientCache gmailClientCache;
+	private final GmailSendExecutor gmailSendExecutor;
+	private final GmailSettings gmailSettings;
+	private final Session session;
 
 	public GmailMailer(ViewResolverRegistry viewResolverRegistry, GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, RequestContainer requestContainer) {
+		this(viewResolverRegistry, gmailAuthorizationCodeFlow, requestContainer, new GmailClientCache(gmailAuthorizationCodeFlow),
+				GmailSendExecutor.threadPool(GmailSendExecutor.DEFAULT_THREADS, GmailSendExecutor.DEFAULT_QUEUE_CAPACITY), new GmailSettings());
+	}
+
+	public GmailMailer(ViewResolverRegistry viewResolverRegistry, GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, RequestContainer requestContainer, GmailClientCache gmailClientCache,
+			GmailSendExecutor gmailSendExecutor, GmailSettings gmailSettings) {
 		super(viewResolverRegistry, requestContainer);
 		this.flow = gmailAuthorizationCodeFlow;
+		this.gmailClientCache = gmailClientCache;
+		this.gmailSendExecutor = gmailSendExecutor;
+		this.gmailSettings = gmailSettings;
+		this.session = Session.getInstance(gmailSettings.getSessionProperties());
 	}
 
 	/**
 	 * @param credentialId is the id to save the {@link com.google.api.client.auth.oauth2.StoredCredential} in datastore used by oauth process
 	 *                     You can use any unique id to associate your gmail account.
 	 *
-	 * @return gmail instance for the given credentialId
+	 * @return gmail instance for the given credentialId, shared with other senders through the {@link GmailClientCache}
 	 */
 	protected Gmail getClient(String credentialId) {
 		try {
-			Logger.info("Loading StoredCredential id %s", credentialId);
-			return new Gmail.Builder(flow.getTransport(), flow.getJsonFactory(), flow.loadCredential(credentialId)).build();
+			return gmailClientCache.get(credentialId);
 		} catch (IOException e) {
 			String message = String.format("Error loading stored credential for inbox %s: %s", credentialId, e.getMessage());
 			Logger.error(message);
@@ -89,47 +147,1113 @@ public class GmailMailer extends BaseMailer implements Mailer {
 	}
 
 
+	/**
+	 * Sends the email straight away, or adds it to the {@link GmailSettings#getSpool()} if there is one.
+	 */
 	@Override
 	protected void sendInternal(Map.Entry<String, String> from, Map.Entry<String, String> replyTo, Map<String, String> to, Map<String, String> cc, Map<String, String> bcc, String subject, Object body, List<com.threewks.thundr.mail.Attachment> attachments) {
-		sendGmailInternal(from, replyTo, to, cc, bcc, subject, body, attachments);
+		if (gmailSettings.getSpool() != null) {
+			enqueue(new GmailMessage(from, replyTo, to, cc, bcc, subject, body, attachments));
+		} else {
+			sendGmailInternal(from, replyTo, to, cc, bcc, subject, body, attachments);
+		}
 	}
 
 	@Deprecated
 	protected void sendGmailInternal(Map.Entry<String, String> from, Map.Entry<String, String> replyTo, Map<String, String> to, Map<String, String> cc, Map<String, String> bcc, String subject, Object body, List<com.threewks.thundr.mail.Attachment> attachments) {
-		String content = render(body).getBodyAsString();
+		MimeMessage mimeMessage = createMimeMessage(new GmailMessage(from, replyTo, to, cc, bcc, subject, body, attachments));
+		sendMimeMessage(null, mimeMessage);
+	}
+
+	/**
+	 * Send the given message, blocking until Gmail has accepted it.
+	 *
+	 * @param message the message to send
+	 * @return the id Gmail assigned to the sent message
+	 */
+	public String send(GmailMessage message) {
+		validate(message);
+		MimeMessage mimeMessage = createMimeMessage(message);
+		return sendMimeMessage(message.getCredentialId(), message.getIdempotencyKey(), priority(message, GmailPriority.Transactional), mimeMessage);
+	}
+
+	/**
+	 * Send the given message without waiting for Gmail to accept it.
+	 * <p>
+	 * The body and attachments are rendered on the calling thread, as views may depend on the current request, and the message is then
+	 * sent by the {@link GmailSendExecutor}.
+	 *
+	 * @param message the message to send
+	 * @return a future completed with the id Gmail assigned to the sent message, or exceptionally if the message could not be sent
+	 */
+	public CompletableFuture<String> sendAsync(GmailMessage message) {
+		MimeMessage mimeMessage;
+		try {
+			validate(message);
+			mimeMessage = createMimeMessage(message);
+		} catch (RuntimeException e) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return sendMimeMessageAsync(message.getCredentialId(), message.getIdempotencyKey(), priority(message, GmailPriority.Transactional), mimeMessage);
+	}
+
+	/**
+	 * Add the given message to the {@link GmailSettings#getSpool()}, to be sent in the background. The body and attachments are rendered
+	 * on the calling thread, as views may depend on the current request.
+	 *
+	 * @param message the message to send
+	 * @return the id of the message in the spool
+	 * @throws GmailException if there is no spool, or the message could not be stored
+	 */
+	public String enqueue(GmailMessage message) {
+		return enqueue(message, 0);
+	}
+
+	/**
+	 * Add the given message to the {@link GmailSettings#getSpool()}, to be sent in the background once the given time is reached. The
+	 * spool stores the message straight away, so it is still sent at its time if the application restarts in between. The body and
+	 * attachments are rendered on the calling thread, as views may depend on the current request.
+	 *
+	 * @param message the message to send
+	 * @param sendAt when to send the message, in milliseconds since the epoch, or 0 to send it as soon as possible
+	 * @return the id of the message in the spool
+	 * @throws GmailException if there is no spool, or the message could not be stored
+	 */
+	public String enqueue(GmailMessage message, long sendAt) {
+		GmailSpool spool = gmailSettings.getSpool();
+		if (spool == null) {
+			throw new GmailException("No Gmail spool is configured");
+		}
+		validate(message);
+		GmailSpooledMessage spooled = createSpooledMessage(message);
+		if (sendAt > 0) {
+			spooled = spooled.sendAt(sendAt);
+		}
+		// normally started by the GmailModule, but a spool can't send until it has a mailer
+		if (!spool.isStarted()) {
+			spool.start(this);
+		}
+		spool.enqueue(spooled);
+		return spooled.getId();
+	}
+
+	/**
+	 * Render the body and attachments of the given message into a form which can be stored until it is sent.
+	 *
+	 * @param message the message to render
+	 * @return the rendered message
+	 */
+	protected GmailSpooledMessage createSpooledMessage(GmailMessage message) {
+		GmailRenderedView body = renderBody(message.getCredentialId(), message.getBody());
+		List<GmailSpooledMessage.SpooledAttachment> attachments = new ArrayList<>();
+		for (com.threewks.thundr.mail.Attachment attachment : renderAttachments(message.getCredentialId(), message.getAttachments())) {
+			attachments.add(new GmailSpooledMessage.SpooledAttachment(attachment.name(), attachment.disposition(), (GmailRenderedView) attachment.view()));
+		}
+		return new GmailSpooledMessage(message, body, attachments);
+	}
+
+	/**
+	 * Render the body and attachments of the given message once, so it can be sent to many recipients without being rebuilt for each.
+	 * The from, reply to, subject, body, attachments and credential of the template are used, its recipients are not.
+	 *
+	 * @param template the message to prepare
+	 * @return the prepared message, which can be shared between threads
+	 */
+	public GmailPreparedMessage prepare(GmailMessage template) {
+		validateFrom(template.getFrom());
+		String content = renderBody(template.getCredentialId(), template.getBody()).getBodyAsString();
+		List<com.threewks.thundr.mail.Attachment> attachments = renderAttachments(template.getCredentialId(), template.getAttachments());
+		InternetAddress fromAddress = Transformers.FormatInternetAddress.from(template.getFrom());
+		InternetAddress replyToAddress = template.getReplyTo() == null ? null : Transformers.FormatInternetAddress.from(template.getReplyTo());
+		long started = System.nanoTime();
+		try {
+			MimeMultipart multipart = createMultipart(content, attachments);
+			// saving a message with the body gives every part its final headers, such as the multipart boundary
+			MimeMessage email = new MimeMessage(getSession());
+			email.setContent(multipart);
+			email.saveChanges();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			multipart.writeTo(body);
+			GmailPreparedMessage prepared = new GmailPreparedMessage(getSession(), fromAddress, replyToAddress, template.getSubject(), email.getHeader("Content-Type", null),
+					body.toByteArray(), template.getCredentialId());
+			record(Stage.BuildMime, template.getCredentialId(), Outcome.Success, started);
+			return prepared;
+		} catch (MessagingException | IOException e) {
+			record(Stage.BuildMime, template.getCredentialId(), Outcome.Failure, started);
+			Logger.error("Failed to prepare email from: %s, subject %s: %s", fromAddress.getAddress(), template.getSubject(), e.getMessage());
+			throw new GmailException(e);
+		}
+	}
+
+	/**
+	 * Send a prepared message, blocking until Gmail has accepted it.
+	 *
+	 * @param prepared the message to send
+	 * @param recipients the recipients of this send. If it has a subject or credential id they are used instead of the prepared ones.
+	 * @return the id Gmail assigned to the sent message
+	 */
+	public String send(GmailPreparedMessage prepared, GmailMessage recipients) {
+		MimeMessage mimeMessage = createMimeMessage(prepared, recipients);
+		return sendMimeMessage(credentialId(prepared, recipients), recipients.getIdempotencyKey(), priority(recipients, GmailPriority.Transactional), mimeMessage);
+	}
+
+	/**
+	 * Send a prepared message without waiting for Gmail to accept it, as {@link #sendAsync(GmailMessage)}.
+	 *
+	 * @param prepared the message to send
+	 * @param recipients the recipients of this send. If it has a subject or credential id they are used instead of the prepared ones.
+	 * @return a future completed with the id Gmail assigned to the sent message, or exceptionally if the message could not be sent
+	 */
+	public CompletableFuture<String> sendAsync(GmailPreparedMessage prepared, GmailMessage recipients) {
+		MimeMessage mimeMessage;
+		try {
+			mimeMessage = createMimeMessage(prepared, recipients);
+		} catch (RuntimeException e) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return sendMimeMessageAsync(credentialId(prepared, recipients), recipients.getIdempotencyKey(), priority(recipients, GmailPriority.Transactional), mimeMessage);
+	}
+
+	/**
+	 * Send the given messages using Gmail batch requests, grouping up to {@link GmailSettings#getBatchSize()} sends into each request.
+	 * <p>
+	 * A failure to send one message does not prevent the others being sent. Sends which fail with a transient error, such as a rate
+	 * limit, are retried up to {@link GmailSettings#getBatchRetries()} times, without resending the messages which succeeded. Sends
+	 * in a batch request which failed without a response are not retried, as they may have been delivered. Batches take their quota
+	 * as {@link GmailPriority#Bulk} sends.
+	 *
+	 * @param messages the messages to send
+	 * @return the result of each send, in the same order as the given messages
+	 */
+	public List<GmailSendResult> sendBatch(List<GmailMessage> messages) {
+		return sendBatch(messages, message -> {
+			validate(message);
+			return createMimeMessage(message);
+		}, GmailMessage::getCredentialId);
+	}
+
+	/**
+	 * Send a prepared message to each of the given recipients using Gmail batch requests, as {@link #sendBatch(List)}.
+	 *
+	 * @param prepared the message to send
+	 * @param recipients the recipients, and optionally subject and credential, of each send
+	 * @return the result of each send, in the same order as the given recipients
+	 */
+	public List<GmailSendResult> sendBatch(GmailPreparedMessage prepared, List<GmailMessage> recipients) {
+		return sendBatch(recipients, message -> createMimeMessage(prepared, message), message -> credentialId(prepared, message));
+	}
 
-		InternetAddress fromAddress = Transformers.FormatInternetAddress.from(from);
+	/**
+	 * Send an email to each of the given recipients, a mail merge. The recipients are read one at a time as there is room for more
+	 * emails in flight, so memory stays flat however many recipients there are.
+	 * <p>
+	 * Each recipient's email is created and rendered on the {@link GmailSettings#getMergeExecutor()}, a fork join pool by default, and
+	 * then sent as {@link #sendAsync(GmailMessage)}. At most {@link GmailSettings#getMergeMaxInFlight()} emails are rendered or sent at
+	 * once. As views are rendered off the calling thread they can't depend on the current request. Emails are sent in the
+	 * {@link GmailPriority#Bulk} lane unless they set their own priority.
+	 * <p>
+	 * eg: to fill in the same template for each recipient
+	 * <pre>
+	 * mailer.merge(customers, customer -&gt; new GmailMessage().from("from@email.com").to(customer.getEmail()).subject("Welcome")
+	 *         .body(new StringView(String.format(template, customer.getName()))), null);
+	 * </pre>
+	 *
+	 * @param recipients the data of each recipient, consumed on the calling thread
+	 * @param messages creates the email to send to a recipient
+	 * @param results given the result of each send as it completes, one at a time but not in the order of the recipients, or null
+	 * @return the number of emails sent and failed, once every email has been sent or has failed
+	 * @throws GmailException if the calling thread is interrupted, emails already in flight are still sent
+	 */
+	public <T> GmailMergeResult merge(Iterator<? extends T> recipients, Function<? super T, GmailMessage> messages, Consumer<GmailSendResult> results) {
+		GmailMergeResult merged = new GmailMergeResult();
+		int maxInFlight = gmailSettings.getMergeMaxInFlight();
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		try {
+			while (recipients.hasNext()) {
+				inFlight.acquire();
+				mergeRecipient(recipients.next(), messages, results, merged, inFlight);
+			}
+			inFlight.acquire(maxInFlight);
+			return merged;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GmailException(e, "Interrupted merging emails after %s were sent", merged.getSent());
+		}
+	}
+
+	/**
+	 * Send an email to each of the given recipients, as {@link #merge(Iterator, Function, Consumer)}.
+	 */
+	public <T> GmailMergeResult merge(Stream<? extends T> recipients, Function<? super T, GmailMessage> messages, Consumer<GmailSendResult> results) {
+		return merge(recipients.iterator(), messages, results);
+	}
+
+	private <T> void mergeRecipient(T recipient, Function<? super T, GmailMessage> messages, Consumer<GmailSendResult> results, GmailMergeResult merged, Semaphore inFlight) {
+		renderAndSendAsync(recipient, messages, result -> completeMerge(result, results, merged, inFlight));
+	}
+
+	/**
+	 * Create the email for the given recipient and render it on the {@link GmailSettings#getMergeExecutor()}, then send it.
+	 *
+	 * @param recipient the data the email is created from
+	 * @param messages creates the email to send to the recipient
+	 * @param completion given the result once the email is sent, or has failed to be created or sent
+	 */
+	<T> void renderAndSendAsync(T recipient, Function<? super T, GmailMessage> messages, Consumer<GmailSendResult> completion) {
+		try {
+			gmailSettings.getMergeExecutor().execute(() -> {
+				GmailMessage message = null;
+				try {
+					message = messages.apply(recipient);
+					validate(message);
+					MimeMessage mimeMessage = createMimeMessage(message);
+					GmailMessage sending = message;
+					sendMimeMessageAsync(message.getCredentialId(), message.getIdempotencyKey(), priority(message, GmailPriority.Bulk), mimeMessage).whenComplete((id, error) -> {
+						completion.accept(error == null ? GmailSendResult.success(sending, id)
+								: GmailSendResult.failure(sending, error instanceof RuntimeException ? (RuntimeException) error : new GmailException(error)));
+					});
+				} catch (RuntimeException e) {
+					Logger.error("Failed to create email: %s", e.getMessage());
+					completion.accept(GmailSendResult.failure(message, e));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			completion.accept(GmailSendResult.failure(null, new GmailException(e, "Gmail merge executor rejected an email")));
+		}
+	}
+
+	/**
+	 * Create a sink to connect a stream of emails to, which sends them as fast as Gmail accepts them and publishes the result of each.
+	 * At most {@link GmailSettings#getMergeMaxInFlight()} emails are requested from the stream before their results are delivered.
+	 *
+	 * @return a new sink, for a single stream of emails
+	 */
+	public GmailSink sink() {
+		return new GmailSink(this, gmailSettings.getMergeMaxInFlight());
+	}
+
+	private static void completeMerge(GmailSendResult result, Consumer<GmailSendResult> results, GmailMergeResult merged, Semaphore inFlight) {
+		try {
+			merged.record(result);
+			if (results != null) {
+				synchronized (merged) {
+					results.accept(result);
+				}
+			}
+		} catch (RuntimeException e) {
+			Logger.warn("Merge result handler failed: %s", e.getMessage());
+		} finally {
+			inFlight.release();
+		}
+	}
+
+	private List<GmailSendResult> sendBatch(List<GmailMessage> messages, Function<GmailMessage, MimeMessage> mimeMessages, Function<GmailMessage, String> credentialIds) {
+		GmailSendResult[] results = new GmailSendResult[messages.size()];
+		Message[] prepared = new Message[messages.size()];
+		String[] idempotencyKeys = new String[messages.size()];
+		GmailDedupeLedger ledger = gmailSettings.getDedupeLedger();
+		Map<String, List<Integer>> byCredential = new LinkedHashMap<>();
+		for (int i = 0; i < messages.size(); i++) {
+			GmailMessage message = messages.get(i);
+			try {
+				MimeMessage mimeMessage = mimeMessages.apply(message);
+				if (ledger != null) {
+					idempotencyKeys[i] = message.getIdempotencyKey() == null ? createIdempotencyKey(mimeMessage) : message.getIdempotencyKey();
+					String sent = ledger.find(idempotencyKeys[i]);
+					if (sent != null) {
+						Logger.info("Not sending email with idempotency key %s, it was already sent as %s", idempotencyKeys[i], sent);
+						results[i] = GmailSendResult.success(message, sent);
+						continue;
+					}
+				}
+				String credentialId = credentialIds.apply(message);
+				if (credentialId == null && gmailSettings.getCredentialPool() != null) {
+					credentialId = gmailSettings.getCredentialPool().select(fromAddress(mimeMessage), Collections.<String>emptySet(), gmailSettings.getCircuitBreaker(),
+							gmailSettings.getRateLimiter());
+				}
+				String messageCredentialId = credentialId;
+				prepared[i] = time(Stage.Encode, messageCredentialId, () -> createMessageWithEmail(mimeMessage));
+				byCredential.computeIfAbsent(credentialId, key -> new ArrayList<>()).add(i);
+			} catch (RuntimeException e) {
+				results[i] = GmailSendResult.failure(message, e);
+			}
+		}
+
+		for (Map.Entry<String, List<Integer>> credentialMessages : byCredential.entrySet()) {
+			String credentialId = credentialMessages.getKey();
+			List<Integer> pending = credentialMessages.getValue();
+			try {
+				// the circuit is checked once before loading the client and then before each later batch request, so a trial request
+				// through a half open circuit covers both the client and the first batch
+				checkCircuit(credentialId);
+				boolean circuitChecked = true;
+				Gmail gmail;
+				try {
+					gmail = loadClient(credentialId);
+				} catch (RuntimeException e) {
+					recordCircuit(credentialId, e);
+					throw e;
+				}
+				long started = now();
+				AtomicLong retryAfter = new AtomicLong();
+				for (int attempt = 0; !pending.isEmpty(); attempt++) {
+					if (attempt > 0) {
+						sleep(Math.max(retryPolicy().backOffMillis(attempt), retryAfter.getAndSet(0)));
+					}
+					boolean canRetry = attempt < gmailSettings.getBatchRetries() && now() - started < retryPolicy().getBudgetMillis();
+					List<Integer> retry = new ArrayList<>();
+					for (int start = 0; start < pending.size(); start += gmailSettings.getBatchSize()) {
+						List<Integer> chunk = pending.subList(start, Math.min(pending.size(), start + gmailSettings.getBatchSize()));
+						if (!circuitChecked) {
+							checkCircuit(credentialId);
+						}
+						circuitChecked = false;
+						try {
+							acquireQuota(credentialId, chunk.size() * GmailRateLimiter.SEND_UNITS, GmailPriority.Bulk);
+						} catch (RuntimeException e) {
+							// nothing was sent, so this releases the circuit rather than counting as a failure
+							recordCircuit(credentialId, e);
+							throw e;
+						}
+						sendBatchRequest(gmail, credentialId, chunk, messages, prepared, idempotencyKeys, results, canRetry ? retry : null, retryAfter);
+					}
+					pending = retry;
+				}
+			} catch (RuntimeException e) {
+				for (Integer index : pending) {
+					if (results[index] == null) {
+						results[index] = GmailSendResult.failure(messages.get(index), e);
+					}
+				}
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private void sendBatchRequest(Gmail gmail, String credentialId, List<Integer> chunk, List<GmailMessage> messages, Message[] prepared, String[] idempotencyKeys,
+			GmailSendResult[] results, List<Integer> retry, AtomicLong retryAfter) {
+		try {
+			BatchRequest batch = newBatch(gmail);
+			for (Integer index : chunk) {
+				withFields(gmail.users().messages().send("me", prepared[index]), Message.class).queue(batch, new JsonBatchCallback<Message>() {
+					@Override
+					public void onSuccess(Message sent, HttpHeaders responseHeaders) {
+						recordCircuit(credentialId, null);
+						if (idempotencyKeys[index] != null) {
+							gmailSettings.getDedupeLedger().record(idempotencyKeys[index], sent.getId());
+						}
+						results[index] = GmailSendResult.success(messages.get(index), sent.getId());
+					}
+
+					@Override
+					public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+						recordCircuit(credentialId, new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders).build());
+						if (retry != null && retryPolicy().isRetryable(error)) {
+							retry.add(index);
+							retryAfter.accumulateAndGet(retryPolicy().retryAfterMillis(responseHeaders), Math::max);
+						} else {
+							Logger.error("Failed to send email in batch: %s", error.getMessage());
+							results[index] = GmailSendResult.failure(messages.get(index), new GmailException("Failed to send email: %s %s", error.getCode(), error.getMessage()));
+						}
+					}
+				});
+			}
+			timeRequest(Stage.Send, credentialId, () -> {
+				batch.execute();
+				return null;
+			});
+		} catch (IOException e) {
+			// the sends which didn't get a response may or may not have been delivered, so like a single send they fail rather than
+			// being retried, only the parts which already got an error response are retried
+			Logger.error("Failed to send batch of emails: %s", e.getMessage());
+			recordCircuit(credentialId, e);
+			for (Integer index : chunk) {
+				if (results[index] == null && (retry == null || !retry.contains(index))) {
+					results[index] = GmailSendResult.failure(messages.get(index), new GmailException(e));
+				}
+			}
+		}
+	}
+
+	protected BatchRequest newBatch(Gmail gmail) {
+		return gmail.batch().setBatchUrl(new GenericUrl(gmailSettings.getBatchUrl()));
+	}
+
+	/**
+	 * Wait before retrying a request.
+	 *
+	 * @param millis how long to wait
+	 */
+	protected void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GmailException(e, "Interrupted waiting to retry Gmail request");
+		}
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Make a Gmail request, retrying it on the calling thread while the {@link GmailSettings#getRetryPolicy()} allows.
+	 *
+	 * @param request the request
+	 * @return the result of the request
+	 * @throws IOException the failure of the last attempt
+	 */
+	protected <T> T executeWithRetries(GmailRequest<T> request) throws IOException {
+		long started = now();
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return request.execute();
+			} catch (IOException e) {
+				long delay = retryPolicy().retryDelay(e, attempt, now() - started);
+				if (delay < 0) {
+					throw e;
+				}
+				Logger.warn("Gmail request failed on attempt %s, retrying in %sms: %s", attempt, delay, e.getMessage());
+				sleep(delay);
+			}
+		}
+	}
+
+	private GmailRetryPolicy retryPolicy() {
+		return gmailSettings.getRetryPolicy();
+	}
+
+	/**
+	 * Wait until the credential has the quota for a request, if requests are rate limited.
+	 *
+	 * @param credentialId the credential the request is made with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param units the quota units the request uses
+	 */
+	protected void acquireQuota(String credentialId, long units) {
+		acquireQuota(credentialId, units, GmailPriority.Transactional);
+	}
+
+	/**
+	 * Wait until the credential has the quota for a request of the given priority, if requests are rate limited.
+	 *
+	 * @param credentialId the credential the request is made with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param units the quota units the request uses
+	 * @param priority the lane of the request
+	 */
+	protected void acquireQuota(String credentialId, long units, GmailPriority priority) {
+		GmailRateLimiter rateLimiter = gmailSettings.getRateLimiter();
+		if (rateLimiter != null) {
+			rateLimiter.acquire(credentialKey(credentialId), units, priority);
+		}
+	}
+
+	/**
+	 * Take the quota for a request without waiting for it, if requests are rate limited.
+	 *
+	 * @param credentialId the credential the request is made with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param units the quota units the request uses
+	 * @return how long to wait before making the request
+	 */
+	protected long reserveQuota(String credentialId, long units) {
+		GmailRateLimiter rateLimiter = gmailSettings.getRateLimiter();
+		return rateLimiter == null ? 0 : rateLimiter.reserve(credentialKey(credentialId), units);
+	}
+
+	/**
+	 * Take the quota for a bulk request if it is available without using the quota reserved for transactional requests, if requests
+	 * are rate limited.
+	 *
+	 * @param credentialId the credential the request is made with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param units the quota units the request uses
+	 * @return 0 if the quota was taken, otherwise how long to wait before trying again
+	 */
+	protected long reserveBulkQuota(String credentialId, long units) {
+		GmailRateLimiter rateLimiter = gmailSettings.getRateLimiter();
+		return rateLimiter == null ? 0 : rateLimiter.reserveBulk(credentialKey(credentialId), units);
+	}
+
+	/**
+	 * Give back quota taken for a request which wasn't made, if requests are rate limited.
+	 *
+	 * @param credentialId the credential the quota was taken for, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param units the quota units taken
+	 */
+	protected void releaseQuota(String credentialId, long units) {
+		GmailRateLimiter rateLimiter = gmailSettings.getRateLimiter();
+		if (rateLimiter != null) {
+			rateLimiter.release(credentialKey(credentialId), units);
+		}
+	}
+
+	/**
+	 * Make a request with the given credential through the {@link GmailSettings#getCircuitBreaker()}, failing straight away if the
+	 * credential's circuit is open.
+	 *
+	 * @param credentialId the credential the request is made with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param request the request
+	 * @return the result of the request
+	 * @throws IOException the failure of the request
+	 */
+	protected <T> T executeThroughCircuit(String credentialId, GmailRequest<T> request) throws IOException {
+		GmailCircuitBreaker circuitBreaker = gmailSettings.getCircuitBreaker();
+		if (circuitBreaker == null) {
+			return request.execute();
+		}
+		String key = credentialKey(credentialId);
+		circuitBreaker.allowRequest(key);
+		try {
+			T result = request.execute();
+			circuitBreaker.onSuccess(key);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			circuitBreaker.onFailure(key, e);
+			throw e;
+		}
+	}
+
+	private void checkCircuit(String credentialId) {
+		GmailCircuitBreaker circuitBreaker = gmailSettings.getCircuitBreaker();
+		if (circuitBreaker != null) {
+			circuitBreaker.allowRequest(credentialKey(credentialId));
+		}
+	}
+
+	private void releaseCircuit(String credentialId) {
+		GmailCircuitBreaker circuitBreaker = gmailSettings.getCircuitBreaker();
+		if (circuitBreaker != null) {
+			circuitBreaker.release(credentialKey(credentialId));
+		}
+	}
+
+	private void recordCircuit(String credentialId, Throwable error) {
+		GmailCircuitBreaker circuitBreaker = gmailSettings.getCircuitBreaker();
+		if (circuitBreaker != null) {
+			if (error == null) {
+				circuitBreaker.onSuccess(credentialKey(credentialId));
+			} else {
+				circuitBreaker.onFailure(credentialKey(credentialId), error);
+			}
+		}
+	}
+
+	private static String credentialKey(String credentialId) {
+		return credentialId == null ? CREDENTIAL_USER_ID : credentialId;
+	}
+
+	/**
+	 * A request to Gmail which can be retried.
+	 */
+	protected interface GmailRequest<T> {
+		T execute() throws IOException;
+	}
+
+	protected void validate(GmailMessage message) {
+		validateFrom(message.getFrom());
+		validateRecipients(message.getTo(), message.getCc(), message.getBcc());
+	}
+
+	/**
+	 * Build the email to send to the given recipients from a prepared message.
+	 *
+	 * @param prepared the prepared message
+	 * @param recipients the recipients, and optionally subject, of the email
+	 * @return MimeMessage to be used to send email.
+	 */
+	protected MimeMessage createMimeMessage(GmailPreparedMessage prepared, GmailMessage recipients) {
+		validateRecipients(recipients.getTo(), recipients.getCc(), recipients.getBcc());
+		String credentialId = credentialId(prepared, recipients);
+		long started = System.nanoTime();
+		try {
+			MimeMessage mimeMessage = prepared.createMimeMessage(getInternetAddresses(recipients.getTo()), getInternetAddresses(recipients.getCc()),
+					getInternetAddresses(recipients.getBcc()), recipients.getSubject());
+			record(Stage.BuildMime, credentialId, Outcome.Success, started);
+			return mimeMessage;
+		} catch (MessagingException e) {
+			record(Stage.BuildMime, credentialId, Outcome.Failure, started);
+			Logger.error("Failed to create email to: %s, subject %s: %s", recipients.getTo().keySet(), recipients.getSubject(), e.getMessage());
+			throw new GmailException(e);
+		}
+	}
+
+	private String credentialId(GmailPreparedMessage prepared, GmailMessage recipients) {
+		return recipients.getCredentialId() == null ? prepared.getCredentialId() : recipients.getCredentialId();
+	}
+
+	/**
+	 * Render the body and attachments of the given message and build the email to send.
+	 *
+	 * @param message the message to build
+	 * @return MimeMessage to be used to send email.
+	 */
+	protected MimeMessage createMimeMessage(GmailMessage message) {
+		String content = renderBody(message.getCredentialId(), message.getBody()).getBodyAsString();
+		List<com.threewks.thundr.mail.Attachment> attachments = renderAttachments(message.getCredentialId(), message.getAttachments());
+		return time(Stage.BuildMime, message.getCredentialId(), () -> buildMimeMessage(message, content, attachments));
+	}
+
+	private MimeMessage buildMimeMessage(GmailMessage message, String content, List<com.threewks.thundr.mail.Attachment> attachments) {
+		InternetAddress fromAddress = Transformers.FormatInternetAddress.from(message.getFrom());
 		InternetAddress replyToAddress = null;
 
 		Set<InternetAddress> toAddresses = null;
 		Set<InternetAddress> ccAddresses = null;
 		Set<InternetAddress> bccAddresses = null;
 
-		if (Expressive.isNotEmpty(to)) {
-			toAddresses = getInternetAddresses(to);
+		if (Expressive.isNotEmpty(message.getTo())) {
+			toAddresses = getInternetAddresses(message.getTo());
+		}
+		if (Expressive.isNotEmpty(message.getCc())) {
+			ccAddresses = getInternetAddresses(message.getCc());
 		}
-		if (Expressive.isNotEmpty(cc)) {
-			ccAddresses = getInternetAddresses(cc);
+		if (Expressive.isNotEmpty(message.getBcc())) {
+			bccAddresses = getInternetAddresses(message.getBcc());
 		}
-		if (Expressive.isNotEmpty(bcc)) {
-			bccAddresses = getInternetAddresses(bcc);
+		if (message.getReplyTo() != null) {
+			replyToAddress = Transformers.FormatInternetAddress.from(message.getReplyTo());
+		}
+
+		return createEmailWithAttachment(toAddresses, fromAddress, ccAddresses, bccAddresses,
+				replyToAddress, message.getSubject(), content, attachments);
+	}
+
+	private GmailRenderedView renderBody(String credentialId, Object body) {
+		return time(Stage.RenderBody, credentialId, () -> renderView(body));
+	}
+
+	/**
+	 * Render the views of the given attachments up front, so rendering is timed apart from building the email.
+	 */
+	private List<com.threewks.thundr.mail.Attachment> renderAttachments(String credentialId, List<com.threewks.thundr.mail.Attachment> attachments) {
+		if (attachments == null || attachments.isEmpty()) {
+			return attachments;
 		}
-		if (replyTo != null) {
-			replyToAddress = Transformers.FormatInternetAddress.from(replyTo);
+		return time(Stage.RenderAttachments, credentialId, () -> {
+			List<com.threewks.thundr.mail.Attachment> rendered = new ArrayList<>(attachments.size());
+			for (com.threewks.thundr.mail.Attachment attachment : attachments) {
+				rendered.add(new com.threewks.thundr.mail.Attachment(attachment.name(), renderView(attachment.view()), attachment.disposition()));
+			}
+			return rendered;
+		});
+	}
+
+	/**
+	 * @param credentialId the credential to send with, or null to send through the {@link GmailSettings#getCredentialPool()} if there is
+	 *                     one and with {@link #CREDENTIAL_USER_ID} if not
+	 * @param mimeMessage the email to send
+	 * @return the id Gmail assigned to the sent message
+	 */
+	protected String sendMimeMessage(String credentialId, MimeMessage mimeMessage) {
+		return sendMimeMessage(credentialId, null, mimeMessage);
+	}
+
+	/**
+	 * Send an email, unless the {@link GmailSettings#getDedupeLedger()} shows an email with the same idempotency key was already sent.
+	 *
+	 * @param credentialId the credential to send with, or null to send through the {@link GmailSettings#getCredentialPool()} if there is
+	 *                     one and with {@link #CREDENTIAL_USER_ID} if not
+	 * @param idempotencyKey identifies the email, or null to identify it by {@link #createIdempotencyKey(MimeMessage)}
+	 * @param mimeMessage the email to send
+	 * @return the id Gmail assigned to the sent message, or to the message already sent with the same key
+	 */
+	protected String sendMimeMessage(String credentialId, String idempotencyKey, MimeMessage mimeMessage) {
+		return sendMimeMessage(credentialId, idempotencyKey, GmailPriority.Transactional, mimeMessage);
+	}
+
+	/**
+	 * Send an email in the given lane, as {@link #sendMimeMessage(String, String, MimeMessage)}.
+	 */
+	protected String sendMimeMessage(String credentialId, String idempotencyKey, GmailPriority priority, MimeMessage mimeMessage) {
+		long started = System.nanoTime();
+		try {
+			String id = sendDeduped(credentialId, idempotencyKey, priority, mimeMessage);
+			recordLane(Stage.Deliver, priority, Outcome.Success, started);
+			return id;
+		} catch (RuntimeException e) {
+			recordLane(Stage.Deliver, priority, Outcome.Failure, started);
+			throw e;
 		}
+	}
 
-		MimeMessage mimeMessage = createEmailWithAttachment(toAddresses, fromAddress, ccAddresses, bccAddresses,
-				replyToAddress, subject, content, attachments);
+	private String sendDeduped(String credentialId, String idempotencyKey, GmailPriority priority, MimeMessage mimeMessage) {
+		GmailDedupeLedger ledger = gmailSettings.getDedupeLedger();
+		if (ledger == null) {
+			return sendNow(credentialId, priority, mimeMessage);
+		}
+		String key = idempotencyKey == null ? createIdempotencyKey(mimeMessage) : idempotencyKey;
+		String sent = ledger.find(key);
+		if (sent != null) {
+			Logger.info("Not sending email with idempotency key %s, it was already sent as %s", key, sent);
+			return sent;
+		}
+		String id = sendNow(credentialId, priority, mimeMessage);
+		ledger.record(key, id);
+		return id;
+	}
 
-		Message message = createMessageWithEmail(mimeMessage);
+	private String sendNow(String credentialId, GmailPriority priority, MimeMessage mimeMessage) {
+		GmailCredentialPool pool = gmailSettings.getCredentialPool();
+		if (credentialId == null && pool != null) {
+			return sendThroughPool(pool, priority, mimeMessage);
+		}
+		GmailMimeContent email = createMediaContent(mimeMessage);
 		try {
-			getClient().users().messages().send("me", message).execute();
+			return executeWithRetries(() -> executeThroughCircuit(credentialId, () -> {
+				acquireQuota(credentialId, GmailRateLimiter.SEND_UNITS, priority);
+				return sendOnce(credentialId, mimeMessage, email);
+			}));
 		} catch (IOException e) {
 			Logger.error("Failed to send email: %s", e.getMessage());
 			throw new GmailException(e);
 		}
 	}
 
+	/**
+	 * Send an email on the {@link GmailSendExecutor}. Retries, and sends waiting for quota, are scheduled to run on the executor once
+	 * their wait has passed rather than holding a sending thread while they wait.
+	 *
+	 * @param credentialId the credential to send with, or null to send through the {@link GmailSettings#getCredentialPool()} if there is
+	 *                     one and with {@link #CREDENTIAL_USER_ID} if not
+	 * @param mimeMessage the email to send
+	 * @return a future completed with the id Gmail assigned to the sent message, or exceptionally if the message could not be sent
+	 */
+	protected CompletableFuture<String> sendMimeMessageAsync(String credentialId, MimeMessage mimeMessage) {
+		return sendMimeMessageAsync(credentialId, null, mimeMessage);
+	}
+
+	/**
+	 * Send an email on the {@link GmailSendExecutor}, as {@link #sendMimeMessage(String, String, MimeMessage)}.
+	 */
+	protected CompletableFuture<String> sendMimeMessageAsync(String credentialId, String idempotencyKey, MimeMessage mimeMessage) {
+		return sendMimeMessageAsync(credentialId, idempotencyKey, GmailPriority.Transactional, mimeMessage);
+	}
+
+	/**
+	 * Send an email on the {@link GmailSendExecutor} in the given lane, as {@link #sendMimeMessage(String, String, MimeMessage)}.
+	 */
+	protected CompletableFuture<String> sendMimeMessageAsync(String credentialId, String idempotencyKey, GmailPriority priority, MimeMessage mimeMessage) {
+		long started = System.nanoTime();
+		CompletableFuture<String> result = new CompletableFuture<>();
+		sendDedupedAsync(credentialId, idempotencyKey, priority, mimeMessage).whenComplete((id, error) -> {
+			recordLane(Stage.Deliver, priority, error == null ? Outcome.Success : Outcome.Failure, started);
+			if (error == null) {
+				result.complete(id);
+			} else {
+				result.completeExceptionally(error);
+			}
+		});
+		return result;
+	}
+
+	private CompletableFuture<String> sendDedupedAsync(String credentialId, String idempotencyKey, GmailPriority priority, MimeMessage mimeMessage) {
+		GmailDedupeLedger ledger = gmailSettings.getDedupeLedger();
+		if (ledger == null) {
+			return sendNowAsync(credentialId, priority, mimeMessage);
+		}
+		CompletableFuture<String> result = new CompletableFuture<>();
+		String key;
+		try {
+			key = idempotencyKey == null ? createIdempotencyKey(mimeMessage) : idempotencyKey;
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		String sent = ledger.find(key);
+		if (sent != null) {
+			Logger.info("Not sending email with idempotency key %s, it was already sent as %s", key, sent);
+			result.complete(sent);
+			return result;
+		}
+		sendNowAsync(credentialId, priority, mimeMessage).whenComplete((id, error) -> {
+			if (error == null) {
+				ledger.record(key, id);
+				result.complete(id);
+			} else {
+				result.completeExceptionally(error);
+			}
+		});
+		return result;
+	}
+
+	private CompletableFuture<String> sendNowAsync(String credentialId, GmailPriority priority, MimeMessage mimeMessage) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		GmailCredentialPool pool = gmailSettings.getCredentialPool();
+		if (credentialId == null && pool != null) {
+			sendThroughPoolAsync(pool, priority, mimeMessage, fromAddress(mimeMessage), new HashSet<>(), null, result);
+			return result;
+		}
+		GmailMimeContent email = createMediaContent(mimeMessage);
+		sendAttempt(credentialId, priority, mimeMessage, email, 1, 0, now(), result);
+		return result;
+	}
+
+	/**
+	 * Send through an account chosen by the pool, moving on to the next account while accounts reject the email without sending it.
+	 */
+	private String sendThroughPool(GmailCredentialPool pool, GmailPriority priority, MimeMessage mimeMessage) {
+		String fromAddress = fromAddress(mimeMessage);
+		Set<String> tried = new HashSet<>();
+		RuntimeException failure = null;
+		for (String credentialId = acquireCredential(pool, fromAddress, tried); credentialId != null; credentialId = acquireCredential(pool, fromAddress, tried)) {
+			tried.add(credentialId);
+			try {
+				return sendNow(credentialId, priority, mimeMessage);
+			} catch (RuntimeException e) {
+				if (!canFailOver(e)) {
+					throw e;
+				}
+				Logger.warn("Failed to send email through %s, trying the next account: %s", credentialId, e.getMessage());
+				failure = e;
+			} finally {
+				pool.release(credentialId);
+			}
+		}
+		throw failure != null ? failure : new GmailException("No account in the credential pool can send email from %s", fromAddress);
+	}
+
+	private void sendThroughPoolAsync(GmailCredentialPool pool, GmailPriority priority, MimeMessage mimeMessage, String fromAddress, Set<String> tried, Throwable failure,
+			CompletableFuture<String> result) {
+		String credentialId = acquireCredential(pool, fromAddress, tried);
+		if (credentialId == null) {
+			result.completeExceptionally(failure != null ? failure : new GmailException("No account in the credential pool can send email from %s", fromAddress));
+			return;
+		}
+		tried.add(credentialId);
+		sendNowAsync(credentialId, priority, mimeMessage).whenComplete((id, error) -> {
+			pool.release(credentialId);
+			if (error == null) {
+				result.complete(id);
+			} else if (canFailOver(error)) {
+				Logger.warn("Failed to send email through %s, trying the next account: %s", credentialId, error.getMessage());
+				sendThroughPoolAsync(pool, priority, mimeMessage, fromAddress, tried, error, result);
+			} else {
+				result.completeExceptionally(error);
+			}
+		});
+	}
+
+	private String acquireCredential(GmailCredentialPool pool, String fromAddress, Set<String> tried) {
+		return pool.acquire(fromAddress, tried, gmailSettings.getCircuitBreaker(), gmailSettings.getRateLimiter());
+	}
+
+	/**
+	 * @return true if the failure shows the email wasn't sent because of the account, so it can safely be sent through another. A
+	 * connection failure may have happened after Gmail accepted the email, so isn't.
+	 */
+	private static boolean canFailOver(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpResponseException) {
+				int status = ((HttpResponseException) cause).getStatusCode();
+				return status == 401 || status == 403 || status == 429;
+			}
+			if (cause instanceof IOException) {
+				return false;
+			}
+		}
+		// rejected before a request was made, because the account's circuit is open, its quota is used up or it couldn't be loaded
+		return true;
+	}
+
+	/**
+	 * Identify an email by a hash of its sender, recipients, subject, body and attachments, so an email sent again with the same content
+	 * is recognised by the {@link GmailSettings#getDedupeLedger()}.
+	 *
+	 * @param mimeMessage the email
+	 * @return the idempotency key of the email
+	 */
+	protected String createIdempotencyKey(MimeMessage mimeMessage) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String header : IDEMPOTENCY_KEY_HEADERS) {
+				digest.update(String.valueOf(mimeMessage.getHeader(header, ",")).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			digestContent(digest, mimeMessage);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+		} catch (MessagingException | IOException | NoSuchAlgorithmException e) {
+			Logger.error("Failed to create idempotency key for email: %s", e.getMessage());
+			throw new GmailException(e);
+		}
+	}
+
+	/**
+	 * Hash the decoded content of each part rather than the encoded email, as multipart boundaries are different every time an email
+	 * is built.
+	 */
+	private static void digestContent(MessageDigest digest, Part part) throws MessagingException, IOException {
+		// the content type header of a built email isn't set until it is saved, so the content is checked instead
+		Object content = part.getContent();
+		if (content instanceof Multipart) {
+			Multipart multipart = (Multipart) content;
+			for (int i = 0; i < multipart.getCount(); i++) {
+				digestContent(digest, multipart.getBodyPart(i));
+			}
+		} else {
+			digest.update(String.valueOf(part.getFileName()).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			// streamed into the digest rather than copied, as attachments can be large
+			try (OutputStream data = new DigestOutputStream(new DiscardingOutputStream(), digest)) {
+				part.getDataHandler().writeTo(data);
+			}
+		}
+		digest.update((byte) 0);
+	}
+
+	private static String fromAddress(MimeMessage mimeMessage) {
+		try {
+			Address[] from = mimeMessage.getFrom();
+			return from != null && from.length > 0 && from[0] instanceof InternetAddress ? ((InternetAddress) from[0]).getAddress() : null;
+		} catch (MessagingException e) {
+			return null;
+		}
+	}
+
+	private void sendAttempt(String credentialId, GmailPriority priority, MimeMessage mimeMessage, GmailMimeContent email, int attempt, long delay, long started,
+			CompletableFuture<String> result) {
+		long wait;
+		boolean circuitChecked = false;
+		try {
+			// check the circuit before taking quota, so sends through a broken credential fail without waiting
+			checkCircuit(credentialId);
+			circuitChecked = true;
+			if (priority == GmailPriority.Bulk) {
+				// bulk sends only take quota once it is free, so they wait out any retry delay before looking and look again if it isn't
+				long bulkWait = delay > 0 ? delay : reserveBulkQuota(credentialId, GmailRateLimiter.SEND_UNITS);
+				if (bulkWait > 0) {
+					// the trial request through a half open circuit isn't held while waiting, the next attempt checks the circuit again
+					releaseCircuit(credentialId);
+					gmailSendExecutor.delay(bulkWait).whenComplete((ignored, error) -> {
+						if (error == null) {
+							sendAttempt(credentialId, priority, mimeMessage, email, attempt, 0, started, result);
+						} else {
+							result.completeExceptionally(error);
+						}
+					});
+					return;
+				}
+				wait = 0;
+			} else {
+				wait = Math.max(delay, reserveQuota(credentialId, GmailRateLimiter.SEND_UNITS));
+			}
+		} catch (GmailException e) {
+			if (circuitChecked) {
+				// the quota rejected the send, nothing was sent so this releases the circuit rather than counting as a failure
+				recordCircuit(credentialId, e);
+			}
+			Logger.error("Failed to send email: %s", e.getMessage());
+			result.completeExceptionally(e);
+			return;
+		}
+		long queued = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+		AtomicBoolean ran = new AtomicBoolean();
+		gmailSendExecutor.submit(() -> {
+			ran.set(true);
+			recordLane(Stage.Queue, priority, Outcome.Success, queued);
+			return sendOnce(credentialId, mimeMessage, email);
+		}, wait, priority).whenComplete((id, error) -> {
+			if (error != null && !ran.get()) {
+				// the executor turned the send away, so the quota taken for it is given back
+				releaseQuota(credentialId, GmailRateLimiter.SEND_UNITS);
+			}
+			recordCircuit(credentialId, error);
+			if (error == null) {
+				result.complete(id);
+				return;
+			}
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			long retryDelay = retryPolicy().retryDelay(cause, attempt, now() - started);
+			if (retryDelay < 0) {
+				Logger.error("Failed to send email: %s", cause.getMessage());
+				result.completeExceptionally(cause instanceof RuntimeException ? cause : new GmailException(cause));
+			} else {
+				Logger.warn("Failed to send email on attempt %s, retrying in %sms: %s", attempt, retryDelay, cause.getMessage());
+				sendAttempt(credentialId, priority, mimeMessage, email, attempt + 1, retryDelay, started, result);
+			}
+		});
+	}
+
+	private String sendOnce(String credentialId, MimeMessage mimeMessage, GmailMimeContent email) throws IOException {
+		Gmail gmail = loadClient(credentialId);
+		long size = timeRequest(Stage.Encode, credentialId, email::getLength);
+		if (isResumableUpload(size)) {
+			return timeRequest(Stage.Send, credentialId, () -> uploadResumable(gmail, "me/messages/send", email, Message.class)).getId();
+		}
+		if (isMediaUpload(size)) {
+			Gmail.Users.Messages.Send send = withGzip(withFields(gmail.users().messages().send("me", null, email), Message.class), size);
+			send.getMediaHttpUploader().setDirectUploadEnabled(true);
+			return timeRequest(Stage.Send, credentialId, send::execute).getId();
+		}
+		if (size >= gmailSettings.getMediaUploadThreshold()) {
+			return timeRequest(Stage.Send, credentialId, () -> executeRaw(gmail, "me/messages/send", GmailRawContent.message(email), Message.class)).getId();
+		}
+		Message message = time(Stage.Encode, credentialId, () -> createMessage(mimeMessage, email));
+		return timeRequest(Stage.Send, credentialId, () -> withGzip(withFields(gmail.users().messages().send("me", message), Message.class), size).execute()).getId();
+	}
+
+	private Gmail loadClient(String credentialId) {
+		return time(Stage.LoadCredential, credentialId, () -> credentialId == null ? getClient() : getClient(credentialId));
+	}
+
+	/**
+	 * Run a stage of sending an email, recording how long it took with the {@link GmailSettings#getMetrics()}.
+	 *
+	 * @param stage the stage
+	 * @param credentialId the credential the email is sent with, or null for {@link #CREDENTIAL_USER_ID}
+	 * @param work the work of the stage
+	 * @return the result of the work
+	 */
+	protected <T> T time(Stage stage, String credentialId, Supplier<T> work) {
+		long started = System.nanoTime();
+		try {
+			T result = work.get();
+			record(stage, credentialId, Outcome.Success, started);
+			return result;
+		} catch (RuntimeException e) {
+			record(stage, credentialId, Outcome.Failure, started);
+			throw e;
+		}
+	}
+
+	/**
+	 * Make a Gmail request as a stage of sending an email, as {@link #time(Stage, String, Supplier)}.
+	 */
+	protected <T> T timeRequest(Stage stage, String credentialId, GmailRequest<T> request) throws IOException {
+		long started = System.nanoTime();
+		try {
+			T result = request.execute();
+			record(stage, credentialId, Outcome.Success, started);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			record(stage, credentialId, Outcome.Failure, started);
+			throw e;
+		}
+	}
+
+	private void record(Stage stage, String credentialId, Outcome outcome, long startedNanos) {
+		GmailMetrics metrics = gmailSettings.getMetrics();
+		if (metrics != null) {
+			metrics.record(stage, credentialKey(credentialId), outcome, System.nanoTime() - startedNanos);
+		}
+	}
+
+	/**
+	 * Lane stages are recorded against the name of the lane rather than a credential.
+	 */
+	private void recordLane(Stage stage, GmailPriority priority, Outcome outcome, long startedNanos) {
+		GmailMetrics metrics = gmailSettings.getMetrics();
+		if (metrics != null) {
+			metrics.record(stage, priority.name(), outcome, Math.max(0, System.nanoTime() - startedNanos));
+		}
+	}
+
+	private static GmailPriority priority(GmailMessage message, GmailPriority defaultPriority) {
+		return message.getPriority() == null ? defaultPriority : message.getPriority();
+	}
+
 	private Set<InternetAddress> getInternetAddresses(Map<String, String> addressStrings) {
 		Set<InternetAddress> addresses = new LinkedHashSet<>();
 		for (Map.Entry<String, String> toAddrStr : addressStrings.entrySet()) {
@@ -151,10 +1275,7 @@ public class GmailMailer extends BaseMailer implements Mailer {
 	protected MimeMessage createEmailWithAttachment(Set<InternetAddress> to, InternetAddress from, Set<InternetAddress> cc,
 			Set<InternetAddress> bcc, InternetAddress replyTo, String subject,
 			String bodyText, List<com.threewks.thundr.mail.Attachment> attachments) {
-		Properties props = new Properties();
-		Session session = Session.getDefaultInstance(props, null);
-
-		MimeMessage email = new MimeMessage(session);
+		MimeMessage email = new MimeMessage(getSession());
 		try {
 
 			email.setFrom(from);
@@ -174,45 +1295,102 @@ public class GmailMailer extends BaseMailer implements Mailer {
 
 			email.setSubject(subject);
 
-			MimeBodyPart mimeBodyPart = new MimeBodyPart();
-			mimeBodyPart.setContent(bodyText, "text/html");
-			mimeBodyPart.setHeader("Content-Type", "text/html; charset=\"UTF-8\"");
+			Multipart multipart = createMultipart(bodyText, attachments);
+			email.setContent(multipart);
+		} catch (MessagingException e) {
+			Logger.error(e.getMessage());
+			Logger.error("Failed to create email from: %s;%s, to: %s, cc: %s, bcc: %s, replyTo %s;%s, subject %s, body %s, number of attachments %d", from.getAddress(), from.getPersonal(),
+					Transformers.InternetAddressesToString.from(to), Transformers.InternetAddressesToString.from(cc), Transformers.InternetAddressesToString.from(bcc),
+					replyTo == null ? "null" : replyTo.getAddress(), replyTo == null ? "null" : replyTo.getPersonal(), subject, bodyText, attachments == null ? 0 : attachments.size());
+			throw new GmailException(e);
+		}
 
-			Multipart multipart = new MimeMultipart();
-			multipart.addBodyPart(mimeBodyPart);
+		return email;
+	}
 
-			if (attachments != null) {
-				for (com.threewks.thundr.mail.Attachment attachment : attachments) {
-					mimeBodyPart = new MimeBodyPart();
+	/**
+	 * Create the body of an email, the rendered body followed by the rendered attachments.
+	 *
+	 * @param bodyText the rendered body of the email
+	 * @param attachments the attachments to render, or null
+	 * @return the body of the email
+	 * @throws MessagingException if a part can't be created
+	 */
+	protected MimeMultipart createMultipart(String bodyText, List<com.threewks.thundr.mail.Attachment> attachments) throws MessagingException {
+		MimeBodyPart mimeBodyPart = new MimeBodyPart();
+		mimeBodyPart.setContent(bodyText, "text/html");
+		mimeBodyPart.setHeader("Content-Type", "text/html; charset=\"UTF-8\"");
 
-					InMemoryResponse renderedResult = render(attachment.view());
+		MimeMultipart multipart = new MimeMultipart();
+		multipart.addBodyPart(mimeBodyPart);
 
-					byte[] data = renderedResult.getBodyAsBytes();
-					String attachmentContentType = renderedResult.getContentTypeString();
-					String attachmentCharacterEncoding = renderedResult.getCharacterEncoding();
+		if (attachments != null) {
+			for (com.threewks.thundr.mail.Attachment attachment : attachments) {
+				GmailRenderedView renderedResult = renderView(attachment.view());
 
-					populateMimeBodyPart(mimeBodyPart, attachment, data, attachmentContentType, attachmentCharacterEncoding);
+				byte[] data = renderedResult.getBodyAsBytes();
+				String attachmentContentType = renderedResult.getContentType();
+				String attachmentCharacterEncoding = renderedResult.getCharacterEncoding();
 
-					multipart.addBodyPart(mimeBodyPart);
+				GmailPartCache partCache = gmailSettings.getPartCache();
+				if (partCache != null) {
+					mimeBodyPart = partCache.createPart(renderedResult, attachmentContentType + "; charset=" + attachmentCharacterEncoding);
+					populateAttachmentHeaders(mimeBodyPart, attachment);
+				} else {
+					mimeBodyPart = new MimeBodyPart();
+					populateMimeBodyPart(mimeBodyPart, attachment, data, attachmentContentType, attachmentCharacterEncoding);
 				}
+
+				multipart.addBodyPart(mimeBodyPart);
 			}
+		}
+		return multipart;
+	}
 
-			email.setContent(multipart);
-		} catch (MessagingException e) {
-			Logger.error(e.getMessage());
-			Logger.error("Failed to create email from: %s;%s, to: %s, cc: %s, bcc: %s, replyTo %s;%s, subject %s, body %s, number of attachments %d", from.getAddress(), from.getPersonal(),
-					Transformers.InternetAddressesToString.from(to), Transformers.InternetAddressesToString.from(cc), Transformers.InternetAddressesToString.from(bcc),
-					replyTo == null ? "null" : replyTo.getAddress(), replyTo == null ? "null" : replyTo.getPersonal(), subject, bodyText, attachments == null ? 0 : attachments.size());
-			throw new GmailException(e);
+	/**
+	 * Render the given view, or reuse an earlier rendering of it from the {@link GmailSettings#getRenderCache()}. Only views wrapped
+	 * in a {@link GmailCachedView} are cached, unless the cache is {@link GmailRenderCache#isCachingByIdentity()}. A view which is
+	 * already a {@link GmailRenderedView}, such as the body of a {@link GmailSpooledMessage}, is used as is.
+	 *
+	 * @param view the view to render, optionally wrapped in a {@link GmailCachedView}
+	 * @return the rendered view
+	 */
+	protected GmailRenderedView renderView(Object view) {
+		if (view instanceof GmailRenderedView) {
+			return (GmailRenderedView) view;
+		}
+		Object unwrapped = view instanceof GmailCachedView ? ((GmailCachedView) view).getView() : view;
+		GmailRenderCache renderCache = gmailSettings.getRenderCache();
+		if (renderCache == null || !(view instanceof GmailCachedView || renderCache.isCachingByIdentity())) {
+			return GmailRenderedView.from(render(unwrapped));
 		}
+		Object key = view instanceof GmailCachedView ? ((GmailCachedView) view).getKey() : new IdentityKey(view);
+		GmailRenderedView rendered = renderCache.get(key);
+		if (rendered == null) {
+			rendered = GmailRenderedView.from(render(unwrapped));
+			renderCache.put(key, rendered);
+		}
+		return rendered;
+	}
 
-		return email;
+	/**
+	 * @return the mail session every email is built with, created once from {@link GmailSettings#getSessionProperties()}
+	 */
+	protected Session getSession() {
+		return session;
 	}
 
 	protected void populateMimeBodyPart(MimeBodyPart mimeBodyPart, com.threewks.thundr.mail.Attachment attachment, byte[] data, String attachmentContentType, String attachmentCharacterEncoding) throws MessagingException {
 		String fullContentType = attachmentContentType + "; charset=" + attachmentCharacterEncoding;
-		mimeBodyPart.setFileName(attachment.name());
 		mimeBodyPart.setContent(data, fullContentType);
+		populateAttachmentHeaders(mimeBodyPart, attachment);
+	}
+
+	/**
+	 * Set the file name, disposition and content id of an attachment part, which already has its content.
+	 */
+	private static void populateAttachmentHeaders(MimeBodyPart mimeBodyPart, com.threewks.thundr.mail.Attachment attachment) throws MessagingException {
+		mimeBodyPart.setFileName(attachment.name());
 		mimeBodyPart.setDisposition(attachment.disposition().toString());
 		if (attachment.isInline()) {
 			mimeBodyPart.setContentID("<" + attachment.name() + ">");
@@ -228,19 +1406,174 @@ public class GmailMailer extends BaseMailer implements Mailer {
 	 * @throws MessagingException
 	 */
 	protected Message createMessageWithEmail(MimeMessage email) {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		try {
-			email.writeTo(bytes);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try (OutputStream encoder = Base64.getUrlEncoder().withoutPadding().wrap(encoded)) {
+			email.writeTo(encoder);
 		} catch (MessagingException | IOException e) {
 			Logger.error("Could not write email to output stream: %s", e.getMessage());
 			throw new GmailException(e);
 		}
-		String encodedEmail = Base64.encodeBase64URLSafeString(bytes.toByteArray());
 		Message message = new Message();
-		message.setRaw(encodedEmail);
+		message.setRaw(new String(encoded.toByteArray(), StandardCharsets.US_ASCII));
 		return message;
 	}
 
+	/**
+	 * Create a Message from an email, reusing the bytes kept when the email's length was measured rather than serializing it again.
+	 */
+	private Message createMessage(MimeMessage mimeMessage, GmailMimeContent email) {
+		byte[] buffered = email.getBuffered();
+		if (buffered == null) {
+			return createMessageWithEmail(mimeMessage);
+		}
+		Message message = new Message();
+		message.setRaw(Base64.getUrlEncoder().withoutPadding().encodeToString(buffered));
+		return message;
+	}
+
+	/**
+	 * Create the content for a media upload of an email, which is sent as is rather than base64url encoded inside a json request.
+	 * Emails small enough to be sent as raw json messages are kept in memory when they are measured, so they are only serialized once.
+	 *
+	 * @param email the email
+	 * @return the email as message/rfc822 content
+	 */
+	protected GmailMimeContent createMediaContent(MimeMessage email) {
+		int bufferLimit = gmailSettings.getUploadMode() == GmailSettings.UploadMode.Media ? 0 : gmailSettings.getMediaUploadThreshold() - 1;
+		return new GmailMimeContent(email, bufferLimit);
+	}
+
+	/**
+	 * Post the given content to the Gmail api directly rather than through a {@link Gmail} request, so the content can be streamed.
+	 *
+	 * @param gmail the client to send with
+	 * @param path the path of the method, relative to the users resource
+	 * @param content the request body
+	 * @param responseType the type the response is parsed as
+	 * @return the parsed response
+	 * @throws IOException if the request fails, a {@link GoogleJsonResponseException} for an error response
+	 */
+	protected <T> T executeRaw(Gmail gmail, String path, HttpContent content, Class<T> responseType) throws IOException {
+		HttpRequest request = gmail.getRequestFactory().buildPostRequest(withFields(new GenericUrl(gmail.getBaseUrl() + path), responseType), content);
+		if (isGzipped(content.getLength())) {
+			request.setEncoding(new GZipEncoding());
+		}
+		request.setParser(gmail.getObjectParser());
+		request.setThrowExceptionOnExecuteError(false);
+		HttpResponse response = request.execute();
+		if (!response.isSuccessStatusCode()) {
+			throw GoogleJsonResponseException.from(gmail.getJsonFactory(), response);
+		}
+		return response.parseAs(responseType);
+	}
+
+	/**
+	 * Upload an email with the resumable upload protocol, in chunks of {@link GmailSettings#getUploadChunkSize()}. If a chunk fails
+	 * because of a connection error or server error the upload resumes from the last byte Gmail acknowledged.
+	 *
+	 * @param gmail the client to send with
+	 * @param path the path of the method, relative to the users resource
+	 * @param email the email to upload
+	 * @param responseType the type the response is parsed as
+	 * @return the parsed response
+	 * @throws IOException if the upload fails, a {@link GoogleJsonResponseException} for an error response
+	 */
+	protected <T> T uploadResumable(Gmail gmail, String path, GmailMimeContent email, Class<T> responseType) throws IOException {
+		HttpRequestInitializer credential = gmail.getRequestFactory().getInitializer();
+		MediaHttpUploader uploader = new MediaHttpUploader(email, gmail.getRequestFactory().getTransport(), request -> {
+			if (credential != null) {
+				credential.initialize(request);
+			}
+			// only the upload's own requests retry connection errors, they can be resumed without sending the email twice
+			request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(newUploadBackOff()));
+		});
+		uploader.setChunkSize(gmailSettings.getUploadChunkSize());
+		uploader.setDisableGZipContent(!isGzipped(email.getLength()));
+		uploader.setProgressListener(progress -> Logger.debug("Uploaded %s of %s bytes of email", progress.getNumBytesUploaded(), email.getLength()));
+		try {
+			HttpResponse response = uploader.upload(withFields(new GenericUrl(gmail.getRootUrl() + "upload/" + gmail.getServicePath() + path), responseType));
+			if (!response.isSuccessStatusCode()) {
+				throw GoogleJsonResponseException.from(gmail.getJsonFactory(), response);
+			}
+			return gmail.getObjectParser().parseAndClose(response.getContent(), response.getContentCharset(), responseType);
+		} finally {
+			email.release();
+		}
+	}
+
+	/**
+	 * @param size the size of the serialized email in bytes
+	 * @return true if requests sending an email of the given size should be gzipped
+	 */
+	protected boolean isGzipped(long size) {
+		return gmailSettings.getGzipThreshold() >= 0 && size >= gmailSettings.getGzipThreshold();
+	}
+
+	/**
+	 * @param responseType the type the response is parsed as
+	 * @return the fields of the response which are read, or null if the full response is requested
+	 */
+	private String responseFields(Class<?> responseType) {
+		if (!gmailSettings.isPartialResponses()) {
+			return null;
+		}
+		if (responseType == Message.class) {
+			return MESSAGE_FIELDS;
+		}
+		return responseType == Draft.class ? DRAFT_FIELDS : null;
+	}
+
+	private <R extends com.google.api.services.gmail.GmailRequest<?>> R withFields(R request, Class<?> responseType) {
+		String fields = responseFields(responseType);
+		if (fields != null) {
+			request.setFields(fields);
+		}
+		return request;
+	}
+
+	private GenericUrl withFields(GenericUrl url, Class<?> responseType) {
+		String fields = responseFields(responseType);
+		if (fields != null) {
+			url.set("fields", fields);
+		}
+		return url;
+	}
+
+	private <R extends com.google.api.services.gmail.GmailRequest<?>> R withGzip(R request, long size) {
+		request.setDisableGZipContent(!isGzipped(size));
+		return request;
+	}
+
+	/**
+	 * @return the back off between attempts to send a chunk of a resumable upload which failed with a connection error
+	 */
+	protected BackOff newUploadBackOff() {
+		return new ExponentialBackOff.Builder().setMaxElapsedTimeMillis(UPLOAD_RETRY_MAX_ELAPSED_MILLIS).build();
+	}
+
+	/**
+	 * @param size the size of the serialized email in bytes
+	 * @return true if an email of the given size should be sent with a resumable upload
+	 */
+	protected boolean isResumableUpload(long size) {
+		return gmailSettings.getUploadMode() != GmailSettings.UploadMode.Raw && size >= gmailSettings.getResumableUploadThreshold();
+	}
+
+	/**
+	 * @param size the size of the serialized email in bytes
+	 * @return true if an email of the given size should be sent as a media upload rather than as a raw json message
+	 */
+	protected boolean isMediaUpload(long size) {
+		switch (gmailSettings.getUploadMode()) {
+			case Media:
+				return true;
+			case Raw:
+				return false;
+			default:
+				return size >= gmailSettings.getMediaUploadThreshold();
+		}
+	}
+
 	/**
 	 * Sends a draft email to the authrorised application linked to {@link com.google.api.client.auth.oauth2.StoredCredential} id/name credentialId
 	 * in datastore.
@@ -252,13 +1585,36 @@ public class GmailMailer extends BaseMailer implements Mailer {
 	 */
 	public void createDraft(String body, String subject, Map<String, String> toAddress, List<Attachment> attachments, String credentialId) {
 		try {
-			MimeMessage email = createMime(body, subject, toAddress, attachments);
-			Message message = createMessageWithEmail(email);
-			Draft draft = new Draft();
-			draft.setMessage(message);
-			Gmail gmail = getClient(credentialId);
-			Logger.info("created gmail client %s", gmail);
-			gmail.users().drafts().create("me", draft).execute();
+			long started = System.nanoTime();
+			MimeMessage mimeMessage;
+			try {
+				mimeMessage = createMime(body, subject, toAddress, attachments);
+				record(Stage.BuildMime, credentialId, Outcome.Success, started);
+			} catch (MessagingException | RuntimeException e) {
+				record(Stage.BuildMime, credentialId, Outcome.Failure, started);
+				throw e;
+			}
+			GmailMimeContent email = createMediaContent(mimeMessage);
+			long size = timeRequest(Stage.Encode, credentialId, email::getLength);
+			executeWithRetries(() -> executeThroughCircuit(credentialId, () -> {
+				Gmail gmail = time(Stage.LoadCredential, credentialId, () -> getClient(credentialId));
+				Logger.info("created gmail client %s", gmail);
+				acquireQuota(credentialId, GmailRateLimiter.DRAFT_UNITS);
+				if (isResumableUpload(size)) {
+					return timeRequest(Stage.Send, credentialId, () -> uploadResumable(gmail, "me/drafts", email, Draft.class));
+				}
+				if (isMediaUpload(size)) {
+					Gmail.Users.Drafts.Create create = withGzip(withFields(gmail.users().drafts().create("me", null, email), Draft.class), size);
+					create.getMediaHttpUploader().setDirectUploadEnabled(true);
+					return timeRequest(Stage.Send, credentialId, create::execute);
+				}
+				if (size >= gmailSettings.getMediaUploadThreshold()) {
+					return timeRequest(Stage.Send, credentialId, () -> executeRaw(gmail, "me/drafts", GmailRawContent.draft(email), Draft.class));
+				}
+				Draft draft = new Draft();
+				draft.setMessage(time(Stage.Encode, credentialId, () -> createMessage(mimeMessage, email)));
+				return timeRequest(Stage.Send, credentialId, () -> withGzip(withFields(gmail.users().drafts().create("me", draft), Draft.class), size).execute());
+			}));
 			Logger.info("Draft email sent");
 		} catch (Exception e) {
 			String message = String.format("Error creating draft with body[%s], subject[%s], credentialId[%s]", body, subject, credentialId);
@@ -267,10 +1623,18 @@ public class GmailMailer extends BaseMailer implements Mailer {
 		}
 	}
 
-	private MimeMessage createMime(String bodyText, String subject, Map<String, String> to, List<Attachment> pdfs) throws MessagingException {
-		Properties props = new Properties();
-		Session session = Session.getDefaultInstance(props, null);
-		MimeMessage email = new MimeMessage(session);
+	/**
+	 * Create the email for a draft.
+	 *
+	 * @param bodyText the html body of the draft
+	 * @param subject the subject of the draft
+	 * @param to the recipients of the draft
+	 * @param pdfs the attachments, read as the email is written
+	 * @return the email
+	 * @throws MessagingException if the email can't be created
+	 */
+	protected MimeMessage createMime(String bodyText, String subject, Map<String, String> to, List<Attachment> pdfs) throws MessagingException {
+		MimeMessage email = new MimeMessage(getSession());
 		Set<InternetAddress> toAddresses = getInternetAddresses(to);
 
 		if (!toAddresses.isEmpty()) {
@@ -286,9 +1650,10 @@ public class GmailMailer extends BaseMailer implements Mailer {
 		Multipart multipart = new MimeMultipart();
 		for (Attachment attachmentPdf : pdfs) {
 			MimeBodyPart attachment = new MimeBodyPart();
-			DataSource source = new ByteArrayDataSource(attachmentPdf.getData(), "application/pdf");
-			attachment.setDataHandler(new DataHandler(source));
+			// the data is only read as the email is written, setting the encoding saves reading it once more to choose one
+			attachment.setDataHandler(new DataHandler(attachmentPdf.getDataSource()));
 			attachment.setFileName(attachmentPdf.getFileName());
+			attachment.setHeader("Content-Transfer-Encoding", "base64");
 			multipart.addBodyPart(mimeBodyPart);
 			multipart.addBodyPart(attachment);
 		}
@@ -297,6 +1662,40 @@ public class GmailMailer extends BaseMailer implements Mailer {
 	}
 
 
+	/**
+	 * Equal only to a key for the same view instance, as views don't generally implement equals.
+	 */
+	private static class IdentityKey {
+		private final Object view;
+
+		private IdentityKey(Object view) {
+			this.view = view;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof IdentityKey && ((IdentityKey) o).view == view;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(view);
+		}
+	}
+
+	/**
+	 * Throws away what is written to it, for streams which only need to see the data go past.
+	 */
+	private static class DiscardingOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
 	public static class Transformers {
 
 		public static final ETransformer<Map.Entry<String, String>, InternetAddress> FormatInternetAddress = new ETransformer<Map.Entry<String, String>, InternetAddress>() {
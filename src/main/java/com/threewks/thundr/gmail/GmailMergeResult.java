@@ -0,0 +1,61 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcome of a {@link GmailMailer#merge(java.util.Iterator, java.util.function.Function, java.util.function.Consumer)}, counting the
+ * emails sent and failed rather than holding a result for each, so a merge to any number of recipients uses the same memory.
+ */
+public class GmailMergeResult {
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	void record(GmailSendResult result) {
+		if (result.isSuccess()) {
+			sent.increment();
+		} else {
+			failed.increment();
+		}
+	}
+
+	/**
+	 * @return the number of emails Gmail accepted
+	 */
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * @return the number of emails which couldn't be rendered or sent
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getTotal() {
+		return getSent() + getFailed();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Sent %s, failed %s", getSent(), getFailed());
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.mail.Attachment;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An email to be sent by the {@link GmailMailer}, built up in the same way as a {@link com.threewks.thundr.mail.MailBuilder}.
+ * <p>
+ * Use this with the Gmail specific send methods, such as {@link GmailMailer#sendAsync(GmailMessage)}, which aren't available through
+ * the standard {@link com.threewks.thundr.mail.Mailer} interface.
+ */
+public class GmailMessage {
+
+	private Map.Entry<String, String> from;
+	private Map.Entry<String, String> replyTo;
+	private Map<String, String> to = new LinkedHashMap<>();
+	private Map<String, String> cc = new LinkedHashMap<>();
+	private Map<String, String> bcc = new LinkedHashMap<>();
+	private String subject;
+	private Object body;
+	private List<Attachment> attachments = new ArrayList<>();
+	private String credentialId;
+	private String idempotencyKey;
+	private GmailPriority priority;
+
+	public GmailMessage() {
+	}
+
+	public GmailMessage(Map.Entry<String, String> from, Map.Entry<String, String> replyTo, Map<String, String> to, Map<String, String> cc, Map<String, String> bcc, String subject, Object body, List<Attachment> attachments) {
+		this.from = from;
+		this.replyTo = replyTo;
+		to(to);
+		cc(cc);
+		bcc(bcc);
+		this.subject = subject;
+		this.body = body;
+		if (attachments != null) {
+			this.attachments.addAll(attachments);
+		}
+	}
+
+	public GmailMessage from(String email) {
+		return from(email, null);
+	}
+
+	public GmailMessage from(String email, String name) {
+		this.from = new AbstractMap.SimpleImmutableEntry<>(email, name);
+		return this;
+	}
+
+	public GmailMessage replyTo(String email) {
+		return replyTo(email, null);
+	}
+
+	public GmailMessage replyTo(String email, String name) {
+		this.replyTo = new AbstractMap.SimpleImmutableEntry<>(email, name);
+		return this;
+	}
+
+	public GmailMessage to(String email) {
+		return to(email, null);
+	}
+
+	public GmailMessage to(String email, String name) {
+		this.to.put(email, name);
+		return this;
+	}
+
+	public GmailMessage to(Map<String, String> to) {
+		if (to != null) {
+			this.to.putAll(to);
+		}
+		return this;
+	}
+
+	public GmailMessage cc(String email) {
+		return cc(email, null);
+	}
+
+	public GmailMessage cc(String email, String name) {
+		this.cc.put(email, name);
+		return this;
+	}
+
+	public GmailMessage cc(Map<String, String> cc) {
+		if (cc != null) {
+			this.cc.putAll(cc);
+		}
+		return this;
+	}
+
+	public GmailMessage bcc(String email) {
+		return bcc(email, null);
+	}
+
+	public GmailMessage bcc(String email, String name) {
+		this.bcc.put(email, name);
+		return this;
+	}
+
+	public GmailMessage bcc(Map<String, String> bcc) {
+		if (bcc != null) {
+			this.bcc.putAll(bcc);
+		}
+		return this;
+	}
+
+	public GmailMessage subject(String subject) {
+		this.subject = subject;
+		return this;
+	}
+
+	/**
+	 * @param body the view to render as the body of the email
+	 */
+	public GmailMessage body(Object body) {
+		this.body = body;
+		return this;
+	}
+
+	public GmailMessage attach(Attachment attachment) {
+		this.attachments.add(attachment);
+		return this;
+	}
+
+	/**
+	 * @param credentialId the id of the {@link com.google.api.client.auth.oauth2.StoredCredential} to send with. If not set the message is
+	 *                     sent with {@link GmailMailer#CREDENTIAL_USER_ID}.
+	 */
+	public GmailMessage credentialId(String credentialId) {
+		this.credentialId = credentialId;
+		return this;
+	}
+
+	/**
+	 * @param idempotencyKey identifies this email when a {@link GmailSettings#getDedupeLedger()} is configured, an email with a key which
+	 *                       was already sent is not sent again. If not set the key is a hash of the sender, recipients, subject, body and
+	 *                       attachments.
+	 */
+	public GmailMessage idempotencyKey(String idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+		return this;
+	}
+
+	/**
+	 * @param priority the lane this email waits for quota and a sending thread in. If not set the email is
+	 *                 {@link GmailPriority#Transactional} when sent on its own and {@link GmailPriority#Bulk} when sent by a merge or sink.
+	 */
+	public GmailMessage priority(GmailPriority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	public Map.Entry<String, String> getFrom() {
+		return from;
+	}
+
+	public Map.Entry<String, String> getReplyTo() {
+		return replyTo;
+	}
+
+	public Map<String, String> getTo() {
+		return to;
+	}
+
+	public Map<String, String> getCc() {
+		return cc;
+	}
+
+	public Map<String, String> getBcc() {
+		return bcc;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public Object getBody() {
+		return body;
+	}
+
+	public List<Attachment> getAttachments() {
+		return attachments;
+	}
+
+	public String getCredentialId() {
+		return credentialId;
+	}
+
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	public GmailPriority getPriority() {
+		return priority;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Receives the time taken by each stage of sending an email, so it can be seen where the time goes. Set one with
+ * {@link GmailSettings#setMetrics(GmailMetrics)}, by default timings are kept in memory by a {@link GmailHistogramMetrics}.
+ * <p>
+ * {@link #record(Stage, String, Outcome, long)} is called on the sending thread for every stage of every email, so implementations
+ * should be cheap and must be thread safe. An implementation can forward timings to an external metrics system.
+ */
+public interface GmailMetrics {
+
+	/**
+	 * The stages of sending an email.
+	 */
+	enum Stage {
+		/**
+		 * Rendering the body view
+		 */
+		RenderBody,
+		/**
+		 * Rendering the attachment views
+		 */
+		RenderAttachments,
+		/**
+		 * Building the MIME message from the rendered body and attachments
+		 */
+		BuildMime,
+		/**
+		 * Writing out the MIME message, to measure its size and to base64url encode it into the raw field of a Gmail message
+		 */
+		Encode,
+		/**
+		 * Getting the Gmail client, loading its credential if it isn't cached
+		 */
+		LoadCredential,
+		/**
+		 * The request to Gmail
+		 */
+		Send,
+		/**
+		 * Waiting in a {@link GmailPriority} lane of the {@link GmailSendExecutor} for a sending thread, recorded against the lane
+		 */
+		Queue,
+		/**
+		 * Sending an email from start to finish, including waiting for quota, a sending thread and retries, recorded against its
+		 * {@link GmailPriority} lane
+		 */
+		Deliver
+	}
+
+	enum Outcome {
+		Success,
+		Failure
+	}
+
+	/**
+	 * @param stage the stage which was timed
+	 * @param credentialId the credential the email is sent with, or the name of the lane for {@link Stage#Queue} and {@link Stage#Deliver}
+	 * @param outcome whether the stage succeeded
+	 * @param nanos how long the stage took
+	 */
+	void record(Stage stage, String credentialId, Outcome outcome, long nanos);
+
+	/**
+	 * @return a summary of the recorded timings, as shown by the admin routes
+	 */
+	default Map<String, Object> getSnapshot() {
+		return Collections.emptyMap();
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.threewks.thundr.logger.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An email as message/rfc822 http content, for media uploads.
+ * <p>
+ * The email is written straight from the {@link MimeMessage} to the request as it is sent, rather than being serialized into memory
+ * first. Its length is found by writing it to a counting stream, so the request can still be sent with a content length. Emails no
+ * longer than the buffer limit are kept from that first pass, so they are only ever serialized once.
+ */
+public class GmailMimeContent extends AbstractInputStreamContent {
+
+	public static final String CONTENT_TYPE = "message/rfc822";
+
+	private static final int PIPE_SIZE = 64 * 1024;
+	private static final ThreadFactory WRITERS = GmailSendExecutor.daemonThreads("gmail-mime-writer");
+
+	private final MimeMessage mimeMessage;
+	private final int bufferLimit;
+	private long length = -1;
+	private byte[] buffered;
+	private volatile InputStream opened;
+
+	public GmailMimeContent(MimeMessage mimeMessage) {
+		this(mimeMessage, 0);
+	}
+
+	/**
+	 * @param mimeMessage the email
+	 * @param bufferLimit the size in bytes up to which the email is kept in memory once its length has been measured
+	 */
+	public GmailMimeContent(MimeMessage mimeMessage, int bufferLimit) {
+		super(CONTENT_TYPE);
+		this.mimeMessage = mimeMessage;
+		this.bufferLimit = bufferLimit;
+	}
+
+	public MimeMessage getMimeMessage() {
+		return mimeMessage;
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		if (length < 0) {
+			if (bufferLimit > 0) {
+				BoundedBuffer buffer = new BoundedBuffer(bufferLimit);
+				writeTo(buffer);
+				buffered = buffer.toByteArray();
+				length = buffer.count;
+			} else {
+				length = AbstractHttpContent.computeLength(this);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return the serialized email if it was no longer than the buffer limit when its length was measured, otherwise null
+	 */
+	public byte[] getBuffered() {
+		return buffered;
+	}
+
+	@Override
+	public boolean retrySupported() {
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] bytes = buffered;
+		if (bytes != null) {
+			out.write(bytes);
+			out.flush();
+			return;
+		}
+		try {
+			mimeMessage.writeTo(out);
+		} catch (MessagingException e) {
+			throw new IOException("Could not write email: " + e.getMessage(), e);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Used when the content is read rather than written, such as by a resumable upload. The email is written to the returned stream
+	 * as it is read by a separate thread, so it still isn't held in memory.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		final WrittenInputStream in = new WrittenInputStream();
+		opened = in;
+		final PipedOutputStream out = new PipedOutputStream(in);
+		WRITERS.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try (OutputStream written = out) {
+					writeTo(written);
+				} catch (IOException e) {
+					in.failure = e;
+				}
+			}
+		}).start();
+		return in;
+	}
+
+	/**
+	 * Close the stream last returned by {@link #getInputStream()}, so its writer stops even if the reader gave up part way through.
+	 */
+	public void release() {
+		InputStream in = opened;
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				Logger.debug("Failed to close email stream: %s", e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public GmailMimeContent setType(String type) {
+		return (GmailMimeContent) super.setType(type);
+	}
+
+	@Override
+	public GmailMimeContent setCloseInputStream(boolean closeInputStream) {
+		return (GmailMimeContent) super.setCloseInputStream(closeInputStream);
+	}
+
+	/**
+	 * Counts everything written, but only keeps it while it fits within the limit.
+	 */
+	private static class BoundedBuffer extends OutputStream {
+		private final int limit;
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private long count;
+
+		private BoundedBuffer(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+			if (bytes != null && count > limit) {
+				bytes = null;
+			}
+			if (bytes != null) {
+				bytes.write(b, off, len);
+			}
+		}
+
+		private byte[] toByteArray() {
+			return bytes == null ? null : bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Fails the reader if the writer failed, rather than the email appearing to end early.
+	 */
+	private static class WrittenInputStream extends PipedInputStream {
+		private volatile IOException failure;
+
+		private WrittenInputStream() {
+			super(PIPE_SIZE);
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			return checkFailure(super.read());
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			return checkFailure(super.read(b, off, len));
+		}
+
+		private int checkFailure(int read) throws IOException {
+			if (read < 0 && failure != null) {
+				throw new IOException("Failed to write email: " + failure.getMessage(), failure);
+			}
+			return read;
+		}
+	}
+}
@@ -19,6 +19,7 @@ package com.threewks.thundr.gmail;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.DataStoreFactory;
@@ -28,16 +29,41 @@ import com.threewks.thundr.injection.BaseModule;
 import com.threewks.thundr.injection.InjectionContext;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
 import com.threewks.thundr.logger.Logger;
+import com.threewks.thundr.mail.Mailer;
 import com.threewks.thundr.module.DependencyRegistry;
 import com.threewks.thundr.route.Router;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class GmailModule extends BaseModule {
 
+	private static final long SEND_SHUTDOWN_TIMEOUT_SECONDS = 30;
+	static final int DEFAULT_HTTP_KEEP_ALIVE_SECONDS = 60;
+
 	@Override
 	public void requires(DependencyRegistry dependencyRegistry) {
 		super.requires(dependencyRegistry);
@@ -54,9 +80,9 @@ public class GmailModule extends BaseModule {
 		String clientId = getRequiredProperty(injectionContext, "gmailOAuthClientId");
 		String clientSecret = getRequiredProperty(injectionContext, "gmailOAuthClientSecret");
 
-		// applications using this module must inject a DataStoreFactory and HttpTransport instance
+		// applications using this module must inject a DataStoreFactory instance, and an HttpTransport unless a pooled one is configured
 		DataStoreFactory dataStoreFactory = getRequredDependency(injectionContext, DataStoreFactory.class);
-		HttpTransport httpTransport = getRequredDependency(injectionContext, HttpTransport.class);
+		HttpTransport httpTransport = createHttpTransport(injectionContext);
 
 		JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
 		Collection<String> scopes = Collections.singleton(GmailScopes.GMAIL_COMPOSE);
@@ -64,6 +90,32 @@ public class GmailModule extends BaseModule {
 		try {
 			GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(httpTransport, jsonFactory, clientId, clientSecret, scopes).setDataStoreFactory(dataStoreFactory).build();
 			injectionContext.inject(flow).named("gmailAuthorizationCodeFlow").as(GoogleAuthorizationCodeFlow.class);
+
+			// optional config properties to control when access tokens are refreshed, background refresh requires threads to be available
+			int tokenRefreshAheadSeconds = getOptionalIntProperty(injectionContext, "gmailTokenRefreshAheadSeconds", GmailTokenManager.DEFAULT_REFRESH_AHEAD_SECONDS);
+			boolean tokenBackgroundRefresh = getOptionalBooleanProperty(injectionContext, "gmailTokenBackgroundRefresh", true);
+			GmailTokenManager tokenManager = new GmailTokenManager(flow, tokenRefreshAheadSeconds, tokenBackgroundRefresh ? GmailTokenManager.newScheduler() : null);
+			injectionContext.inject(tokenManager).named("gmailTokenManager").as(GmailTokenManager.class);
+
+			// optional config properties to bound the cache of gmail clients shared by senders
+			int clientCacheMaxSize = getOptionalIntProperty(injectionContext, "gmailClientCacheMaxSize", GmailClientCache.DEFAULT_MAX_SIZE);
+			long clientCacheTtlSeconds = getOptionalIntProperty(injectionContext, "gmailClientCacheTtlSeconds", GmailClientCache.DEFAULT_TTL_SECONDS);
+			GmailClientCache clientCache = new GmailClientCache(flow, tokenManager, clientCacheMaxSize, clientCacheTtlSeconds);
+			injectionContext.inject(clientCache).named("gmailClientCache").as(GmailClientCache.class);
+
+			GmailSettings settings = createSettings(injectionContext);
+			// optional config properties to send emails through a durable spool
+			GmailSpool spool = createSpool(injectionContext, dataStoreFactory);
+			if (spool != null) {
+				settings.setSpool(spool);
+				injectionContext.inject(spool).named("gmailSpool").as(GmailSpool.class);
+			}
+			// optional config properties to remember sent emails so they aren't sent twice
+			settings.setDedupeLedger(createDedupeLedger(injectionContext, dataStoreFactory));
+			injectionContext.inject(settings).named("gmailSettings").as(GmailSettings.class);
+
+			// optional config properties to size the executor used by GmailMailer.sendAsync
+			injectionContext.inject(createSendExecutor(injectionContext)).named("gmailSendExecutor").as(GmailSendExecutor.class);
 		} catch (IOException e) {
 			throw new ConfigurationException(e, "Couldn't initialize GoogleAuthorizationCodeFlow");
 		}
@@ -73,6 +125,295 @@ public class GmailModule extends BaseModule {
 	public void start(UpdatableInjectionContext injectionContext) {
 		super.start(injectionContext);
 		addRoutes(injectionContext);
+		if (injectionContext.contains(GmailSpool.class)) {
+			// the spool sends emails left from before a restart as soon as there is a mailer to send them with
+			Mailer mailer = injectionContext.contains(Mailer.class) ? injectionContext.get(Mailer.class) : null;
+			if (mailer instanceof GmailMailer) {
+				injectionContext.get(GmailSpool.class).start((GmailMailer) mailer);
+			} else {
+				Logger.warn("No GmailMailer is injected as the Mailer, the Gmail spool will start sending when a GmailMailer first adds an email to it");
+			}
+		}
+	}
+
+	@Override
+	public void stop(InjectionContext injectionContext) {
+		super.stop(injectionContext);
+		GmailSpool spool = injectionContext.get(GmailSpool.class);
+		if (spool != null) {
+			spool.shutdown(SEND_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		// merges still rendering hand their emails to the send executor, so they finish before it stops
+		GmailSettings settings = injectionContext.get(GmailSettings.class);
+		if (settings != null) {
+			shutdownMergePool(settings.getMergeExecutor());
+		}
+		GmailSendExecutor sendExecutor = injectionContext.get(GmailSendExecutor.class);
+		if (sendExecutor != null) {
+			sendExecutor.shutdown(SEND_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		GmailTokenManager tokenManager = injectionContext.get(GmailTokenManager.class);
+		if (tokenManager != null) {
+			tokenManager.shutdown();
+		}
+	}
+
+	/**
+	 * Shut down the pool created for `gmailMergeParallelism`. The common pool merges use by default is left alone.
+	 */
+	private void shutdownMergePool(Executor mergeExecutor) {
+		if (!(mergeExecutor instanceof ForkJoinPool) || mergeExecutor == ForkJoinPool.commonPool()) {
+			return;
+		}
+		ForkJoinPool mergePool = (ForkJoinPool) mergeExecutor;
+		mergePool.shutdown();
+		try {
+			if (!mergePool.awaitTermination(SEND_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				Logger.warn("Gmail merges did not finish within %s seconds of shutdown", SEND_SHUTDOWN_TIMEOUT_SECONDS);
+				mergePool.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			mergePool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private GmailSettings createSettings(InjectionContext injectionContext) {
+		GmailSettings settings = new GmailSettings();
+		try {
+			settings.setBatchSize(getOptionalIntProperty(injectionContext, "gmailBatchSize", GmailSettings.DEFAULT_BATCH_SIZE));
+		} catch (GmailException e) {
+			throw new ConfigurationException(e, "Property `gmailBatchSize` must be between 1 and %s", GmailSettings.MAX_BATCH_SIZE);
+		}
+		settings.setBatchRetries(getOptionalIntProperty(injectionContext, "gmailBatchRetries", GmailSettings.DEFAULT_BATCH_RETRIES));
+		settings.setMediaUploadThreshold(getOptionalIntProperty(injectionContext, "gmailMediaUploadThreshold", GmailSettings.DEFAULT_MEDIA_UPLOAD_THRESHOLD));
+		settings.setResumableUploadThreshold(getOptionalIntProperty(injectionContext, "gmailResumableUploadThreshold", GmailSettings.DEFAULT_RESUMABLE_UPLOAD_THRESHOLD));
+		try {
+			settings.setUploadChunkSize(getOptionalIntProperty(injectionContext, "gmailUploadChunkSize", GmailSettings.DEFAULT_UPLOAD_CHUNK_SIZE));
+		} catch (GmailException e) {
+			throw new ConfigurationException(e, "Property `gmailUploadChunkSize` must be a multiple of %s", GmailSettings.UPLOAD_CHUNK_SIZE_MULTIPLE);
+		}
+		String uploadMode = getOptionalProperty(injectionContext, "gmailUploadMode", GmailSettings.UploadMode.Auto.name());
+		try {
+			settings.setUploadMode(GmailSettings.UploadMode.valueOf(StringUtils.capitalize(uploadMode.trim().toLowerCase())));
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException(e, "Property `gmailUploadMode` must be one of auto, raw or media but was `%s`", uploadMode);
+		}
+		if (injectionContext.contains(GmailRenderCache.class)) {
+			settings.setRenderCache(injectionContext.get(GmailRenderCache.class));
+		} else {
+			int renderCacheSize = getOptionalIntProperty(injectionContext, "gmailRenderCacheSize", 0);
+			if (renderCacheSize > 0) {
+				settings.setRenderCache(new GmailLruRenderCache(renderCacheSize, getOptionalIntProperty(injectionContext, "gmailRenderCacheMaxBytes", GmailLruRenderCache.DEFAULT_MAX_BYTES),
+						getOptionalBooleanProperty(injectionContext, "gmailRenderCacheByInstance", false)));
+			}
+		}
+		if (injectionContext.contains(GmailPartCache.class)) {
+			settings.setPartCache(injectionContext.get(GmailPartCache.class));
+		} else {
+			int partCacheMaxBytes = getOptionalIntProperty(injectionContext, "gmailPartCacheMaxBytes", 0);
+			if (partCacheMaxBytes > 0) {
+				settings.setPartCache(new GmailPartCache(partCacheMaxBytes));
+			}
+		}
+		settings.setRetryPolicy(new GmailRetryPolicy()
+				.setMaxAttempts(getOptionalIntProperty(injectionContext, "gmailRetryMaxAttempts", GmailRetryPolicy.DEFAULT_MAX_ATTEMPTS))
+				.setInitialDelayMillis(getOptionalIntProperty(injectionContext, "gmailRetryInitialDelayMillis", GmailRetryPolicy.DEFAULT_INITIAL_DELAY_MILLIS))
+				.setMaxDelayMillis(getOptionalIntProperty(injectionContext, "gmailRetryMaxDelayMillis", GmailRetryPolicy.DEFAULT_MAX_DELAY_MILLIS))
+				.setBudgetMillis(getOptionalIntProperty(injectionContext, "gmailRetryBudgetMillis", GmailRetryPolicy.DEFAULT_BUDGET_MILLIS)));
+		int circuitFailureThreshold = getOptionalIntProperty(injectionContext, "gmailCircuitBreakerFailureThreshold", GmailCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+		settings.setCircuitBreaker(circuitFailureThreshold > 0 ? new GmailCircuitBreaker(circuitFailureThreshold,
+				getOptionalIntProperty(injectionContext, "gmailCircuitBreakerOpenMillis", GmailCircuitBreaker.DEFAULT_OPEN_MILLIS)) : null);
+		if (injectionContext.contains(GmailCredentialPool.class)) {
+			settings.setCredentialPool(injectionContext.get(GmailCredentialPool.class));
+		} else {
+			settings.setCredentialPool(createCredentialPool(injectionContext));
+		}
+		if (injectionContext.contains(GmailMetrics.class)) {
+			settings.setMetrics(injectionContext.get(GmailMetrics.class));
+		} else if (!getOptionalBooleanProperty(injectionContext, "gmailMetrics", true)) {
+			settings.setMetrics(null);
+		}
+		settings.setGzipThreshold(getOptionalIntProperty(injectionContext, "gmailRequestGzipThreshold", GmailSettings.DEFAULT_GZIP_THRESHOLD));
+		settings.setPartialResponses(getOptionalBooleanProperty(injectionContext, "gmailPartialResponses", true));
+		int mergeParallelism = getOptionalIntProperty(injectionContext, "gmailMergeParallelism", 0);
+		if (mergeParallelism > 0) {
+			settings.setMergeExecutor(new ForkJoinPool(mergeParallelism));
+		}
+		try {
+			settings.setMergeMaxInFlight(getOptionalIntProperty(injectionContext, "gmailMergeMaxInFlight", GmailSettings.DEFAULT_MERGE_MAX_IN_FLIGHT));
+		} catch (GmailException e) {
+			throw new ConfigurationException(e, "Property `gmailMergeMaxInFlight` must be at least 1");
+		}
+		if (injectionContext.contains(GmailRateLimiter.class)) {
+			settings.setRateLimiter(injectionContext.get(GmailRateLimiter.class));
+		} else {
+			int unitsPerSecond = getOptionalIntProperty(injectionContext, "gmailRateLimitUnitsPerSecond", 0);
+			if (unitsPerSecond > 0) {
+				settings.setRateLimiter(new GmailRateLimiter(unitsPerSecond, getOptionalIntProperty(injectionContext, "gmailRateLimitUnitsPerDay", 0),
+						getOptionalIntProperty(injectionContext, "gmailRateLimitMaxWaitMillis", GmailRateLimiter.DEFAULT_MAX_WAIT_MILLIS),
+						getOptionalIntProperty(injectionContext, "gmailRateLimitReservedPercent", GmailRateLimiter.DEFAULT_RESERVED_PERCENT)));
+			}
+		}
+		return settings;
+	}
+
+	private HttpTransport createHttpTransport(UpdatableInjectionContext injectionContext) {
+		if (injectionContext.contains(HttpTransport.class)) {
+			return getRequredDependency(injectionContext, HttpTransport.class);
+		}
+		int maxConnections = getOptionalIntProperty(injectionContext, "gmailHttpMaxConnections", 0);
+		if (maxConnections <= 0) {
+			return getRequredDependency(injectionContext, HttpTransport.class);
+		}
+		int keepAliveSeconds = getOptionalIntProperty(injectionContext, "gmailHttpKeepAliveSeconds", DEFAULT_HTTP_KEEP_ALIVE_SECONDS);
+		HttpTransport httpTransport = createPooledHttpTransport(maxConnections, keepAliveSeconds);
+		injectionContext.inject(httpTransport).as(HttpTransport.class);
+		return httpTransport;
+	}
+
+	/**
+	 * Retries a request once if it failed before any of it was sent, such as on a pooled connection Gmail had already closed. A request
+	 * which was sent may have been delivered, so is left to fail.
+	 */
+	static final HttpRequestRetryHandler RETRY_UNSENT_REQUESTS = (exception, executionCount, context) -> {
+		Boolean sent = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+		return executionCount <= 1 && (sent == null || !sent);
+	};
+
+	/**
+	 * Every request goes to the same host, so all connections are pooled for the one route and kept open between sends to save the
+	 * tls handshake. Idle connections are checked before they are reused, as Gmail may have closed them.
+	 *
+	 * @param maxConnections the maximum number of open connections
+	 * @param keepAliveSeconds how long an idle connection is kept open for, unless Gmail asks for it to be closed sooner
+	 * @return a transport sharing a pool of connections between threads
+	 */
+	static ApacheHttpTransport createPooledHttpTransport(int maxConnections, int keepAliveSeconds) {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+		// the mailer retries error responses, but not requests which failed without one as they may have been delivered
+		client.setHttpRequestRetryHandler(RETRY_UNSENT_REQUESTS);
+		long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+		ConnectionKeepAliveStrategy serverKeepAlive = new DefaultConnectionKeepAliveStrategy();
+		client.setKeepAliveStrategy((response, context) -> {
+			long requested = serverKeepAlive.getKeepAliveDuration(response, context);
+			return requested > 0 ? Math.min(requested, keepAliveMillis) : keepAliveMillis;
+		});
+		return new ApacheHttpTransport(client);
+	}
+
+	private GmailCredentialPool createCredentialPool(InjectionContext injectionContext) {
+		String credentialIds = getOptionalProperty(injectionContext, "gmailCredentialPool", null);
+		if (StringUtils.isBlank(credentialIds)) {
+			return null;
+		}
+		String strategy = getOptionalProperty(injectionContext, "gmailCredentialPoolStrategy", "round-robin");
+		GmailCredentialPool.Strategy poolStrategy = null;
+		for (GmailCredentialPool.Strategy candidate : GmailCredentialPool.Strategy.values()) {
+			if (candidate.name().equalsIgnoreCase(strategy.trim().replace("-", ""))) {
+				poolStrategy = candidate;
+			}
+		}
+		if (poolStrategy == null) {
+			throw new ConfigurationException("Property `gmailCredentialPoolStrategy` must be one of round-robin, least-loaded or quota-remaining but was `%s`", strategy);
+		}
+		GmailCredentialPool pool = new GmailCredentialPool(split(credentialIds), poolStrategy);
+		for (String route : split(getOptionalProperty(injectionContext, "gmailCredentialPoolRoutes", ""))) {
+			String[] parts = route.split("=");
+			if (parts.length != 2 || StringUtils.isAnyBlank(parts[0], parts[1])) {
+				throw new ConfigurationException("Property `gmailCredentialPoolRoutes` must be a comma separated list of from-address=credentialId but contained `%s`", route);
+			}
+			pool.route(parts[0].trim(), parts[1].trim());
+		}
+		return pool;
+	}
+
+	private static List<String> split(String values) {
+		List<String> split = new ArrayList<>();
+		for (String value : StringUtils.split(values, ',')) {
+			if (StringUtils.isNotBlank(value)) {
+				split.add(value.trim());
+			}
+		}
+		return split;
+	}
+
+	private GmailDedupeLedger createDedupeLedger(InjectionContext injectionContext, DataStoreFactory dataStoreFactory) {
+		if (injectionContext.contains(GmailDedupeLedger.class)) {
+			return injectionContext.get(GmailDedupeLedger.class);
+		}
+		String dedupe = getOptionalProperty(injectionContext, "gmailDedupe", null);
+		if (StringUtils.isBlank(dedupe)) {
+			return null;
+		}
+		int capacity = getOptionalIntProperty(injectionContext, "gmailDedupeCapacity", GmailDedupeLedger.DEFAULT_CAPACITY);
+		long windowMillis = TimeUnit.SECONDS.toMillis(getOptionalIntProperty(injectionContext, "gmailDedupeWindowSeconds", (int) TimeUnit.MILLISECONDS.toSeconds(GmailDedupeLedger.DEFAULT_WINDOW_MILLIS)));
+		if ("memory".equalsIgnoreCase(dedupe.trim())) {
+			return new GmailDedupeLedger(capacity, windowMillis);
+		}
+		if ("datastore".equalsIgnoreCase(dedupe.trim())) {
+			try {
+				return new GmailDedupeLedger(dataStoreFactory, capacity, windowMillis);
+			} catch (IOException e) {
+				throw new ConfigurationException(e, "Couldn't open the Gmail dedupe ledger: %s", e.getMessage());
+			}
+		}
+		throw new ConfigurationException("Property `gmailDedupe` must be one of memory or datastore but was `%s`", dedupe);
+	}
+
+	private GmailSpool createSpool(InjectionContext injectionContext, DataStoreFactory dataStoreFactory) {
+		GmailSpoolStore store;
+		if (injectionContext.contains(GmailSpoolStore.class)) {
+			store = injectionContext.get(GmailSpoolStore.class);
+		} else {
+			String spool = getOptionalProperty(injectionContext, "gmailSpool", null);
+			if (StringUtils.isBlank(spool)) {
+				return null;
+			}
+			try {
+				if ("datastore".equalsIgnoreCase(spool.trim())) {
+					store = new GmailDataStoreSpoolStore(dataStoreFactory);
+				} else if ("journal".equalsIgnoreCase(spool.trim())) {
+					String journalFile = getRequiredProperty(injectionContext, "gmailSpoolJournalFile");
+					boolean sync = getOptionalBooleanProperty(injectionContext, "gmailSpoolJournalSync", false);
+					store = new GmailJournalSpoolStore(Paths.get(journalFile), sync, GmailJournalSpoolStore.DEFAULT_COMPACT_THRESHOLD);
+				} else {
+					throw new ConfigurationException("Property `gmailSpool` must be one of datastore or journal but was `%s`", spool);
+				}
+			} catch (IOException e) {
+				throw new ConfigurationException(e, "Couldn't open the Gmail spool: %s", e.getMessage());
+			}
+		}
+		return new GmailSpool(store, getOptionalIntProperty(injectionContext, "gmailSpoolWorkers", GmailSpool.DEFAULT_WORKERS));
+	}
+
+	private GmailSendExecutor createSendExecutor(InjectionContext injectionContext) {
+		int threads = getOptionalIntProperty(injectionContext, "gmailSendThreads", GmailSendExecutor.DEFAULT_THREADS);
+		int queueCapacity = getOptionalIntProperty(injectionContext, "gmailSendQueueCapacity", GmailSendExecutor.DEFAULT_QUEUE_CAPACITY);
+		GmailSendExecutor executor;
+		if (getOptionalBooleanProperty(injectionContext, "gmailSendVirtualThreads", false)) {
+			try {
+				executor = GmailSendExecutor.virtualThreads(threads, queueCapacity);
+			} catch (GmailException e) {
+				throw new ConfigurationException(e, "Property `gmailSendVirtualThreads` is set but virtual threads are not available on this JVM");
+			}
+		} else {
+			executor = GmailSendExecutor.threadPool(threads, queueCapacity);
+		}
+		try {
+			return executor.setWeight(GmailPriority.Transactional, getOptionalIntProperty(injectionContext, "gmailSendTransactionalWeight", GmailSendExecutor.DEFAULT_TRANSACTIONAL_WEIGHT))
+					.setWeight(GmailPriority.Bulk, getOptionalIntProperty(injectionContext, "gmailSendBulkWeight", GmailSendExecutor.DEFAULT_BULK_WEIGHT));
+		} catch (GmailException e) {
+			throw new ConfigurationException(e, "Properties `gmailSendTransactionalWeight` and `gmailSendBulkWeight` must be at least 1");
+		}
 	}
 
 	/**
@@ -88,6 +429,10 @@ public class GmailModule extends BaseModule {
 
 		router.get(String.format("%s/setup", gmailAdminRootPath), GmailAdminController.class, "setup", "gmail.admin.setup");
 		router.get(String.format("%s/setup/oauth2callback", gmailAdminRootPath), GmailAdminController.class, "oauthCallback", "gmail.admin.oauthCallback");
+		router.get(String.format("%s/circuits", gmailAdminRootPath), GmailAdminController.class, "circuits", "gmail.admin.circuits");
+		router.post(String.format("%s/circuits/reset", gmailAdminRootPath), GmailAdminController.class, "resetCircuit", "gmail.admin.resetCircuit");
+		router.get(String.format("%s/metrics", gmailAdminRootPath), GmailAdminController.class, "metrics", "gmail.admin.metrics");
+		router.get(String.format("%s/lanes", gmailAdminRootPath), GmailAdminController.class, "lanes", "gmail.admin.lanes");
 	}
 
 	/**
@@ -122,6 +467,35 @@ public class GmailModule extends BaseModule {
 		return property;
 	}
 
+	/**
+	 * Get an optional integer property from the injection context.
+	 *
+	 * @param injectionContext the injection context to get the property from.
+	 * @param propertyName the name of the property.
+	 * @param defaultValue the default value to use if the property is not present.
+	 * @return the property value, or the default value if not found.
+	 */
+	private int getOptionalIntProperty(InjectionContext injectionContext, String propertyName, int defaultValue) {
+		String property = getOptionalProperty(injectionContext, propertyName, String.valueOf(defaultValue));
+		try {
+			return Integer.parseInt(property.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException(e, "Property `%s` must be a whole number but was `%s`", propertyName, property);
+		}
+	}
+
+	/**
+	 * Get an optional boolean property from the injection context.
+	 *
+	 * @param injectionContext the injection context to get the property from.
+	 * @param propertyName the name of the property.
+	 * @param defaultValue the default value to use if the property is not present.
+	 * @return the property value, or the default value if not found.
+	 */
+	private boolean getOptionalBooleanProperty(InjectionContext injectionContext, String propertyName, boolean defaultValue) {
+		return Boolean.parseBoolean(getOptionalProperty(injectionContext, propertyName, String.valueOf(defaultValue)).trim());
+	}
+
 	/**
 	 * Get a required dependency from the injection context.
 	 *
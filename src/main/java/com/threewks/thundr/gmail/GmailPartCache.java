@@ -0,0 +1,191 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the transfer encoded content of attachments, keyed by a hash of their content, so an attachment sent in many emails (eg: a
+ * terms and conditions pdf or a logo) is only encoded once. The least recently used content is evicted once the cache holds too many
+ * bytes.
+ * <p>
+ * Parts created by the cache write the cached encoded content as the email is written, rather than encoding the attachment again.
+ */
+public class GmailPartCache {
+
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, EncodedContent> parts = new LinkedHashMap<>(16, 0.75f, true);
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private long bytes;
+
+	public GmailPartCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes the maximum total size of the encoded content held, content larger than this is never cached
+	 */
+	public GmailPartCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Create a body part holding the given rendered attachment, transfer encoded the same way a {@link MimeBodyPart} would encode it.
+	 * The caller sets the remaining headers, such as the file name and disposition.
+	 *
+	 * @param rendered the rendered attachment
+	 * @param contentType the content type of the part
+	 * @return the part, with its content type and transfer encoding headers set
+	 * @throws MessagingException if the content couldn't be encoded
+	 */
+	public MimeBodyPart createPart(GmailRenderedView rendered, String contentType) throws MessagingException {
+		EncodedContent encoded = encode(rendered, contentType);
+		InternetHeaders headers = new InternetHeaders();
+		headers.setHeader("Content-Type", contentType);
+		headers.setHeader("Content-Transfer-Encoding", encoded.encoding);
+		return new EncodedBodyPart(headers, encoded.content);
+	}
+
+	/**
+	 * @return the number of parts created from cached content
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of parts whose content had to be encoded
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		synchronized (parts) {
+			return parts.size();
+		}
+	}
+
+	/**
+	 * @return the total size of the encoded content held
+	 */
+	public long getBytes() {
+		synchronized (parts) {
+			return bytes;
+		}
+	}
+
+	public void clear() {
+		synchronized (parts) {
+			parts.clear();
+			bytes = 0;
+		}
+	}
+
+	private EncodedContent encode(GmailRenderedView rendered, String contentType) throws MessagingException {
+		// the encoding chosen depends on the content type as well as the content
+		String key = rendered.getContentHash() + " " + contentType;
+		EncodedContent encoded;
+		synchronized (parts) {
+			encoded = parts.get(key);
+		}
+		if (encoded != null) {
+			hits.increment();
+			return encoded;
+		}
+		misses.increment();
+		encoded = encode(rendered.getBodyAsBytes(), contentType);
+		if (encoded.content.length <= maxBytes) {
+			synchronized (parts) {
+				EncodedContent previous = parts.put(key, encoded);
+				if (previous != null) {
+					bytes -= previous.content.length;
+				}
+				bytes += encoded.content.length;
+				Iterator<Map.Entry<String, EncodedContent>> eldest = parts.entrySet().iterator();
+				while (bytes > maxBytes) {
+					bytes -= eldest.next().getValue().content.length;
+					eldest.remove();
+				}
+			}
+		}
+		return encoded;
+	}
+
+	private static EncodedContent encode(byte[] data, String contentType) throws MessagingException {
+		try {
+			String encoding = MimeUtility.getEncoding(new ByteArrayDataSource(data, contentType));
+			// base64 adds a third to the content, and a line break every 76 characters
+			ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, data.length * 138L / 100 + 4));
+			try (OutputStream encoder = MimeUtility.encode(content, encoding)) {
+				encoder.write(data);
+			}
+			return new EncodedContent(encoding, content.toByteArray());
+		} catch (IOException e) {
+			throw new MessagingException("Failed to encode attachment", e);
+		}
+	}
+
+	private static class EncodedContent {
+		private final String encoding;
+		private final byte[] content;
+
+		private EncodedContent(String encoding, byte[] content) {
+			this.encoding = encoding;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * A part which writes its already encoded content as is. The content is shared with other parts, so is never modified.
+	 */
+	private static class EncodedBodyPart extends MimeBodyPart {
+		private EncodedBodyPart(InternetHeaders headers, byte[] content) throws MessagingException {
+			super(headers, content);
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException, MessagingException {
+			Enumeration<?> headerLines = getAllHeaderLines();
+			while (headerLines.hasMoreElements()) {
+				os.write(((String) headerLines.nextElement()).getBytes(StandardCharsets.ISO_8859_1));
+				os.write(CRLF);
+			}
+			os.write(CRLF);
+			os.write(content);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Set;
+
+/**
+ * An email whose body and attachments have been rendered and encoded once, created by {@link GmailMailer#prepare(GmailMessage)}.
+ * <p>
+ * Each send only adds the recipients, and optionally a subject, to the prepared headers and writes the prepared body after them,
+ * so sending the same email to many recipients doesn't rebuild the same MIME structure for each of them. A prepared message is
+ * immutable and can be sent from many threads at once.
+ */
+public class GmailPreparedMessage {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final Session session;
+	private final InternetAddress from;
+	private final InternetAddress replyTo;
+	private final String subject;
+	private final String contentType;
+	private final byte[] body;
+	private final String credentialId;
+
+	GmailPreparedMessage(Session session, InternetAddress from, InternetAddress replyTo, String subject, String contentType, byte[] body, String credentialId) {
+		this.session = session;
+		this.from = from;
+		this.replyTo = replyTo;
+		this.subject = subject;
+		this.contentType = contentType;
+		this.body = body;
+		this.credentialId = credentialId;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getCredentialId() {
+		return credentialId;
+	}
+
+	/**
+	 * @return the size in bytes of the prepared body, shared by every email created from this message
+	 */
+	public int getBodySize() {
+		return body.length;
+	}
+
+	/**
+	 * Create an email with the prepared headers and body.
+	 *
+	 * @param to the to recipients
+	 * @param cc the cc recipients, or null
+	 * @param bcc the bcc recipients, or null
+	 * @param subject the subject, or null to use the prepared subject
+	 * @return the email to send
+	 * @throws MessagingException if the recipients or subject can't be set
+	 */
+	public MimeMessage createMimeMessage(Set<InternetAddress> to, Set<InternetAddress> cc, Set<InternetAddress> bcc, String subject) throws MessagingException {
+		MimeMessage email = new PreparedMimeMessage(session);
+		email.setFrom(from);
+		if (to != null && !to.isEmpty()) {
+			email.addRecipients(javax.mail.Message.RecipientType.TO, to.toArray(new InternetAddress[to.size()]));
+		}
+		if (cc != null && !cc.isEmpty()) {
+			email.addRecipients(javax.mail.Message.RecipientType.CC, cc.toArray(new InternetAddress[cc.size()]));
+		}
+		if (bcc != null && !bcc.isEmpty()) {
+			email.addRecipients(javax.mail.Message.RecipientType.BCC, bcc.toArray(new InternetAddress[bcc.size()]));
+		}
+		if (replyTo != null) {
+			email.setReplyTo(new Address[] { replyTo });
+		}
+		email.setSubject(subject == null ? this.subject : subject);
+		email.setHeader("Content-Type", contentType);
+		return email;
+	}
+
+	/**
+	 * Writes its own headers followed by the prepared body, rather than building and encoding a body of its own.
+	 */
+	private class PreparedMimeMessage extends MimeMessage {
+		private PreparedMimeMessage(Session session) {
+			super(session);
+		}
+
+		@Override
+		protected void updateHeaders() throws MessagingException {
+			setHeader("MIME-Version", "1.0");
+			setHeader("Content-Type", contentType);
+			updateMessageID();
+		}
+
+		/**
+		 * Lets the prepared body be read back as the content of the email.
+		 */
+		@Override
+		protected InputStream getContentStream() {
+			return new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+			if (!saved) {
+				saveChanges();
+			}
+			Enumeration<?> headerLines = getNonMatchingHeaderLines(ignoreList);
+			while (headerLines.hasMoreElements()) {
+				os.write(((String) headerLines.nextElement()).getBytes(StandardCharsets.ISO_8859_1));
+				os.write(CRLF);
+			}
+			os.write(CRLF);
+			os.write(body);
+			os.flush();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+/**
+ * The lane an email is sent in. Lanes share the {@link GmailSendExecutor} by weight and bulk sends leave a share of each credential's
+ * quota to transactional sends, so a bulk run doesn't hold up emails someone is waiting for.
+ */
+public enum GmailPriority {
+	/**
+	 * Emails someone is waiting for, such as password resets and receipts. Emails sent one at a time are transactional unless they
+	 * say otherwise.
+	 */
+	Transactional,
+	/**
+	 * Emails sent in volume, such as newsletters. Merges and sinks are bulk unless their emails say otherwise, batches are always bulk.
+	 */
+	Bulk
+}
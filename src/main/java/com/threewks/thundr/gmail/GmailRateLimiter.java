@@ -0,0 +1,340 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Paces Gmail requests to stay under each user's quota, rather than sending as fast as possible and being rate limited.
+ * <p>
+ * Gmail charges each request a number of quota units ({@link #SEND_UNITS} to send an email, {@link #DRAFT_UNITS} to create a draft)
+ * against the user it is made for, with a limit on the units used per second and per day. Once a user is over the limit every
+ * request fails with a 429 until the quota recovers, so sending at a steady pace just under the limit gets more mail through.
+ * <p>
+ * Each credential has its own token buckets, one refilled each second and one (optionally) each day, so a busy credential never
+ * uses up the quota of another. A request which can't be made straight away waits until its units are available, up to
+ * {@link #getMaxWaitMillis()}. Requests which would have to wait longer are rejected straight away with a {@link GmailException}
+ * rather than waiting and failing. Waits are reserved in the order requests arrive, so waiting requests are served first come,
+ * first served.
+ * <p>
+ * A share of each bucket, {@link #getReservedPercent()}, is kept for {@link GmailPriority#Transactional} requests. A
+ * {@link GmailPriority#Bulk} request is only made once its units can be taken with the reserved share still left over, so a bulk
+ * run never leaves a transactional email waiting for quota. Bulk requests don't reserve ahead of time, they check again once the
+ * quota might have recovered.
+ */
+public class GmailRateLimiter {
+
+	public static final int SEND_UNITS = 100;
+	public static final int DRAFT_UNITS = 10;
+	public static final int DEFAULT_UNITS_PER_SECOND = 250;
+	public static final int DEFAULT_MAX_WAIT_MILLIS = 30 * 1000;
+	public static final int DEFAULT_RESERVED_PERCENT = 20;
+
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+	private final long unitsPerSecond;
+	private final long unitsPerDay;
+	private final long maxWaitMillis;
+	private final int reservedPercent;
+	private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+
+	public GmailRateLimiter() {
+		this(DEFAULT_UNITS_PER_SECOND, 0, DEFAULT_MAX_WAIT_MILLIS);
+	}
+
+	/**
+	 * @param unitsPerSecond the quota units each credential may use per second
+	 * @param unitsPerDay the quota units each credential may use per day, or 0 for no daily limit
+	 * @param maxWaitMillis the longest a request waits for quota before it is rejected, 0 to reject any request which can't be made
+	 *                      straight away
+	 */
+	public GmailRateLimiter(long unitsPerSecond, long unitsPerDay, long maxWaitMillis) {
+		this(unitsPerSecond, unitsPerDay, maxWaitMillis, DEFAULT_RESERVED_PERCENT);
+	}
+
+	/**
+	 * @param unitsPerSecond the quota units each credential may use per second
+	 * @param unitsPerDay the quota units each credential may use per day, or 0 for no daily limit
+	 * @param maxWaitMillis the longest a request waits for quota before it is rejected, 0 to reject any request which can't be made
+	 *                      straight away
+	 * @param reservedPercent the percentage of each credential's quota bulk requests leave for transactional requests
+	 */
+	public GmailRateLimiter(long unitsPerSecond, long unitsPerDay, long maxWaitMillis, int reservedPercent) {
+		if (unitsPerSecond <= 0) {
+			throw new GmailException("Units per second must be greater than 0 but was %s", unitsPerSecond);
+		}
+		if (reservedPercent < 0 || reservedPercent >= 100) {
+			throw new GmailException("Reserved percent must be between 0 and 99 but was %s", reservedPercent);
+		}
+		this.unitsPerSecond = unitsPerSecond;
+		this.unitsPerDay = unitsPerDay;
+		this.maxWaitMillis = maxWaitMillis;
+		this.reservedPercent = reservedPercent;
+	}
+
+	/**
+	 * Take the given units from the credential's quota, waiting on the calling thread until they are available.
+	 *
+	 * @param credentialId the credential the request is made with
+	 * @param units the quota units the request uses
+	 * @throws GmailException if the units won't be available within {@link #getMaxWaitMillis()}
+	 */
+	public void acquire(String credentialId, long units) {
+		long wait = reserve(credentialId, units);
+		if (wait > 0) {
+			sleep(wait);
+		}
+	}
+
+	/**
+	 * Take the given units from the credential's quota, waiting on the calling thread until they are available to a request of the
+	 * given priority.
+	 *
+	 * @param credentialId the credential the request is made with
+	 * @param units the quota units the request uses
+	 * @param priority the lane of the request
+	 * @throws GmailException if the units won't be available within {@link #getMaxWaitMillis()}
+	 */
+	public void acquire(String credentialId, long units, GmailPriority priority) {
+		if (priority != GmailPriority.Bulk) {
+			acquire(credentialId, units);
+			return;
+		}
+		for (long wait = reserveBulk(credentialId, units); wait > 0; wait = reserveBulk(credentialId, units)) {
+			sleep(wait);
+		}
+	}
+
+	/**
+	 * Take the given units from the credential's quota without waiting for them. The request must not be made until the returned
+	 * delay has passed, this lets a caller schedule the request rather than hold a thread while it waits.
+	 *
+	 * @param credentialId the credential the request is made with
+	 * @param units the quota units the request uses
+	 * @return how long to wait before making the request, 0 if it can be made straight away
+	 * @throws GmailException if the units won't be available within {@link #getMaxWaitMillis()}
+	 */
+	public long reserve(String credentialId, long units) {
+		Quota quota = quotas.computeIfAbsent(credentialId, key -> new Quota(now()));
+		long wait = quota.reserve(units, now());
+		if (wait < 0) {
+			throw new GmailException("Gmail quota for %s is used up, %s units won't be available within %sms", credentialId, units, maxWaitMillis);
+		}
+		return wait;
+	}
+
+	/**
+	 * Take the given units from the credential's quota for a bulk request, if they can be taken without using the share reserved for
+	 * transactional requests. Unlike {@link #reserve(String, long)} nothing is taken if the request has to wait.
+	 *
+	 * @param credentialId the credential the request is made with
+	 * @param units the quota units the request uses
+	 * @return 0 if the units were taken and the request can be made straight away, otherwise how long to wait before trying again
+	 * @throws GmailException if the units won't be available within {@link #getMaxWaitMillis()}
+	 */
+	public long reserveBulk(String credentialId, long units) {
+		Quota quota = quotas.computeIfAbsent(credentialId, key -> new Quota(now()));
+		long wait = quota.reserveBulk(units, now());
+		if (wait < 0) {
+			throw new GmailException("Gmail quota for %s is used up for bulk sends, %s units won't be available within %sms", credentialId, units, maxWaitMillis);
+		}
+		return wait;
+	}
+
+	/**
+	 * Give back units taken for a request which wasn't made after all, such as one turned away by a full send queue.
+	 *
+	 * @param credentialId the credential the units were taken from
+	 * @param units the quota units taken
+	 */
+	public void release(String credentialId, long units) {
+		Quota quota = quotas.get(credentialId);
+		if (quota != null) {
+			quota.release(units);
+		}
+	}
+
+	/**
+	 * @param credentialId the credential
+	 * @return the quota units taken for the credential since it was first used
+	 */
+	public long getUnitsUsed(String credentialId) {
+		Quota quota = quotas.get(credentialId);
+		return quota == null ? 0 : quota.used();
+	}
+
+	/**
+	 * @return the quota units taken for each credential since it was first used
+	 */
+	public Map<String, Long> getUnitsUsed() {
+		Map<String, Long> used = new LinkedHashMap<>();
+		for (Map.Entry<String, Quota> quota : quotas.entrySet()) {
+			used.put(quota.getKey(), quota.getValue().used());
+		}
+		return used;
+	}
+
+	/**
+	 * @param credentialId the credential
+	 * @return the quota units the credential could take straight away
+	 */
+	public long getUnitsAvailable(String credentialId) {
+		Quota quota = quotas.get(credentialId);
+		return quota == null ? (unitsPerDay > 0 ? Math.min(unitsPerSecond, unitsPerDay) : unitsPerSecond) : quota.available(now());
+	}
+
+	public long getUnitsPerSecond() {
+		return unitsPerSecond;
+	}
+
+	public long getUnitsPerDay() {
+		return unitsPerDay;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	/**
+	 * @return the percentage of each credential's quota bulk requests leave for transactional requests
+	 */
+	public int getReservedPercent() {
+		return reservedPercent;
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	protected void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GmailException(e, "Interrupted waiting for Gmail quota");
+		}
+	}
+
+	private class Quota {
+		private final Bucket perSecond;
+		private final Bucket perDay;
+		private long used;
+
+		private Quota(long now) {
+			this.perSecond = new Bucket(unitsPerSecond, 1000, now, reservedPercent);
+			this.perDay = unitsPerDay > 0 ? new Bucket(unitsPerDay, DAY_MILLIS, now, reservedPercent) : null;
+		}
+
+		private synchronized long reserve(long units, long now) {
+			long wait = perSecond.waitMillis(units, 0, now);
+			if (perDay != null) {
+				wait = Math.max(wait, perDay.waitMillis(units, 0, now));
+			}
+			if (wait > maxWaitMillis) {
+				return -1;
+			}
+			take(units);
+			return wait;
+		}
+
+		private synchronized long reserveBulk(long units, long now) {
+			long wait = perSecond.waitMillis(units, perSecond.reserved, now);
+			if (perDay != null) {
+				wait = Math.max(wait, perDay.waitMillis(units, perDay.reserved, now));
+			}
+			if (wait > maxWaitMillis) {
+				return -1;
+			}
+			if (wait == 0) {
+				take(units);
+			}
+			return wait;
+		}
+
+		private void take(long units) {
+			perSecond.take(units);
+			if (perDay != null) {
+				perDay.take(units);
+			}
+			used += units;
+		}
+
+		private synchronized void release(long units) {
+			perSecond.release(units);
+			if (perDay != null) {
+				perDay.release(units);
+			}
+			used -= units;
+		}
+
+		private synchronized long used() {
+			return used;
+		}
+
+		private synchronized long available(long now) {
+			long available = perSecond.available(now);
+			return perDay == null ? available : Math.min(available, perDay.available(now));
+		}
+	}
+
+	private static class Bucket {
+		private final double capacity;
+		private final double unitsPerMilli;
+		private final double reserved;
+		private double available;
+		private long updated;
+
+		private Bucket(long capacity, long periodMillis, long now, int reservedPercent) {
+			this.capacity = capacity;
+			this.reserved = capacity * reservedPercent / 100.0;
+			this.unitsPerMilli = (double) capacity / periodMillis;
+			this.available = capacity;
+			this.updated = now;
+		}
+
+		private long waitMillis(long units, double reserved, long now) {
+			refill(now);
+			// a request larger than the whole bucket is let through once the bucket is full, leaving the bucket in debt
+			double needed = Math.min(units, capacity - reserved) + reserved;
+			return available >= needed ? 0 : (long) Math.ceil((needed - available) / unitsPerMilli);
+		}
+
+		private void take(long units) {
+			available -= units;
+		}
+
+		private void release(long units) {
+			available = Math.min(capacity, available + units);
+		}
+
+		private long available(long now) {
+			refill(now);
+			return Math.max(0, (long) available);
+		}
+
+		private void refill(long now) {
+			if (now > updated) {
+				available = Math.min(capacity, available + (now - updated) * unitsPerMilli);
+				updated = now;
+			}
+		}
+	}
+}
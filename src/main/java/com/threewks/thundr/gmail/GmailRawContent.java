@@ -0,0 +1,108 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.AbstractHttpContent;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A json request body with an email in a base64url encoded field, such as <code>{"raw":"..."}</code> for messages.send.
+ * <p>
+ * The email is base64url encoded as it is written to the request, rather than being encoded into a string held in a
+ * {@link com.google.api.services.gmail.model.Message} first, so the memory used doesn't grow with the size of the email.
+ */
+public class GmailRawContent extends AbstractHttpContent {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final GmailMimeContent email;
+	private final byte[] prefix;
+	private final byte[] suffix;
+
+	/**
+	 * @param email the email to encode
+	 * @param prefix the json written before the encoded email, up to and including the opening quote of the field
+	 * @param suffix the json written after the encoded email, from the closing quote of the field
+	 */
+	public GmailRawContent(GmailMimeContent email, String prefix, String suffix) {
+		super("application/json; charset=UTF-8");
+		this.email = email;
+		this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+		this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return content for messages.send
+	 */
+	public static GmailRawContent message(GmailMimeContent email) {
+		return new GmailRawContent(email, "{\"raw\":\"", "\"}");
+	}
+
+	/**
+	 * @return content for drafts.create
+	 */
+	public static GmailRawContent draft(GmailMimeContent email) {
+		return new GmailRawContent(email, "{\"message\":{\"raw\":\"", "\"}}");
+	}
+
+	@Override
+	protected long computeLength() throws IOException {
+		return prefix.length + encodedLength(email.getLength()) + suffix.length;
+	}
+
+	@Override
+	public boolean retrySupported() {
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(prefix);
+		OutputStream buffered = new BufferedOutputStream(new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				// the request owns the underlying stream
+				flush();
+			}
+		}, BUFFER_SIZE);
+		try (OutputStream encoder = Base64.getUrlEncoder().withoutPadding().wrap(buffered)) {
+			email.writeTo(encoder);
+		}
+		out.write(suffix);
+		out.flush();
+	}
+
+	/**
+	 * @param length the number of bytes to encode
+	 * @return the length of the unpadded base64 encoding of the given number of bytes
+	 */
+	static long encodedLength(long length) {
+		return (length * 4 + 2) / 3;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+/**
+ * Holds rendered email bodies and attachments so a view sent to many recipients is only rendered once. Set one with
+ * {@link GmailSettings#setRenderCache(GmailRenderCache)} to enable caching, by default views are rendered for every email.
+ * <p>
+ * Views wrapped in a {@link GmailCachedView} are cached under the key they were given, which a cache shared between instances
+ * (such as memcache) can store. Other views are only cached by a cache which is {@link #isCachingByIdentity()}.
+ * <p>
+ * A view is assumed to render the same way each time it is sent, so a view which is modified after being sent should not be cached
+ * by identity.
+ *
+ * @see GmailLruRenderCache
+ */
+public interface GmailRenderCache {
+
+	/**
+	 * @param key the key of the view
+	 * @return the cached rendering of the view, or null if it isn't cached
+	 */
+	GmailRenderedView get(Object key);
+
+	/**
+	 * @param key the key of the view
+	 * @param rendered the rendering of the view
+	 */
+	void put(Object key, GmailRenderedView rendered);
+
+	/**
+	 * Views which aren't wrapped in a {@link GmailCachedView} are cached under a key which is equal only to the same view instance.
+	 * These keys are only meaningful within a single instance and can't be serialized, and views built for a single email (such as
+	 * those of a merge) would fill the cache without ever being used again, so this is off unless a cache chooses it.
+	 *
+	 * @return true if views which aren't wrapped in a {@link GmailCachedView} are cached by instance
+	 */
+	default boolean isCachingByIdentity() {
+		return false;
+	}
+}
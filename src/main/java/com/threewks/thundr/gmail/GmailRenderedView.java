@@ -0,0 +1,91 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.request.InMemoryResponse;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The result of rendering the body or an attachment of an email, as held by a {@link GmailRenderCache}.
+ */
+public class GmailRenderedView implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] body;
+	private final String contentType;
+	private final String characterEncoding;
+	private transient volatile String contentHash;
+
+	public GmailRenderedView(byte[] body, String contentType, String characterEncoding) {
+		this.body = body;
+		this.contentType = contentType;
+		this.characterEncoding = characterEncoding;
+	}
+
+	public static GmailRenderedView from(InMemoryResponse response) {
+		return new GmailRenderedView(response.getBodyAsBytes(), response.getContentTypeString(), response.getCharacterEncoding());
+	}
+
+	public byte[] getBodyAsBytes() {
+		return body;
+	}
+
+	public String getBodyAsString() {
+		Charset charset = StringUtils.isBlank(characterEncoding) ? StandardCharsets.UTF_8 : Charset.forName(characterEncoding);
+		return new String(body, charset);
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	/**
+	 * @return a hash of the rendered body, calculated once per instance so views shared through a {@link GmailRenderCache} are only
+	 * hashed once
+	 */
+	public String getContentHash() {
+		String hash = contentHash;
+		if (hash == null) {
+			try {
+				hash = Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(body));
+			} catch (NoSuchAlgorithmException e) {
+				throw new GmailException(e);
+			}
+			contentHash = hash;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the number of bytes the rendered body takes up
+	 */
+	public int size() {
+		return body.length;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether, and when, a failed Gmail request is tried again.
+ * <p>
+ * Rate limits and server errors are transient, the same request will usually succeed if tried again later. They are retried with
+ * exponential back off, each delay reduced by a random amount (jitter) so many senders rate limited at once don't all retry at the
+ * same moment. If Gmail says when to retry with a Retry-After header the request is not retried before then. A request is not
+ * retried once it has been tried {@link #getMaxAttempts()} times, or if waiting to retry would exceed its time budget.
+ * <p>
+ * Other failures, such as invalid messages, are never retried as they would fail again.
+ */
+public class GmailRetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final int DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+	public static final int DEFAULT_MAX_DELAY_MILLIS = 32 * 1000;
+	public static final int DEFAULT_BUDGET_MILLIS = 60 * 1000;
+	public static final double DEFAULT_MULTIPLIER = 2;
+	public static final double DEFAULT_JITTER = 0.5;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS;
+	private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private long budgetMillis = DEFAULT_BUDGET_MILLIS;
+	private double multiplier = DEFAULT_MULTIPLIER;
+	private double jitter = DEFAULT_JITTER;
+
+	/**
+	 * @return a policy which never retries
+	 */
+	public static GmailRetryPolicy none() {
+		return new GmailRetryPolicy().setMaxAttempts(1);
+	}
+
+	/**
+	 * @param error the failure of an attempt
+	 * @param attempt the number of the attempt which failed, starting at 1
+	 * @param elapsedMillis the time since the first attempt started
+	 * @return how long to wait before the next attempt, or -1 if the request should not be retried
+	 */
+	public long retryDelay(Throwable error, int attempt, long elapsedMillis) {
+		if (!isRetryable(error)) {
+			return -1;
+		}
+		HttpHeaders headers = error instanceof HttpResponseException ? ((HttpResponseException) error).getHeaders() : null;
+		return retryDelay(attempt, elapsedMillis, retryAfterMillis(headers));
+	}
+
+	/**
+	 * @param attempt the number of the attempt which failed, starting at 1
+	 * @param elapsedMillis the time since the first attempt started
+	 * @param retryAfterMillis the minimum time to wait requested by Gmail, or 0
+	 * @return how long to wait before the next attempt, or -1 if there are no attempts or time budget left
+	 */
+	public long retryDelay(int attempt, long elapsedMillis, long retryAfterMillis) {
+		if (attempt >= maxAttempts) {
+			return -1;
+		}
+		long delay = Math.max(backOffMillis(attempt), retryAfterMillis);
+		if (elapsedMillis + delay > budgetMillis) {
+			return -1;
+		}
+		return delay;
+	}
+
+	/**
+	 * @param attempt the number of the attempt which failed, starting at 1
+	 * @return the exponential back off after the given attempt, with jitter applied
+	 */
+	public long backOffMillis(int attempt) {
+		double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt - 1));
+		return (long) (delay * (1 - jitter * random()));
+	}
+
+	/**
+	 * @param error the failure of an attempt
+	 * @return true if the failure is transient
+	 */
+	public boolean isRetryable(Throwable error) {
+		if (error instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) error).getDetails() != null) {
+			return isRetryable(((GoogleJsonResponseException) error).getDetails());
+		}
+		if (error instanceof HttpResponseException) {
+			return isRetryable(((HttpResponseException) error).getStatusCode());
+		}
+		return false;
+	}
+
+	public boolean isRetryable(GoogleJsonError error) {
+		if (isRetryable(error.getCode())) {
+			return true;
+		}
+		if (error.getErrors() != null) {
+			for (GoogleJsonError.ErrorInfo errorInfo : error.getErrors()) {
+				if ("rateLimitExceeded".equals(errorInfo.getReason()) || "userRateLimitExceeded".equals(errorInfo.getReason())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isRetryable(int statusCode) {
+		return statusCode == 429 || statusCode >= 500;
+	}
+
+	/**
+	 * @param headers the headers of a failed response, or null
+	 * @return the time Gmail asked to wait before retrying, in either of the forms Retry-After allows, or 0 if it didn't ask
+	 */
+	public long retryAfterMillis(HttpHeaders headers) {
+		String retryAfter = headers == null ? null : headers.getRetryAfter();
+		if (StringUtils.isBlank(retryAfter)) {
+			return 0;
+		}
+		retryAfter = retryAfter.trim();
+		if (StringUtils.isNumeric(retryAfter)) {
+			return Long.parseLong(retryAfter) * 1000;
+		}
+		try {
+			return Math.max(0, ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - now());
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	protected double random() {
+		return ThreadLocalRandom.current().nextDouble();
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the maximum number of times a request is tried, including the first attempt
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public GmailRetryPolicy setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	public long getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	public GmailRetryPolicy setInitialDelayMillis(long initialDelayMillis) {
+		this.initialDelayMillis = initialDelayMillis;
+		return this;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public GmailRetryPolicy setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+		return this;
+	}
+
+	/**
+	 * @return the maximum time from the first attempt of a request to the start of its last retry
+	 */
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	public GmailRetryPolicy setBudgetMillis(long budgetMillis) {
+		this.budgetMillis = budgetMillis;
+		return this;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public GmailRetryPolicy setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * @return the largest fraction each back off is randomly reduced by, between 0 (no jitter) and 1
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	public GmailRetryPolicy setJitter(double jitter) {
+		this.jitter = jitter;
+		return this;
+	}
+}
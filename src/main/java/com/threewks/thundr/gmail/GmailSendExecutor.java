@@ -0,0 +1,426 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.logger.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs sends for {@link GmailMailer#sendAsync(GmailMessage)} off the calling thread.
+ * <p>
+ * The amount of queued and running work is bounded, once the bound is reached further sends fail with a {@link GmailException}
+ * rather than queueing without limit. A tenth of the bound is kept for {@link GmailPriority#Transactional} sends, so a bulk run can't
+ * fill the executor.
+ * <p>
+ * Sends waiting for a thread wait in the lane of their {@link GmailPriority}. As threads free up the lanes take turns by weight, so
+ * with the default weights transactional sends get four threads for every one bulk sends get while both are waiting, and either lane
+ * gets every thread while the other is empty.
+ */
+public class GmailSendExecutor {
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	public static final int DEFAULT_TRANSACTIONAL_WEIGHT = 4;
+	public static final int DEFAULT_BULK_WEIGHT = 1;
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final Semaphore bulkPermits;
+	private final int maxRunning;
+	private final Map<GmailPriority, Lane> lanes = new EnumMap<>(GmailPriority.class);
+	private final Set<CompletableFuture<?>> delayed = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService delayScheduler;
+	// guarded by lanes
+	private int running;
+	private boolean shutdown;
+
+	/**
+	 * @param executor the executor to run sends on
+	 * @param maxInFlight the maximum number of sends queued or running at once, or 0 to rely on the executor to bound its own work
+	 * @param maxRunning the maximum number of sends running at once, or 0 to rely on the executor to limit concurrency. Sends only
+	 *                   wait in their lanes when this is set.
+	 */
+	public GmailSendExecutor(ExecutorService executor, int maxInFlight, int maxRunning) {
+		this.executor = executor;
+		this.permits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+		this.bulkPermits = maxInFlight > 0 ? new Semaphore(Math.max(1, maxInFlight - maxInFlight / 10)) : null;
+		this.maxRunning = maxRunning;
+		this.lanes.put(GmailPriority.Transactional, new Lane(DEFAULT_TRANSACTIONAL_WEIGHT));
+		this.lanes.put(GmailPriority.Bulk, new Lane(DEFAULT_BULK_WEIGHT));
+	}
+
+	/**
+	 * Creates an executor backed by a fixed size pool of daemon threads, idle threads are released.
+	 *
+	 * @param threads the number of threads sending at once
+	 * @param queueCapacity the number of sends which can wait for a thread
+	 */
+	public static GmailSendExecutor threadPool(int threads, int queueCapacity) {
+		// sends wait in their lanes, the pool's own queue only holds a send handed over as a thread finishes its last one
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads), daemonThreads("gmail-send"));
+		executor.allowCoreThreadTimeOut(true);
+		return new GmailSendExecutor(executor, threads + queueCapacity, threads);
+	}
+
+	/**
+	 * Creates an executor which runs each send on its own virtual thread. This requires Java 21 or later.
+	 *
+	 * @param concurrency the number of sends running at once
+	 * @param queueCapacity the number of sends which can wait to run
+	 */
+	public static GmailSendExecutor virtualThreads(int concurrency, int queueCapacity) {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new GmailSendExecutor(executor, concurrency + queueCapacity, concurrency);
+		} catch (ReflectiveOperationException e) {
+			throw new GmailException(e, "Virtual threads are not available, they require Java 21 or later");
+		}
+	}
+
+	/**
+	 * @param priority the lane
+	 * @param weight the share of threads the lane gets while other lanes are waiting too, relative to the weights of the other lanes
+	 * @return this executor
+	 */
+	public GmailSendExecutor setWeight(GmailPriority priority, int weight) {
+		if (weight < 1) {
+			throw new GmailException("Lane weight must be at least 1 but was %s", weight);
+		}
+		synchronized (lanes) {
+			lanes.get(priority).weight = weight;
+		}
+		return this;
+	}
+
+	/**
+	 * @param task the work to run
+	 * @return a future completed with the result of the task, or exceptionally if the task fails or there is no capacity to run it
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		return submit(task, GmailPriority.Transactional);
+	}
+
+	/**
+	 * @param task the work to run
+	 * @param priority the lane the task waits for a thread in
+	 * @return a future completed with the result of the task, or exceptionally if the task fails or there is no capacity to run it
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task, GmailPriority priority) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		boolean bulk = priority == GmailPriority.Bulk;
+		if (permits != null) {
+			if (bulk && !bulkPermits.tryAcquire()) {
+				future.completeExceptionally(new GmailException("Gmail send queue is full for bulk sends"));
+				return future;
+			}
+			if (!permits.tryAcquire()) {
+				if (bulk) {
+					bulkPermits.release();
+				}
+				future.completeExceptionally(new GmailException("Gmail send queue is full"));
+				return future;
+			}
+		}
+		Queued<T> queued = new Queued<>(task, future, bulk);
+		synchronized (lanes) {
+			if (shutdown) {
+				queued.reject(new GmailException("Gmail send executor is shut down"));
+				return future;
+			}
+			lanes.get(priority).queue.add(queued);
+		}
+		dispatch();
+		return future;
+	}
+
+	/**
+	 * Run the given task once the delay has passed. The task doesn't take up any capacity while it waits.
+	 *
+	 * @param task the work to run
+	 * @param delayMillis how long to wait before running the task
+	 * @return a future completed with the result of the task, or exceptionally if the task fails or there is no capacity to run it
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task, long delayMillis) {
+		return submit(task, delayMillis, GmailPriority.Transactional);
+	}
+
+	/**
+	 * Run the given task once the delay has passed. The task doesn't take up any capacity while it waits.
+	 *
+	 * @param task the work to run
+	 * @param delayMillis how long to wait before running the task
+	 * @param priority the lane the task waits for a thread in, once the delay has passed
+	 * @return a future completed with the result of the task, or exceptionally if the task fails or there is no capacity to run it
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task, long delayMillis, GmailPriority priority) {
+		if (delayMillis <= 0) {
+			return submit(task, priority);
+		}
+		CompletableFuture<T> future = new CompletableFuture<>();
+		delay(delayMillis).whenComplete((ignored, error) -> {
+			if (error != null) {
+				future.completeExceptionally(error);
+				return;
+			}
+			submit(task, priority).whenComplete((result, taskError) -> {
+				if (taskError == null) {
+					future.complete(result);
+				} else {
+					future.completeExceptionally(taskError);
+				}
+			});
+		});
+		return future;
+	}
+
+	/**
+	 * @param delayMillis how long to wait
+	 * @return a future completed on a timer thread once the delay has passed, or exceptionally if the executor is shut down first.
+	 * Nothing should block on the timer thread.
+	 */
+	public CompletableFuture<Void> delay(long delayMillis) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		delayed.add(future);
+		try {
+			delayScheduler().schedule(() -> {
+				if (delayed.remove(future)) {
+					future.complete(null);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			delayed.remove(future);
+			future.completeExceptionally(new GmailException(e, "Gmail send executor is shut down"));
+		}
+		return future;
+	}
+
+	/**
+	 * @param priority the lane
+	 * @return the number of sends waiting in the lane for a thread
+	 */
+	public int getQueueDepth(GmailPriority priority) {
+		synchronized (lanes) {
+			return lanes.get(priority).queue.size();
+		}
+	}
+
+	/**
+	 * Stop accepting new sends and wait for queued and running sends to complete.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if all sends completed in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		synchronized (this) {
+			if (delayScheduler != null) {
+				delayScheduler.shutdownNow();
+			}
+		}
+		for (CompletableFuture<?> future : delayed) {
+			if (delayed.remove(future)) {
+				future.completeExceptionally(new GmailException("Gmail send executor was shut down before a delayed send ran"));
+			}
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<Queued<?>> abandoned = new ArrayList<>();
+		try {
+			synchronized (lanes) {
+				shutdown = true;
+				// sends waiting in a lane are handed to the executor as running sends finish, so the lanes empty before it shuts down
+				for (long remaining = deadline - System.nanoTime(); !lanesEmpty() && remaining > 0; remaining = deadline - System.nanoTime()) {
+					TimeUnit.NANOSECONDS.timedWait(lanes, remaining);
+				}
+				for (Lane lane : lanes.values()) {
+					abandoned.addAll(lane.queue);
+					lane.queue.clear();
+				}
+			}
+			executor.shutdown();
+			if (abandoned.isEmpty() && executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Queued<?> queued : abandoned) {
+			queued.reject(new GmailException("Gmail send executor was shut down before a queued send ran"));
+		}
+		Logger.warn("Gmail sends were still running after waiting %s %s for them to complete", timeout, unit);
+		executor.shutdownNow();
+		return false;
+	}
+
+	/**
+	 * Hand waiting sends to the executor while there are threads for them, taking turns between the lanes by weight.
+	 */
+	private void dispatch() {
+		List<Queued<?>> ready = new ArrayList<>();
+		synchronized (lanes) {
+			while (maxRunning <= 0 || running < maxRunning) {
+				Lane lane = nextLane();
+				if (lane == null) {
+					break;
+				}
+				ready.add(lane.queue.poll());
+				running++;
+			}
+		}
+		for (Queued<?> queued : ready) {
+			try {
+				executor.execute(queued);
+			} catch (RejectedExecutionException e) {
+				synchronized (lanes) {
+					running--;
+					lanes.notifyAll();
+				}
+				queued.reject(new GmailException(e, "Gmail send queue is full"));
+			}
+		}
+	}
+
+	/**
+	 * Smooth weighted round robin: each waiting lane earns its weight every turn, and the lane with the most earned goes next and pays
+	 * back the weights of all the waiting lanes. This interleaves the lanes rather than running all of one lane's turns together.
+	 */
+	private Lane nextLane() {
+		Lane next = null;
+		int total = 0;
+		for (Lane lane : lanes.values()) {
+			if (!lane.queue.isEmpty()) {
+				lane.current += lane.weight;
+				total += lane.weight;
+				if (next == null || lane.current > next.current) {
+					next = lane;
+				}
+			}
+		}
+		if (next != null) {
+			next.current -= total;
+		}
+		return next;
+	}
+
+	private boolean lanesEmpty() {
+		for (Lane lane : lanes.values()) {
+			if (!lane.queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void finished(Queued<?> queued, boolean ran) {
+		if (ran) {
+			synchronized (lanes) {
+				running--;
+				lanes.notifyAll();
+			}
+		}
+		if (permits != null) {
+			permits.release();
+			if (queued.bulk) {
+				bulkPermits.release();
+			}
+		}
+		if (ran) {
+			dispatch();
+		}
+	}
+
+	private synchronized ScheduledExecutorService delayScheduler() {
+		if (delayScheduler == null) {
+			delayScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("gmail-send-delay"));
+		}
+		return delayScheduler;
+	}
+
+	static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static class Lane {
+		private final Queue<Queued<?>> queue = new ArrayDeque<>();
+		private int weight;
+		private int current;
+
+		private Lane(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	private class Queued<T> implements Runnable {
+		private final Callable<T> task;
+		private final CompletableFuture<T> future;
+		private final boolean bulk;
+
+		private Queued(Callable<T> task, CompletableFuture<T> future, boolean bulk) {
+			this.task = task;
+			this.future = future;
+			this.bulk = bulk;
+		}
+
+		@Override
+		public void run() {
+			T result = null;
+			Throwable error = null;
+			try {
+				result = task.call();
+			} catch (Throwable t) {
+				error = t;
+			}
+			// the task's slot is given up before the future completes, so work chained on the future can take it straight away
+			finished(this, true);
+			if (error == null) {
+				future.complete(result);
+			} else {
+				future.completeExceptionally(error);
+			}
+		}
+
+		private void reject(GmailException e) {
+			finished(this, false);
+			future.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+/**
+ * The outcome of sending a single {@link GmailMessage} as part of {@link GmailMailer#sendBatch(java.util.List)}.
+ */
+public class GmailSendResult {
+
+	private final GmailMessage message;
+	private final String id;
+	private final RuntimeException error;
+
+	private GmailSendResult(GmailMessage message, String id, RuntimeException error) {
+		this.message = message;
+		this.id = id;
+		this.error = error;
+	}
+
+	public static GmailSendResult success(GmailMessage message, String id) {
+		return new GmailSendResult(message, id, null);
+	}
+
+	public static GmailSendResult failure(GmailMessage message, RuntimeException error) {
+		return new GmailSendResult(message, null, error);
+	}
+
+	public GmailMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the id Gmail assigned to the sent message, or null if the send failed
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the reason the send failed, or null if it succeeded
+	 */
+	public RuntimeException getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return isSuccess() ? "Sent " + id : "Failed: " + error.getMessage();
+	}
+}
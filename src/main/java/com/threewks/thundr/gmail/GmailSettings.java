@@ -0,0 +1,358 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tuning options for how the {@link GmailMailer} talks to the Gmail API. The {@link GmailModule} populates these from
+ * application.properties, the defaults are suitable for most applications.
+ */
+public class GmailSettings {
+
+	/**
+	 * Gmail accepts up to 100 calls in a batch, but recommends no more than 50 to avoid being rate limited.
+	 */
+	public static final int MAX_BATCH_SIZE = 100;
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	public static final int DEFAULT_BATCH_RETRIES = 3;
+	public static final String DEFAULT_BATCH_URL = "https://www.googleapis.com/batch/gmail/v1";
+	public static final int DEFAULT_MERGE_MAX_IN_FLIGHT = 100;
+	/**
+	 * Small requests cost more cpu to compress than they save on the wire.
+	 */
+	public static final int DEFAULT_GZIP_THRESHOLD = 16 * 1024;
+
+	public static final int DEFAULT_MEDIA_UPLOAD_THRESHOLD = 256 * 1024;
+	public static final int DEFAULT_RESUMABLE_UPLOAD_THRESHOLD = 5 * 1024 * 1024;
+	/**
+	 * Resumable upload chunks must be a multiple of 256 KiB.
+	 */
+	public static final int UPLOAD_CHUNK_SIZE_MULTIPLE = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+	public static final int DEFAULT_UPLOAD_CHUNK_SIZE = 8 * UPLOAD_CHUNK_SIZE_MULTIPLE;
+
+	/**
+	 * How emails are uploaded to Gmail.
+	 */
+	public enum UploadMode {
+		/**
+		 * Use a media upload for emails at or above the media upload threshold, otherwise send a raw json message.
+		 */
+		Auto,
+		/**
+		 * Always send the email base64url encoded inside a json message.
+		 */
+		Raw,
+		/**
+		 * Always upload the email as message/rfc822 media.
+		 */
+		Media
+	}
+
+	private UploadMode uploadMode = UploadMode.Auto;
+	private int mediaUploadThreshold = DEFAULT_MEDIA_UPLOAD_THRESHOLD;
+	private int resumableUploadThreshold = DEFAULT_RESUMABLE_UPLOAD_THRESHOLD;
+	private int uploadChunkSize = DEFAULT_UPLOAD_CHUNK_SIZE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int batchRetries = DEFAULT_BATCH_RETRIES;
+	private String batchUrl = DEFAULT_BATCH_URL;
+	private Properties sessionProperties = new Properties();
+	private GmailRenderCache renderCache;
+	private GmailPartCache partCache;
+	private GmailRetryPolicy retryPolicy = new GmailRetryPolicy();
+	private GmailRateLimiter rateLimiter;
+	private GmailSpool spool;
+	private GmailCircuitBreaker circuitBreaker = new GmailCircuitBreaker();
+	private GmailMetrics metrics = new GmailHistogramMetrics();
+	private GmailCredentialPool credentialPool;
+	private GmailDedupeLedger dedupeLedger;
+	private Executor mergeExecutor = ForkJoinPool.commonPool();
+	private int mergeMaxInFlight = DEFAULT_MERGE_MAX_IN_FLIGHT;
+	private int gzipThreshold = DEFAULT_GZIP_THRESHOLD;
+	private boolean partialResponses = true;
+
+	public UploadMode getUploadMode() {
+		return uploadMode;
+	}
+
+	public GmailSettings setUploadMode(UploadMode uploadMode) {
+		this.uploadMode = uploadMode;
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes at which {@link UploadMode#Auto} switches from raw json messages to media uploads
+	 */
+	public int getMediaUploadThreshold() {
+		return mediaUploadThreshold;
+	}
+
+	public GmailSettings setMediaUploadThreshold(int mediaUploadThreshold) {
+		this.mediaUploadThreshold = mediaUploadThreshold;
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes at which emails are sent with a resumable upload, in chunks which can be resent individually if the
+	 * connection fails, rather than in a single request. Emails are never uploaded this way in {@link UploadMode#Raw}.
+	 */
+	public int getResumableUploadThreshold() {
+		return resumableUploadThreshold;
+	}
+
+	public GmailSettings setResumableUploadThreshold(int resumableUploadThreshold) {
+		this.resumableUploadThreshold = resumableUploadThreshold;
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes of each request of a resumable upload, a multiple of {@link #UPLOAD_CHUNK_SIZE_MULTIPLE}
+	 */
+	public int getUploadChunkSize() {
+		return uploadChunkSize;
+	}
+
+	public GmailSettings setUploadChunkSize(int uploadChunkSize) {
+		if (uploadChunkSize <= 0 || uploadChunkSize % UPLOAD_CHUNK_SIZE_MULTIPLE != 0) {
+			throw new GmailException("Upload chunk size must be a multiple of %s but was %s", UPLOAD_CHUNK_SIZE_MULTIPLE, uploadChunkSize);
+		}
+		this.uploadChunkSize = uploadChunkSize;
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of sends grouped into a single batch request. Batched sends are always raw json messages, as batch
+	 * requests can't contain media uploads.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public GmailSettings setBatchSize(int batchSize) {
+		if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+			throw new GmailException("Batch size must be between 1 and %s but was %s", MAX_BATCH_SIZE, batchSize);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @return the number of times sends in a batch which failed with a transient error are retried
+	 */
+	public int getBatchRetries() {
+		return batchRetries;
+	}
+
+	public GmailSettings setBatchRetries(int batchRetries) {
+		this.batchRetries = batchRetries;
+		return this;
+	}
+
+	/**
+	 * @return the Gmail batch endpoint
+	 */
+	public String getBatchUrl() {
+		return batchUrl;
+	}
+
+	public GmailSettings setBatchUrl(String batchUrl) {
+		this.batchUrl = batchUrl;
+		return this;
+	}
+
+	/**
+	 * @return the properties of the mail {@link javax.mail.Session} the {@link GmailMailer} creates once and builds every email with
+	 */
+	public Properties getSessionProperties() {
+		return sessionProperties;
+	}
+
+	public GmailSettings setSessionProperties(Properties sessionProperties) {
+		this.sessionProperties = sessionProperties;
+		return this;
+	}
+
+	/**
+	 * @return the cache rendered bodies and attachments are shared through, or null if views are rendered for every email
+	 */
+	public GmailRenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	public GmailSettings setRenderCache(GmailRenderCache renderCache) {
+		this.renderCache = renderCache;
+		return this;
+	}
+
+	/**
+	 * @return the cache attachments are transfer encoded through, so identical attachments are only encoded once, or null if every
+	 * attachment is encoded for every email
+	 */
+	public GmailPartCache getPartCache() {
+		return partCache;
+	}
+
+	public GmailSettings setPartCache(GmailPartCache partCache) {
+		this.partCache = partCache;
+		return this;
+	}
+
+	/**
+	 * @return decides which failed requests are retried and how long to wait before retrying them
+	 */
+	public GmailRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public GmailSettings setRetryPolicy(GmailRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/**
+	 * @return paces requests to stay under each credential's Gmail quota, or null if requests are made as fast as possible
+	 */
+	public GmailRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public GmailSettings setRateLimiter(GmailRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		return this;
+	}
+
+	/**
+	 * @return the spool emails sent through the standard {@link com.threewks.thundr.mail.Mailer} interface are added to, or null if
+	 * they are sent straight away
+	 */
+	public GmailSpool getSpool() {
+		return spool;
+	}
+
+	public GmailSettings setSpool(GmailSpool spool) {
+		this.spool = spool;
+		return this;
+	}
+
+	/**
+	 * @return fails requests through a credential which keeps failing straight away, or null if every request is made
+	 */
+	public GmailCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public GmailSettings setCircuitBreaker(GmailCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+		return this;
+	}
+
+	/**
+	 * @return records how long each stage of sending an email takes, or null if sends aren't timed
+	 */
+	public GmailMetrics getMetrics() {
+		return metrics;
+	}
+
+	public GmailSettings setMetrics(GmailMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * @return the accounts emails which don't name a credential are spread over, or null if they are sent with
+	 * {@link GmailMailer#CREDENTIAL_USER_ID}
+	 */
+	public GmailCredentialPool getCredentialPool() {
+		return credentialPool;
+	}
+
+	public GmailSettings setCredentialPool(GmailCredentialPool credentialPool) {
+		this.credentialPool = credentialPool;
+		return this;
+	}
+
+	/**
+	 * @return remembers the idempotency keys of sent emails so an email isn't sent twice, or null if every email is sent
+	 */
+	public GmailDedupeLedger getDedupeLedger() {
+		return dedupeLedger;
+	}
+
+	public GmailSettings setDedupeLedger(GmailDedupeLedger dedupeLedger) {
+		this.dedupeLedger = dedupeLedger;
+		return this;
+	}
+
+	/**
+	 * @return the executor {@link GmailMailer#merge(java.util.Iterator, java.util.function.Function, java.util.function.Consumer)} renders
+	 * each recipient's email on
+	 */
+	public Executor getMergeExecutor() {
+		return mergeExecutor;
+	}
+
+	public GmailSettings setMergeExecutor(Executor mergeExecutor) {
+		this.mergeExecutor = mergeExecutor;
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of emails of a merge being rendered or sent at once, which bounds the memory a merge uses. Keep this
+	 * below the queue capacity of the {@link GmailSendExecutor}.
+	 */
+	public int getMergeMaxInFlight() {
+		return mergeMaxInFlight;
+	}
+
+	public GmailSettings setMergeMaxInFlight(int mergeMaxInFlight) {
+		if (mergeMaxInFlight < 1) {
+			throw new GmailException("Merge max in flight must be at least 1 but was %s", mergeMaxInFlight);
+		}
+		this.mergeMaxInFlight = mergeMaxInFlight;
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes of the email at which requests sending it are gzipped, 0 to gzip every request or -1 to never gzip
+	 */
+	public int getGzipThreshold() {
+		return gzipThreshold;
+	}
+
+	public GmailSettings setGzipThreshold(int gzipThreshold) {
+		this.gzipThreshold = gzipThreshold;
+		return this;
+	}
+
+	/**
+	 * @return true if sends and drafts ask Gmail to respond with only the ids of the message and its thread, rather than the full
+	 * message resource
+	 */
+	public boolean isPartialResponses() {
+		return partialResponses;
+	}
+
+	public GmailSettings setPartialResponses(boolean partialResponses) {
+		this.partialResponses = partialResponses;
+		return this;
+	}
+}
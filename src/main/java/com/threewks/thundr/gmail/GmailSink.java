@@ -0,0 +1,230 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.logger.Logger;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Sends the emails of a publisher as fast as Gmail accepts them, and publishes the result of each send.
+ * <p>
+ * The sink requests up to its max in flight emails from the publisher, and only requests another once the result of a send has been
+ * delivered to the result subscriber. So a slow Gmail, a rate limited credential or a slow result subscriber each slow the publisher
+ * down rather than filling a queue. Emails are rendered on the {@link GmailSettings#getMergeExecutor()} and sent through the
+ * {@link GmailSendExecutor}, with the same rate limits and retries as {@link GmailMailer#sendAsync(GmailMessage)}.
+ * <p>
+ * Subscribe to the results before connecting the sink to a publisher, results of sends which complete while there is no result
+ * subscriber are dropped. Results are delivered in the order the sends complete, not the order the emails were published.
+ * <p>
+ * eg: to send the emails of an event stream
+ * <pre>
+ * GmailSink sink = mailer.sink();
+ * sink.subscribe(resultSubscriber);
+ * events.subscribe(sink);
+ * </pre>
+ */
+public class GmailSink implements GmailFlow.Processor<GmailMessage, GmailSendResult> {
+
+	private final GmailMailer mailer;
+	private final int maxInFlight;
+	private final GmailMergeResult counts = new GmailMergeResult();
+	private final Queue<GmailSendResult> results = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger sending = new AtomicInteger();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger draining = new AtomicInteger();
+	private final AtomicReference<GmailFlow.Subscription> upstream = new AtomicReference<>();
+	private final AtomicReference<GmailFlow.Subscriber<? super GmailSendResult>> downstream = new AtomicReference<>();
+	private volatile boolean done;
+	private volatile Throwable error;
+	private volatile boolean cancelled;
+	private volatile IllegalArgumentException invalidRequest;
+	// only read and written while draining
+	private boolean terminated;
+
+	/**
+	 * @param mailer sends the emails
+	 * @param maxInFlight the maximum number of emails requested from the publisher whose results haven't been delivered
+	 */
+	public GmailSink(GmailMailer mailer, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new GmailException("Sink max in flight must be at least 1 but was %s", maxInFlight);
+		}
+		this.mailer = mailer;
+		this.maxInFlight = maxInFlight;
+	}
+
+	@Override
+	public void onSubscribe(GmailFlow.Subscription subscription) {
+		Objects.requireNonNull(subscription);
+		if (!upstream.compareAndSet(null, subscription)) {
+			Logger.warn("A Gmail sink can only be subscribed to one publisher, cancelling the second subscription");
+			subscription.cancel();
+			return;
+		}
+		subscription.request(maxInFlight);
+	}
+
+	@Override
+	public void onNext(GmailMessage message) {
+		Objects.requireNonNull(message);
+		if (done) {
+			return;
+		}
+		sending.incrementAndGet();
+		mailer.renderAndSendAsync(message, Function.<GmailMessage>identity(), this::complete);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		Objects.requireNonNull(throwable);
+		Logger.warn("Gmail sink publisher failed, finishing emails already received: %s", throwable.getMessage());
+		error = throwable;
+		done = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		done = true;
+		drain();
+	}
+
+	/**
+	 * @param subscriber receives the result of each send, only one subscriber is supported. Cancelling its subscription stops results
+	 *                   being delivered, emails are still sent.
+	 */
+	@Override
+	public void subscribe(GmailFlow.Subscriber<? super GmailSendResult> subscriber) {
+		Objects.requireNonNull(subscriber);
+		if (!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new GmailFlow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new GmailException("A Gmail sink publishes its results to a single subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(new GmailFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					invalidRequest = new IllegalArgumentException("Results must be requested in positive amounts but " + n + " were requested");
+				} else {
+					demand.getAndUpdate(requested -> requested + n < 0 ? Long.MAX_VALUE : requested + n);
+				}
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				drain();
+			}
+		});
+		drain();
+	}
+
+	/**
+	 * @return the number of emails sent and failed so far
+	 */
+	public GmailMergeResult getResult() {
+		return counts;
+	}
+
+	/**
+	 * @return the number of emails received from the publisher which are still being rendered or sent
+	 */
+	public int getSending() {
+		return sending.get();
+	}
+
+	private void complete(GmailSendResult result) {
+		counts.record(result);
+		results.offer(result);
+		sending.decrementAndGet();
+		drain();
+	}
+
+	/**
+	 * Deliver waiting results and request as many more emails as results were delivered. Only one thread drains at a time, a thread
+	 * which finds another draining leaves it to drain again.
+	 */
+	private void drain() {
+		if (draining.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			GmailFlow.Subscriber<? super GmailSendResult> subscriber = downstream.get();
+			long released = 0;
+			if (subscriber != null && !terminated && invalidRequest != null) {
+				terminated = true;
+				subscriber.onError(invalidRequest);
+			}
+			if (subscriber == null || cancelled || terminated) {
+				while (results.poll() != null) {
+					released++;
+				}
+			} else {
+				long requested = demand.get();
+				GmailSendResult result;
+				while (released < requested && !cancelled && (result = results.poll()) != null) {
+					released++;
+					deliver(subscriber, result);
+				}
+				if (released > 0 && requested != Long.MAX_VALUE) {
+					demand.addAndGet(-released);
+				}
+			}
+			if (subscriber != null && !cancelled && !terminated && done && sending.get() == 0 && results.isEmpty()) {
+				terminated = true;
+				if (error == null) {
+					subscriber.onComplete();
+				} else {
+					subscriber.onError(error);
+				}
+			}
+			GmailFlow.Subscription subscription = upstream.get();
+			if (released > 0 && !done && subscription != null) {
+				subscription.request(released);
+			}
+			missed = draining.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void deliver(GmailFlow.Subscriber<? super GmailSendResult> subscriber, GmailSendResult result) {
+		try {
+			subscriber.onNext(result);
+		} catch (RuntimeException e) {
+			Logger.warn("Gmail sink result subscriber failed, no further results will be delivered: %s", e.getMessage());
+			cancelled = true;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.HttpResponseException;
+import com.threewks.thundr.logger.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue of emails waiting to be sent, drained by a pool of background workers.
+ * <p>
+ * Adding an email to the spool only renders it and writes it to the {@link GmailSpoolStore}, so the caller doesn't wait for Gmail,
+ * and an email which can't be sent because Gmail is slow or down isn't lost. Workers send each email with
+ * {@link GmailMailer#send(GmailMessage)}, which retries transient failures itself. Emails which still fail are tried again later,
+ * with increasing delays, until {@link #getRetryPolicy()} gives up on them. Emails Gmail rejects outright, such as invalid
+ * addresses, are not tried again.
+ * <p>
+ * Emails with a send time are held in a {@link GmailTimingWheel} until they are due, then released to the workers together. The wheel
+ * is advanced by one periodic task, so emails waiting for their send time don't each take a thread or a timer.
+ * <p>
+ * When the spool shuts down sends in progress are finished, the rest of the emails stay in the store and are sent once the spool is
+ * started again. The spool only sends the emails {@link GmailSpoolStore#claim()} gives it, so instances sharing a store don't send
+ * each other's emails. A store which hands over the emails of stopped instances is claimed from periodically.
+ */
+public class GmailSpool {
+
+	public static final int DEFAULT_WORKERS = 2;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final int DEFAULT_INITIAL_DELAY_MILLIS = 30 * 1000;
+	public static final int DEFAULT_MAX_DELAY_MILLIS = 30 * 60 * 1000;
+	public static final int DEFAULT_TICK_MILLIS = 1000;
+
+	private final GmailSpoolStore store;
+	private final int workers;
+	private final GmailRetryPolicy retryPolicy;
+	private final long tickMillis;
+	private volatile GmailTimingWheel<GmailSpooledMessage> wheel;
+	private final ConcurrentMap<String, GmailSpooledMessage> pending = new ConcurrentHashMap<>();
+	// a sent email is removed from the store and pending together, so a claim never sees it in the store once it has left pending
+	private final Object claimLock = new Object();
+	private volatile GmailMailer mailer;
+	private volatile ScheduledThreadPoolExecutor executor;
+	private volatile boolean shutdown;
+
+	public GmailSpool(GmailSpoolStore store) {
+		this(store, DEFAULT_WORKERS);
+	}
+
+	public GmailSpool(GmailSpoolStore store, int workers) {
+		this(store, workers, new GmailRetryPolicy()
+				.setMaxAttempts(DEFAULT_MAX_ATTEMPTS)
+				.setInitialDelayMillis(DEFAULT_INITIAL_DELAY_MILLIS)
+				.setMaxDelayMillis(DEFAULT_MAX_DELAY_MILLIS)
+				.setBudgetMillis(Long.MAX_VALUE));
+	}
+
+	/**
+	 * @param store holds the emails waiting to be sent
+	 * @param workers the number of emails sent at once
+	 * @param retryPolicy decides how long to wait before trying a failed email again, and when to give up on it
+	 */
+	public GmailSpool(GmailSpoolStore store, int workers, GmailRetryPolicy retryPolicy) {
+		this(store, workers, retryPolicy, DEFAULT_TICK_MILLIS);
+	}
+
+	/**
+	 * @param store holds the emails waiting to be sent
+	 * @param workers the number of emails sent at once
+	 * @param retryPolicy decides how long to wait before trying a failed email again, and when to give up on it
+	 * @param tickMillis how often emails which have reached their send time are released, they are sent up to this long after it
+	 */
+	public GmailSpool(GmailSpoolStore store, int workers, GmailRetryPolicy retryPolicy, long tickMillis) {
+		this.store = store;
+		this.workers = workers;
+		this.retryPolicy = retryPolicy;
+		this.tickMillis = tickMillis;
+	}
+
+	/**
+	 * Start sending the emails in the spool, including any left in the store when the application last stopped. Starting a spool which
+	 * is already started does nothing.
+	 *
+	 * @param mailer the mailer to send emails with
+	 */
+	public synchronized void start(GmailMailer mailer) {
+		if (executor != null || shutdown) {
+			return;
+		}
+		this.mailer = mailer;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(workers, GmailSendExecutor.daemonThreads("gmail-spool"));
+		// emails waiting to be retried when the spool shuts down stay in the store rather than holding up shut down
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.wheel = new GmailTimingWheel<>(tickMillis, GmailTimingWheel.DEFAULT_WHEEL_SIZE, now());
+		this.executor = executor;
+		executor.scheduleWithFixedDelay(this::releaseDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		try {
+			int added = claim();
+			if (added > 0) {
+				Logger.info("Sending %s emails left in the Gmail spool", added);
+			}
+		} catch (IOException e) {
+			throw new GmailException(e, "Failed to load spooled emails: %s", e.getMessage());
+		}
+		long claimInterval = store.getClaimIntervalMillis();
+		if (claimInterval > 0) {
+			executor.scheduleWithFixedDelay(this::claimAbandoned, claimInterval, claimInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Add an email to the spool, it is sent by a worker once the spool is started. Use
+	 * {@link GmailMailer#enqueue(GmailMessage)} to render and add a {@link GmailMessage}.
+	 *
+	 * @param message the email to send
+	 * @throws GmailException if the email could not be stored
+	 */
+	public void enqueue(GmailSpooledMessage message) {
+		if (shutdown) {
+			throw new GmailException("Gmail spool is shut down");
+		}
+		try {
+			store.add(message);
+		} catch (IOException e) {
+			throw new GmailException(e, "Failed to spool email: %s", e.getMessage());
+		}
+		// an email added while the spool is starting may also be loaded from the store, it is only scheduled once
+		add(message);
+	}
+
+	/**
+	 * @return the number of emails waiting to be sent by this spool, including those waiting for their send time
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of emails waiting for their send time
+	 */
+	public int scheduled() {
+		GmailTimingWheel<GmailSpooledMessage> wheel = this.wheel;
+		return wheel == null ? 0 : wheel.size();
+	}
+
+	public boolean isStarted() {
+		return executor != null;
+	}
+
+	public GmailRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Stop sending emails, waiting for sends in progress to finish. Emails which haven't been sent stay in the store.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if sends in progress finished in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		ScheduledThreadPoolExecutor executor;
+		synchronized (this) {
+			shutdown = true;
+			executor = this.executor;
+		}
+		boolean finished = true;
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				finished = executor.awaitTermination(timeout, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				finished = false;
+			}
+			if (!finished) {
+				Logger.warn("Gmail spool sends were still running after waiting %s %s for them to complete", timeout, unit);
+				executor.shutdownNow();
+			}
+		}
+		try {
+			store.close();
+		} catch (IOException e) {
+			Logger.warn("Failed to close Gmail spool store: %s", e.getMessage());
+		}
+		return finished;
+	}
+
+	private boolean add(GmailSpooledMessage message) {
+		if (executor == null || pending.putIfAbsent(message.getId(), message) != null) {
+			return false;
+		}
+		if (message.getSendAt() > now()) {
+			wheel.add(message, message.getSendAt());
+		} else {
+			schedule(message, 1, 0);
+		}
+		return true;
+	}
+
+	private int claim() throws IOException {
+		int added = 0;
+		synchronized (claimLock) {
+			for (GmailSpooledMessage message : store.claim()) {
+				if (add(message)) {
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	private void claimAbandoned() {
+		try {
+			int added = claim();
+			if (added > 0) {
+				Logger.info("Sending %s emails taken over from stopped instances in the Gmail spool", added);
+			}
+		} catch (IOException | RuntimeException e) {
+			Logger.warn("Failed to claim spooled emails: %s", e.getMessage());
+		}
+	}
+
+	private void releaseDue() {
+		List<GmailSpooledMessage> due = wheel.advance(now());
+		if (!due.isEmpty()) {
+			Logger.debug("Releasing %s scheduled emails from the Gmail spool", due.size());
+		}
+		for (GmailSpooledMessage message : due) {
+			schedule(message, 1, 0);
+		}
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private void schedule(GmailSpooledMessage message, int attempt, long delay) {
+		ScheduledThreadPoolExecutor executor = this.executor;
+		if (executor == null) {
+			return;
+		}
+		try {
+			executor.schedule(() -> deliver(message, attempt), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the spool is shutting down, the email stays in the store
+			pending.remove(message.getId());
+		}
+	}
+
+	private void deliver(GmailSpooledMessage message, int attempt) {
+		try {
+			mailer.send(message.toMessage());
+		} catch (RuntimeException e) {
+			long delay = isPermanent(e) ? -1 : retryPolicy.retryDelay(attempt, 0, 0);
+			if (delay >= 0) {
+				Logger.warn("Failed to send spooled email %s on attempt %s, trying again in %sms: %s", message.getId(), attempt, delay, e.getMessage());
+				schedule(message, attempt + 1, delay);
+				return;
+			}
+			Logger.error("Giving up on spooled email %s with subject %s after %s attempts: %s", message.getId(), message.getSubject(), attempt, e.getMessage());
+		}
+		synchronized (claimLock) {
+			try {
+				store.remove(message.getId());
+				pending.remove(message.getId());
+			} catch (IOException e) {
+				// left pending so later claims don't send it again, it will be sent again when the spool next starts
+				Logger.error("Failed to remove spooled email %s: %s", message.getId(), e.getMessage());
+			}
+		}
+	}
+
+	private boolean isPermanent(RuntimeException e) {
+		Throwable cause = e instanceof GmailException && e.getCause() != null ? e.getCause() : e;
+		return cause instanceof HttpResponseException && !retryPolicy.isRetryable(cause);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Durably holds the emails waiting in a {@link GmailSpool}, so they are still sent if the application restarts before sending them.
+ *
+ * @see GmailDataStoreSpoolStore
+ * @see GmailJournalSpoolStore
+ */
+public interface GmailSpoolStore {
+
+	/**
+	 * Store an email, it must be durable once this returns.
+	 *
+	 * @param message the email waiting to be sent
+	 * @throws IOException if the email could not be stored
+	 */
+	void add(GmailSpooledMessage message) throws IOException;
+
+	/**
+	 * Remove an email once it has been sent, or given up on.
+	 *
+	 * @param id the id of the email
+	 * @throws IOException if the email could not be removed
+	 */
+	void remove(String id) throws IOException;
+
+	/**
+	 * @return the stored emails, oldest first
+	 * @throws IOException if the emails could not be read
+	 */
+	List<GmailSpooledMessage> load() throws IOException;
+
+	/**
+	 * Claim the stored emails this instance should send. A store shared by several instances returns the emails this instance added
+	 * and those abandoned by instances which have stopped, but not those another running instance is sending. It is called when the
+	 * spool starts and then every {@link #getClaimIntervalMillis()}, which also tells other instances this one is still running.
+	 * <p>
+	 * By default every stored email is claimed, for stores used by a single instance.
+	 *
+	 * @return the emails to send, oldest first
+	 * @throws IOException if the emails could not be read or claimed
+	 */
+	default List<GmailSpooledMessage> claim() throws IOException {
+		return load();
+	}
+
+	/**
+	 * @return how often {@link #claim()} is called after the spool starts, or 0 if it is only called when the spool starts
+	 */
+	default long getClaimIntervalMillis() {
+		return 0;
+	}
+
+	/**
+	 * Release any resources held by the store.
+	 *
+	 * @throws IOException if the store could not be closed cleanly
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.mail.Attachment;
+import com.threewks.thundr.view.file.Disposition;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An email waiting in the {@link GmailSpool} to be sent. This holds what is needed to build the email again, its addresses, subject and
+ * rendered body and attachments, rather than the built email, so it is small to store and doesn't depend on the request it was
+ * rendered in.
+ */
+public class GmailSpooledMessage implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String id;
+	private final long enqueuedAt;
+	private final Map.Entry<String, String> from;
+	private final Map.Entry<String, String> replyTo;
+	private final LinkedHashMap<String, String> to;
+	private final LinkedHashMap<String, String> cc;
+	private final LinkedHashMap<String, String> bcc;
+	private final String subject;
+	private final GmailRenderedView body;
+	private final List<SpooledAttachment> attachments;
+	private final String credentialId;
+	private final String idempotencyKey;
+	private final GmailPriority priority;
+	private final long sendAt;
+	private final String owner;
+
+	public GmailSpooledMessage(GmailMessage message, GmailRenderedView body, List<SpooledAttachment> attachments) {
+		this(UUID.randomUUID().toString(), System.currentTimeMillis(), message, body, attachments);
+	}
+
+	public GmailSpooledMessage(String id, long enqueuedAt, GmailMessage message, GmailRenderedView body, List<SpooledAttachment> attachments) {
+		this.id = id;
+		this.enqueuedAt = enqueuedAt;
+		this.from = message.getFrom();
+		this.replyTo = message.getReplyTo();
+		this.to = new LinkedHashMap<>(message.getTo());
+		this.cc = new LinkedHashMap<>(message.getCc());
+		this.bcc = new LinkedHashMap<>(message.getBcc());
+		this.subject = message.getSubject();
+		this.body = body;
+		this.attachments = attachments == null ? Collections.<SpooledAttachment>emptyList() : new ArrayList<>(attachments);
+		this.credentialId = message.getCredentialId();
+		this.idempotencyKey = message.getIdempotencyKey();
+		this.priority = message.getPriority();
+		this.sendAt = 0;
+		this.owner = null;
+	}
+
+	private GmailSpooledMessage(GmailSpooledMessage message, long sendAt, String owner) {
+		this.id = message.id;
+		this.enqueuedAt = message.enqueuedAt;
+		this.from = message.from;
+		this.replyTo = message.replyTo;
+		this.to = message.to;
+		this.cc = message.cc;
+		this.bcc = message.bcc;
+		this.subject = message.subject;
+		this.body = message.body;
+		this.attachments = message.attachments;
+		this.credentialId = message.credentialId;
+		this.idempotencyKey = message.idempotencyKey;
+		this.priority = message.priority;
+		this.sendAt = sendAt;
+		this.owner = owner;
+	}
+
+	/**
+	 * @param sendAt when the email should be sent, in milliseconds since the epoch
+	 * @return a copy of this email which the spool holds until the given time
+	 */
+	public GmailSpooledMessage sendAt(long sendAt) {
+		return new GmailSpooledMessage(this, sendAt, owner);
+	}
+
+	/**
+	 * @param owner the id of the instance sending the email, for stores shared by several instances
+	 * @return a copy of this email claimed by the given instance
+	 */
+	public GmailSpooledMessage ownedBy(String owner) {
+		return new GmailSpooledMessage(this, sendAt, owner);
+	}
+
+	/**
+	 * @return the message to send, with the rendered body and attachments as its views
+	 */
+	public GmailMessage toMessage() {
+		List<Attachment> views = new ArrayList<>();
+		for (SpooledAttachment attachment : attachments) {
+			views.add(new Attachment(attachment.getName(), attachment.getView(), Disposition.valueOf(attachment.getDisposition())));
+		}
+		return new GmailMessage(from, replyTo, to, cc, bcc, subject, body, views).credentialId(credentialId).idempotencyKey(idempotencyKey).priority(priority);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return when the email was added to the spool, in milliseconds since the epoch
+	 */
+	public long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getCredentialId() {
+		return credentialId;
+	}
+
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	/**
+	 * @return the lane the email is sent in, or null if it wasn't set
+	 */
+	public GmailPriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return when the email should be sent, in milliseconds since the epoch, or 0 to send it as soon as possible
+	 */
+	public long getSendAt() {
+		return sendAt;
+	}
+
+	/**
+	 * @return the id of the instance sending the email, or null if the store doesn't track which instance sends each email
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * A rendered attachment of a {@link GmailSpooledMessage}.
+	 */
+	public static class SpooledAttachment implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final String disposition;
+		private final GmailRenderedView view;
+
+		public SpooledAttachment(String name, Disposition disposition, GmailRenderedView view) {
+			this.name = name;
+			this.disposition = disposition.name();
+			this.view = view;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDisposition() {
+			return disposition;
+		}
+
+		public GmailRenderedView getView() {
+			return view;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds items until a time they are due, in a hierarchical timing wheel, so any number of items cost one periodic call to
+ * {@link #advance(long)} rather than a timer each.
+ * <p>
+ * Each level of the wheel is a ring of buckets. A bucket of the first level holds the items due within one tick, a bucket of each
+ * higher level spans a whole ring of the level below. Items are added to the lowest level whose ring reaches their due time, and as
+ * time advances the next bucket of a higher level is moved down into the levels below it. Adding an item and releasing it each take
+ * constant time, however far ahead it is due. Items are never released before they are due, and at most one tick after.
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <T> the type of the items
+ */
+public class GmailTimingWheel<T> {
+
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickMillis;
+	private final int wheelSize;
+	private final List<Level> levels = new ArrayList<>();
+	private List<T> due = new ArrayList<>();
+	private long currentTime;
+	private int size;
+
+	/**
+	 * @param tickMillis the precision items are released with
+	 * @param wheelSize the number of buckets in each level
+	 * @param startMillis the current time
+	 */
+	public GmailTimingWheel(long tickMillis, int wheelSize, long startMillis) {
+		if (tickMillis < 1 || wheelSize < 2) {
+			throw new GmailException("Timing wheel tick must be at least 1ms and size at least 2 but were %sms and %s", tickMillis, wheelSize);
+		}
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.currentTime = startMillis - startMillis % tickMillis;
+		this.levels.add(new Level(tickMillis));
+	}
+
+	/**
+	 * @param item the item to hold
+	 * @param dueAt when the item is due, in milliseconds since the epoch. An item which is already due is released by the next
+	 *              {@link #advance(long)}.
+	 */
+	public synchronized void add(T item, long dueAt) {
+		size++;
+		place(item, dueAt);
+	}
+
+	/**
+	 * Move the wheel on to the given time.
+	 *
+	 * @param now the current time, in milliseconds since the epoch
+	 * @return the items which are due, a tick at a time but in no particular order within a tick
+	 */
+	public synchronized List<T> advance(long now) {
+		while (currentTime + tickMillis <= now) {
+			Level first = levels.get(0);
+			release(first.take(currentTime));
+			currentTime += tickMillis;
+			// buckets of higher levels are moved down from the top, so their items fall through to the lowest level they fit in
+			for (int i = levels.size() - 1; i > 0; i--) {
+				Level level = levels.get(i);
+				if (currentTime % level.tickMillis == 0) {
+					for (Entry<T> entry : level.take(currentTime)) {
+						place(entry.item, entry.dueAt);
+					}
+				}
+			}
+		}
+		List<T> released = due;
+		due = new ArrayList<>();
+		size -= released.size();
+		return released;
+	}
+
+	/**
+	 * @return the number of items held, including those which are due but not yet released
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void place(T item, long dueAt) {
+		if (dueAt < currentTime) {
+			due.add(item);
+			return;
+		}
+		for (int i = 0; ; i++) {
+			if (i == levels.size()) {
+				levels.add(new Level(levels.get(i - 1).tickMillis * wheelSize));
+			}
+			Level level = levels.get(i);
+			long levelStart = currentTime - currentTime % level.tickMillis;
+			if (dueAt < levelStart + level.tickMillis * wheelSize) {
+				level.add(new Entry<>(item, dueAt));
+				return;
+			}
+		}
+	}
+
+	private void release(List<Entry<T>> entries) {
+		for (Entry<T> entry : entries) {
+			due.add(entry.item);
+		}
+	}
+
+	private class Level {
+		private final long tickMillis;
+		private final List<List<Entry<T>>> buckets = new ArrayList<>();
+
+		private Level(long tickMillis) {
+			this.tickMillis = tickMillis;
+			for (int i = 0; i < wheelSize; i++) {
+				buckets.add(null);
+			}
+		}
+
+		private void add(Entry<T> entry) {
+			int index = index(entry.dueAt);
+			List<Entry<T>> bucket = buckets.get(index);
+			if (bucket == null) {
+				bucket = new ArrayList<>();
+				buckets.set(index, bucket);
+			}
+			bucket.add(entry);
+		}
+
+		private List<Entry<T>> take(long time) {
+			List<Entry<T>> bucket = buckets.set(index(time), null);
+			return bucket == null ? Collections.<Entry<T>>emptyList() : bucket;
+		}
+
+		private int index(long time) {
+			return (int) ((time / tickMillis) % wheelSize);
+		}
+	}
+
+	private static class Entry<T> {
+		private final T item;
+		private final long dueAt;
+
+		private Entry(T item, long dueAt) {
+			this.item = item;
+			this.dueAt = dueAt;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.threewks.thundr.logger.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the access tokens of loaded {@link Credential}s fresh so sends don't pay for a token refresh.
+ * <p>
+ * Credentials are refreshed once they are within the refresh ahead window of expiring, either in the background (when a scheduler
+ * is available) or by the first caller to notice. Concurrent refreshes of the same credential share a single token request.
+ * Credentials loaded through {@link GoogleAuthorizationCodeFlow#loadCredential(String)} write refreshed tokens back to the
+ * flow's {@link com.google.api.client.util.store.DataStoreFactory}, so other instances see the new token.
+ * <p>
+ * A credential which hasn't been loaded or passed to {@link #ensureFresh(String, Credential)} since its last background refresh is
+ * no longer refreshed in the background, so credentials which have dropped out of use aren't kept fresh forever.
+ */
+public class GmailTokenManager {
+
+	public static final int DEFAULT_REFRESH_AHEAD_SECONDS = 5 * 60;
+	private static final long FAILED_REFRESH_RETRY_MILLIS = 30 * 1000;
+
+	private final GoogleAuthorizationCodeFlow flow;
+	private final long refreshAheadMillis;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentMap<String, ManagedCredential> credentials = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, FutureTask<Boolean>> refreshes = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a token manager which only refreshes tokens when a caller asks for a credential that is about to expire.
+	 */
+	public GmailTokenManager(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow) {
+		this(gmailAuthorizationCodeFlow, DEFAULT_REFRESH_AHEAD_SECONDS, null);
+	}
+
+	/**
+	 * @param gmailAuthorizationCodeFlow the flow used to load credentials
+	 * @param refreshAheadSeconds how long before expiry a token is refreshed
+	 * @param scheduler used to refresh tokens in the background, or null to only refresh tokens on demand
+	 */
+	public GmailTokenManager(GoogleAuthorizationCodeFlow gmailAuthorizationCodeFlow, long refreshAheadSeconds, ScheduledExecutorService scheduler) {
+		this.flow = gmailAuthorizationCodeFlow;
+		this.refreshAheadMillis = refreshAheadSeconds * 1000;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Load the credential with the given id and start keeping its access token fresh.
+	 *
+	 * @param credentialId the id of the {@link com.google.api.client.auth.oauth2.StoredCredential}
+	 * @return the credential, or null if no credential is stored with the given id
+	 * @throws IOException if the credential could not be loaded
+	 */
+	public Credential load(String credentialId) throws IOException {
+		Logger.info("Loading StoredCredential id %s", credentialId);
+		Credential credential = flow.loadCredential(credentialId);
+		if (credential == null) {
+			release(credentialId);
+			return null;
+		}
+		ManagedCredential previous = credentials.put(credentialId, new ManagedCredential(credential));
+		if (previous != null) {
+			previous.cancel();
+		}
+		ensureFresh(credentialId, credential);
+		schedule(credentialId, credential, 0);
+		return credential;
+	}
+
+	/**
+	 * Refresh the access token of the given credential if it is within the refresh ahead window of expiring.
+	 * <p>
+	 * If the token is still usable and a scheduler is available the refresh happens in the background, otherwise the caller waits
+	 * for the refresh (sharing it with any other caller refreshing the same credential).
+	 *
+	 * @param credentialId the id of the credential
+	 * @param credential the credential to refresh
+	 */
+	public void ensureFresh(final String credentialId, final Credential credential) {
+		ManagedCredential managed = credentials.get(credentialId);
+		if (managed != null && managed.credential == credential) {
+			managed.used = true;
+		}
+		long remaining = remainingMillis(credential);
+		if (remaining > refreshAheadMillis) {
+			return;
+		}
+		if (remaining > 0 && scheduler != null) {
+			if (refreshes.containsKey(credentialId)) {
+				return;
+			}
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					// another caller may have queued the same refresh, only the first needs to do it
+					if (remainingMillis(credential) <= refreshAheadMillis) {
+						refreshQuietly(credentialId, credential);
+					}
+				}
+			});
+		} else {
+			refreshQuietly(credentialId, credential);
+		}
+	}
+
+	/**
+	 * Refresh the access token of the given credential, waiting for the refresh to complete. If another thread is already refreshing
+	 * the same credential this waits for, and shares the result of, that refresh.
+	 *
+	 * @param credentialId the id of the credential
+	 * @param credential the credential to refresh
+	 * @return true if the token was refreshed
+	 * @throws IOException if the token could not be refreshed
+	 */
+	public boolean refresh(String credentialId, final Credential credential) throws IOException {
+		FutureTask<Boolean> refresh = new FutureTask<>(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return credential.refreshToken();
+			}
+		});
+		FutureTask<Boolean> inFlight = refreshes.putIfAbsent(credentialId, refresh);
+		if (inFlight == null) {
+			inFlight = refresh;
+			try {
+				Logger.info("Refreshing access token for StoredCredential id %s", credentialId);
+				refresh.run();
+			} finally {
+				refreshes.remove(credentialId, refresh);
+			}
+		}
+		try {
+			return inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for access token refresh", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new GmailException(cause);
+		}
+	}
+
+	/**
+	 * Stop keeping the given credential fresh, for example because it has been replaced or is no longer in use.
+	 *
+	 * @param credentialId the id of the credential
+	 */
+	public void release(String credentialId) {
+		ManagedCredential managed = credentials.remove(credentialId);
+		if (managed != null) {
+			managed.cancel();
+		}
+	}
+
+	/**
+	 * Stop all background refreshes.
+	 */
+	public void shutdown() {
+		for (String credentialId : credentials.keySet()) {
+			release(credentialId);
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private boolean refreshQuietly(String credentialId, Credential credential) {
+		try {
+			if (refresh(credentialId, credential)) {
+				return true;
+			}
+			Logger.warn("Access token for StoredCredential id %s could not be refreshed", credentialId);
+		} catch (IOException | RuntimeException e) {
+			// the request will retry the refresh itself if the token has actually expired
+			Logger.warn("Failed to refresh access token for StoredCredential id %s: %s", credentialId, e.getMessage());
+		}
+		return false;
+	}
+
+	private void schedule(final String credentialId, final Credential credential, long minimumDelay) {
+		Long expiry = credential.getExpirationTimeMilliseconds();
+		ManagedCredential managed = credentials.get(credentialId);
+		if (scheduler == null || expiry == null || managed == null || managed.credential != credential) {
+			return;
+		}
+		long delay = Math.max(minimumDelay, expiry - refreshAheadMillis - now());
+		managed.schedule(scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!managed.used) {
+					// nothing has used the credential for a whole token lifetime, such as after its cached client expired
+					Logger.debug("Releasing unused StoredCredential id %s", credentialId);
+					credentials.remove(credentialId, managed);
+					managed.cancel();
+					return;
+				}
+				if (refreshQuietly(credentialId, credential)) {
+					managed.used = false;
+				}
+				// if the refresh failed the token is still due, so back off rather than spinning
+				schedule(credentialId, credential, FAILED_REFRESH_RETRY_MILLIS);
+			}
+		}, delay, TimeUnit.MILLISECONDS));
+	}
+
+	private long remainingMillis(Credential credential) {
+		Long expiry = credential.getExpirationTimeMilliseconds();
+		return expiry == null ? Long.MAX_VALUE : expiry - now();
+	}
+
+	/**
+	 * Creates a scheduler suitable for background token refreshes which won't prevent the JVM from exiting.
+	 *
+	 * @return a single threaded scheduler
+	 */
+	public static ScheduledExecutorService newScheduler() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "gmail-token-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static class ManagedCredential {
+		private final Credential credential;
+		private volatile boolean used = true;
+		private ScheduledFuture<?> scheduled;
+		private boolean cancelled;
+
+		private ManagedCredential(Credential credential) {
+			this.credential = credential;
+		}
+
+		private synchronized void schedule(ScheduledFuture<?> next) {
+			if (cancelled) {
+				next.cancel(false);
+			} else {
+				scheduled = next;
+			}
+		}
+
+		private synchronized void cancel() {
+			cancelled = true;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+		}
+	}
+}
@@ -18,12 +18,80 @@
 package com.threewks.thundr.gmail;
 
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
 
 public class AttachmentTest {
 
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
 	@Before
 	public void setUp() throws Exception {
 		new Attachment("fileName", null);
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void shouldReadByteArrayAttachment() throws IOException {
+		Attachment attachment = new Attachment("report.pdf", bytes("pdf data"));
+
+		assertThat(attachment.getContentType(), is("application/pdf"));
+		assertThat(attachment.getData(), is(bytes("pdf data")));
+		assertThat(read(attachment), is("pdf data"));
+	}
+
+	@Test
+	public void shouldReadFileAttachmentEachTimeItIsOpened() throws IOException {
+		Path file = folder.newFile("report.pdf").toPath();
+		Files.write(file, bytes("file data"));
+		Attachment attachment = Attachment.fromFile("report.pdf", "application/pdf", file);
+
+		assertThat(read(attachment), is("file data"));
+		assertThat(read(attachment), is("file data"));
+		assertThat(attachment.getDataSource().getName(), is("report.pdf"));
+	}
+
+	@Test
+	public void shouldReadBufferAttachmentWithoutMovingBuffer() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+		buffer.put(bytes("buffer data")).flip();
+		Attachment attachment = Attachment.fromBuffer("data.bin", "application/octet-stream", buffer);
+
+		assertThat(read(attachment), is("buffer data"));
+		assertThat(read(attachment), is("buffer data"));
+		assertThat(buffer.position(), is(0));
+		assertThat(attachment.getDataSource().getContentType(), is("application/octet-stream"));
+	}
+
+	@Test
+	public void shouldReadStreamAttachmentFromSource() throws IOException {
+		Attachment attachment = new Attachment("data.txt", "text/plain", () -> new java.io.ByteArrayInputStream(bytes("stream data")));
+
+		assertThat(read(attachment), is("stream data"));
+		assertThat(attachment.getData(), is(bytes("stream data")));
+	}
+
+	private static String read(Attachment attachment) throws IOException {
+		try (InputStream in = attachment.getDataSource().getInputStream()) {
+			StringBuilder read = new StringBuilder();
+			for (int b = in.read(); b >= 0; b = in.read()) {
+				read.append((char) b);
+			}
+			return read.toString();
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -25,6 +25,7 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.services.gmail.GmailScopes;
 import com.threewks.thundr.route.Router;
+import com.threewks.thundr.view.json.JsonView;
 import com.threewks.thundr.view.redirect.RedirectView;
 import com.threewks.thundr.view.string.StringView;
 import org.junit.Before;
@@ -36,6 +37,10 @@ import org.mockito.runners.MockitoJUnitRunner;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -110,4 +115,76 @@ public class GmailAdminControllerTest {
 
 	}
 
+	@Test
+	public void shouldInvalidateCachedClientOnOAuthCallback() throws IOException {
+		GoogleAuthorizationCodeFlow flow = mock(GoogleAuthorizationCodeFlow.class);
+		GoogleAuthorizationCodeTokenRequest tokenRequest = mock(GoogleAuthorizationCodeTokenRequest.class);
+		GmailClientCache clientCache = mock(GmailClientCache.class);
+
+		when(flow.newTokenRequest(anyString())).thenReturn(tokenRequest);
+		when(tokenRequest.setRedirectUri(anyString())).thenReturn(tokenRequest);
+		when(tokenRequest.execute()).thenReturn(mock(GoogleTokenResponse.class));
+
+		controller = new GmailAdminController(flow, router, "https://monash-scholarship-form-dev.appspot.com", clientCache);
+
+		controller.oauthCallback("12345", "Monash.Inbox@monash.edu.au");
+
+		verify(clientCache).invalidate("monash.inbox@monash.edu.au");
+	}
+
+
+	@Test
+	public void shouldShowAndResetCircuits() {
+		GmailSettings settings = new GmailSettings();
+		for (int i = 0; i < GmailCircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+			settings.getCircuitBreaker().onFailure("inbox", new IOException("Connection reset"));
+		}
+		controller = new GmailAdminController(mock(GoogleAuthorizationCodeFlow.class), router, "https://gradresearchforms.apps.monash.edu", null, settings);
+
+		Map<String, Map<String, Object>> circuits = output(controller.circuits());
+		assertThat(circuits.get("inbox").get("state"), is((Object) "Open"));
+
+		circuits = output(controller.resetCircuit("inbox"));
+		assertThat(circuits.isEmpty(), is(true));
+		assertThat(settings.getCircuitBreaker().getState("inbox"), is(GmailCircuitBreaker.State.Closed));
+	}
+
+	@Test
+	public void shouldShowMetrics() {
+		GmailSettings settings = new GmailSettings();
+		settings.getMetrics().record(GmailMetrics.Stage.Send, "inbox", GmailMetrics.Outcome.Success, 5000000);
+		controller = new GmailAdminController(mock(GoogleAuthorizationCodeFlow.class), router, "https://gradresearchforms.apps.monash.edu", null, settings);
+
+		Map<String, Map<String, Map<String, Map<String, Object>>>> metrics = output(controller.metrics());
+
+		assertThat(metrics.get("Send").get("inbox").get("Success").get("count"), is((Object) 1L));
+	}
+
+	@Test
+	public void shouldShowNoMetricsWhenSendsAreNotTimed() {
+		controller = new GmailAdminController(mock(GoogleAuthorizationCodeFlow.class), router, "https://gradresearchforms.apps.monash.edu", null, new GmailSettings().setMetrics(null));
+
+		assertThat(((Map<?, ?>) controller.metrics().getOutput()).isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldShowQueueDepthOfEachLane() throws Exception {
+		GmailSendExecutor executor = new GmailSendExecutor(Executors.newCachedThreadPool(), 10, 1);
+		CountDownLatch block = new CountDownLatch(1);
+		executor.submit(() -> block.await(5, TimeUnit.SECONDS));
+		executor.submit(() -> "bulk", GmailPriority.Bulk);
+		controller = new GmailAdminController(mock(GoogleAuthorizationCodeFlow.class), router, "https://gradresearchforms.apps.monash.edu", null, new GmailSettings(), executor);
+
+		Map<String, Integer> lanes = output(controller.lanes());
+
+		assertThat(lanes.get("Transactional"), is(0));
+		assertThat(lanes.get("Bulk"), is(1));
+		block.countDown();
+		executor.shutdown(5, TimeUnit.SECONDS);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T output(JsonView view) {
+		return (T) view.getOutput();
+	}
 }
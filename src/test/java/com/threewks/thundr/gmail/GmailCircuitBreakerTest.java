@@ -0,0 +1,148 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GmailCircuitBreakerTest {
+
+	private long now = 1000000;
+	private GmailCircuitBreaker circuitBreaker = new GmailCircuitBreaker(3, 10000) {
+		@Override
+		protected long now() {
+			return now;
+		}
+	};
+
+	@Test
+	public void shouldOpenAfterFailuresInARowAndFailFast() {
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.allowRequest("inbox");
+			circuitBreaker.onFailure("inbox", error(503));
+		}
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Open));
+		assertRejected("inbox");
+		assertThat(circuitBreaker.getState("other"), is(GmailCircuitBreaker.State.Closed));
+		circuitBreaker.allowRequest("other");
+	}
+
+	@Test
+	public void shouldStartCountingAgainAfterSuccess() {
+		circuitBreaker.onFailure("inbox", new GmailException(new SocketTimeoutException("Read timed out")));
+		circuitBreaker.onFailure("inbox", error(401));
+		circuitBreaker.onSuccess("inbox");
+		circuitBreaker.onFailure("inbox", error(429));
+		circuitBreaker.onFailure("inbox", error(500));
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Closed));
+		assertThat(circuitBreaker.getStatus().get("inbox").get("failures"), is((Object) 2));
+	}
+
+	@Test
+	public void shouldNotCountFailuresCausedByTheRequest() {
+		for (int i = 0; i < 5; i++) {
+			circuitBreaker.onFailure("inbox", error(400));
+			circuitBreaker.onFailure("inbox", new GmailException("Gmail quota for inbox is used up"));
+		}
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Closed));
+		assertThat(circuitBreaker.isFailure(error(404)), is(false));
+		assertThat(circuitBreaker.isFailure(error(403)), is(true));
+		assertThat(circuitBreaker.isFailure(new IOException("Connection reset")), is(true));
+	}
+
+	@Test
+	public void shouldLetSingleTrialThroughOnceHalfOpen() {
+		open("inbox");
+		now += 10000;
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.HalfOpen));
+		circuitBreaker.allowRequest("inbox");
+		assertRejected("inbox");
+
+		circuitBreaker.onSuccess("inbox");
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Closed));
+		circuitBreaker.allowRequest("inbox");
+	}
+
+	@Test
+	public void shouldLetAnotherTrialThroughWhenTrialIsReleased() {
+		open("inbox");
+		now += 10000;
+
+		circuitBreaker.allowRequest("inbox");
+		circuitBreaker.release("inbox");
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.HalfOpen));
+		circuitBreaker.allowRequest("inbox");
+		assertRejected("inbox");
+	}
+
+	@Test
+	public void shouldOpenAgainWhenTrialFails() {
+		open("inbox");
+		now += 10000;
+
+		circuitBreaker.allowRequest("inbox");
+		circuitBreaker.onFailure("inbox", error(401));
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Open));
+		assertThat(circuitBreaker.getStatus().get("inbox").get("retryInMillis"), is((Object) 10000L));
+		assertRejected("inbox");
+	}
+
+	@Test
+	public void shouldCloseCircuitWhenReset() {
+		open("inbox");
+
+		circuitBreaker.reset("inbox");
+
+		assertThat(circuitBreaker.getState("inbox"), is(GmailCircuitBreaker.State.Closed));
+		assertThat(circuitBreaker.getStates().isEmpty(), is(true));
+		circuitBreaker.allowRequest("inbox");
+	}
+
+	private void open(String credentialId) {
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.onFailure(credentialId, error(503));
+		}
+	}
+
+	private void assertRejected(String credentialId) {
+		try {
+			circuitBreaker.allowRequest(credentialId);
+			fail("Expected the circuit to be open");
+		} catch (GmailException e) {
+			assertThat(e.getMessage(), containsString(credentialId));
+		}
+	}
+
+	private static HttpResponseException error(int statusCode) {
+		return new HttpResponseException.Builder(statusCode, "Error", new HttpHeaders()).build();
+	}
+}
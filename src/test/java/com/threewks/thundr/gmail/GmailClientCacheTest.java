@@ -0,0 +1,142 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.GmailScopes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GmailClientCacheTest {
+
+	@Mock private HttpTransport httpTransport;
+
+	private GoogleAuthorizationCodeFlow flow;
+	private List<String> loaded = new ArrayList<>();
+	private long now = 1000;
+
+	@Before
+	public void before() {
+		flow = new GoogleAuthorizationCodeFlow
+				.Builder(httpTransport, JacksonFactory.getDefaultInstance(), "clientId", "clientSecret", Collections.singleton(GmailScopes.GMAIL_COMPOSE))
+				.build();
+	}
+
+	@Test
+	public void shouldReuseClientForSameCredential() throws IOException {
+		GmailClientCache cache = cache(10, 60);
+
+		Gmail first = cache.get("inbox");
+		Gmail second = cache.get("inbox");
+
+		assertThat(second, is(sameInstance(first)));
+		assertThat(loaded, contains("inbox"));
+	}
+
+	@Test
+	public void shouldReloadClientOnceTtlHasExpired() throws IOException {
+		GmailClientCache cache = cache(10, 60);
+
+		Gmail first = cache.get("inbox");
+		now += 60 * 1000;
+		Gmail second = cache.get("inbox");
+
+		assertThat(second, is(not(sameInstance(first))));
+		assertThat(loaded, contains("inbox", "inbox"));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedClientWhenFull() throws IOException {
+		GmailClientCache cache = cache(2, 60);
+
+		cache.get("first");
+		cache.get("second");
+		cache.get("first");
+		cache.get("third");
+		cache.get("first");
+		cache.get("second");
+
+		assertThat(cache.size(), is(2));
+		assertThat(loaded, contains("first", "second", "third", "second"));
+	}
+
+	@Test
+	public void shouldReloadClientAfterInvalidation() throws IOException {
+		GmailClientCache cache = cache(10, 60);
+
+		cache.get("inbox");
+		cache.get("other");
+		cache.invalidate("inbox");
+		cache.get("inbox");
+		cache.get("other");
+
+		assertThat(loaded, contains("inbox", "other", "inbox"));
+
+		cache.invalidateAll();
+		assertThat(cache.size(), is(0));
+	}
+
+	@Test
+	public void shouldNotCacheClientWhenNoCredentialIsStored() throws IOException {
+		GmailClientCache cache = new GmailClientCache(flow, 10, 60) {
+			@Override
+			protected Credential loadCredential(String credentialId) {
+				loaded.add(credentialId);
+				return null;
+			}
+		};
+
+		cache.get("missing");
+		cache.get("missing");
+
+		assertThat(cache.size(), is(0));
+		assertThat(loaded, contains("missing", "missing"));
+	}
+
+	private GmailClientCache cache(int maxSize, long ttlSeconds) {
+		return new GmailClientCache(flow, maxSize, ttlSeconds) {
+			@Override
+			protected Credential loadCredential(String credentialId) {
+				loaded.add(credentialId);
+				return new Credential(BearerToken.authorizationHeaderAccessMethod());
+			}
+
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+	}
+}
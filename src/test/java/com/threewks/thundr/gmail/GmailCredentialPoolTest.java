@@ -0,0 +1,113 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailCredentialPoolTest {
+
+	private List<String> none = Collections.emptyList();
+
+	@Test
+	public void shouldChooseEachCredentialInTurn() {
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b", "c"), GmailCredentialPool.Strategy.RoundRobin);
+
+		List<String> chosen = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			chosen.add(pool.select(null, none, null, null));
+		}
+
+		assertThat(chosen, is(Arrays.asList("a", "b", "c", "a", "b", "c")));
+	}
+
+	@Test
+	public void shouldChooseCredentialWithFewestSendsInProgress() {
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b", "c"), GmailCredentialPool.Strategy.LeastLoaded);
+
+		assertThat(pool.acquire(null, none, null, null), is("a"));
+		assertThat(pool.acquire(null, none, null, null), is("b"));
+		assertThat(pool.acquire(null, none, null, null), is("c"));
+		pool.release("b");
+
+		assertThat(pool.acquire(null, none, null, null), is("b"));
+		assertThat(pool.getInFlight().get("b"), is(1));
+	}
+
+	@Test
+	public void shouldChooseCredentialWithMostQuotaRemaining() {
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(1000, 0, 0);
+		rateLimiter.reserve("a", 500);
+		rateLimiter.reserve("b", 100);
+		rateLimiter.reserve("c", 800);
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b", "c"), GmailCredentialPool.Strategy.QuotaRemaining);
+
+		assertThat(pool.select(null, none, null, rateLimiter), is("b"));
+	}
+
+	@Test
+	public void shouldSkipCredentialsWithOpenCircuit() {
+		GmailCircuitBreaker circuitBreaker = new GmailCircuitBreaker(1, 60000);
+		circuitBreaker.onFailure("a", new IOException("Connection reset"));
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b"), GmailCredentialPool.Strategy.RoundRobin);
+
+		assertThat(pool.select(null, none, circuitBreaker, null), is("b"));
+		assertThat(pool.select(null, none, circuitBreaker, null), is("b"));
+	}
+
+	@Test
+	public void shouldStillChooseCredentialWhenAllCircuitsAreOpen() {
+		GmailCircuitBreaker circuitBreaker = new GmailCircuitBreaker(1, 60000);
+		circuitBreaker.onFailure("a", new IOException("Connection reset"));
+		circuitBreaker.onFailure("b", new IOException("Connection reset"));
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b"), GmailCredentialPool.Strategy.RoundRobin);
+
+		assertThat(pool.select(null, none, circuitBreaker, null), is("a"));
+	}
+
+	@Test
+	public void shouldNotChooseExcludedCredentials() {
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b"), GmailCredentialPool.Strategy.RoundRobin);
+
+		assertThat(pool.select(null, Collections.singleton("a"), null, null), is("b"));
+		assertThat(pool.select(null, Arrays.asList("a", "b"), null, null), is(nullValue()));
+	}
+
+	@Test
+	public void shouldAlwaysSendRoutedAddressesThroughTheirCredential() {
+		GmailCredentialPool pool = new GmailCredentialPool(Arrays.asList("a", "b"), GmailCredentialPool.Strategy.RoundRobin).route("Sales@Example.com", "sales");
+
+		assertThat(pool.select("sales@example.com", none, null, null), is("sales"));
+		assertThat(pool.select("sales@example.com", none, null, null), is("sales"));
+		assertThat(pool.select("sales@example.com", Collections.singleton("sales"), null, null), is(nullValue()));
+		assertThat(pool.select("other@example.com", none, null, null), isOneOf("a", "b"));
+	}
+
+	@Test(expected = GmailException.class)
+	public void shouldRequireAtLeastOneCredential() {
+		new GmailCredentialPool(Collections.<String>emptyList(), GmailCredentialPool.Strategy.RoundRobin);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static com.threewks.thundr.gmail.GmailJournalSpoolStoreTest.ids;
+import static com.threewks.thundr.gmail.GmailJournalSpoolStoreTest.message;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailDataStoreSpoolStoreTest {
+
+	private long now = 1000000;
+	private MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+
+	@Test
+	public void shouldClaimOwnEmailsButNotThoseOfAnotherRunningInstance() throws IOException {
+		GmailDataStoreSpoolStore first = store(dataStoreFactory);
+		GmailDataStoreSpoolStore second = store(dataStoreFactory);
+		first.claim();
+		second.claim();
+
+		first.add(message("1"));
+		second.add(message("2"));
+
+		assertThat(ids(first.claim()), is(Collections.singletonList("1")));
+		assertThat(ids(second.claim()), is(Collections.singletonList("2")));
+		assertThat(ids(first.load()), containsInAnyOrder("1", "2"));
+	}
+
+	@Test
+	public void shouldTakeOverEmailsOfInstanceWhichShutDown() throws IOException {
+		GmailDataStoreSpoolStore first = store(dataStoreFactory);
+		GmailDataStoreSpoolStore second = store(dataStoreFactory);
+		first.claim();
+		first.add(message("1"));
+		assertThat(second.claim(), is(empty()));
+
+		first.close();
+
+		assertThat(ids(second.claim()), is(Collections.singletonList("1")));
+		assertThat(second.load().get(0).getOwner(), is(second.getInstanceId()));
+		assertThat(first.claim(), is(empty()));
+	}
+
+	@Test
+	public void shouldTakeOverEmailsOnceLeaseOfInstanceRunsOut() throws IOException {
+		GmailDataStoreSpoolStore first = store(dataStoreFactory);
+		GmailDataStoreSpoolStore second = store(dataStoreFactory);
+		first.claim();
+		first.add(message("1"));
+
+		now += 60000;
+		assertThat(second.claim(), is(empty()));
+		now += 1;
+		assertThat(ids(second.claim()), is(Collections.singletonList("1")));
+	}
+
+	@Test
+	public void shouldClaimEmailsWithoutAnOwner() throws IOException {
+		dataStoreFactory.<GmailSpooledMessage>getDataStore(GmailDataStoreSpoolStore.DATA_STORE_ID).set("1", message("1"));
+
+		assertThat(ids(store(dataStoreFactory).claim()), is(Collections.singletonList("1")));
+	}
+
+	private GmailDataStoreSpoolStore store(DataStoreFactory dataStoreFactory) throws IOException {
+		return new GmailDataStoreSpoolStore(dataStoreFactory, 60000) {
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class GmailDedupeLedgerTest {
+
+	private long now = 1000000;
+
+	@Test
+	public void shouldFindSentKeys() {
+		GmailDedupeLedger ledger = ledger(10, 60000);
+
+		assertThat(ledger.find("key"), is(nullValue()));
+		ledger.record("key", "message-id");
+
+		assertThat(ledger.find("key"), is("message-id"));
+		assertThat(ledger.find("other"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldForgetKeysOnceOutsideWindow() {
+		GmailDedupeLedger ledger = ledger(10, 60000);
+		ledger.record("key", "message-id");
+
+		now += 59999;
+		assertThat(ledger.find("key"), is("message-id"));
+		now += 1;
+		assertThat(ledger.find("key"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldHoldAtMostCapacityKeysInMemory() {
+		GmailDedupeLedger ledger = ledger(10, 60000);
+		for (int i = 0; i < 25; i++) {
+			ledger.record("key-" + i, "message-" + i);
+		}
+
+		assertThat(ledger.size(), is(10));
+		assertThat(ledger.find("key-24"), is("message-24"));
+		assertThat(ledger.find("key-15"), is("message-15"));
+		assertThat(ledger.find("key-14"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldRememberKeysInDataStoreBeyondMemoryCapacityAndAcrossRestarts() throws IOException {
+		MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+		GmailDedupeLedger ledger = ledger(dataStoreFactory, 10, 60000);
+		for (int i = 0; i < 25; i++) {
+			ledger.record("key-" + i, "message-" + i);
+		}
+
+		assertThat(ledger.size(), is(10));
+		assertThat(ledger.find("key-0"), is("message-0"));
+
+		GmailDedupeLedger restarted = ledger(dataStoreFactory, 10, 60000);
+		assertThat(restarted.size(), is(0));
+		assertThat(restarted.find("key-0"), is("message-0"));
+		assertThat(restarted.find("key-24"), is("message-24"));
+		assertThat(restarted.find("key-25"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldFindKeysRecordedByAnotherLedgerSharingTheDataStore() throws IOException {
+		MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+		GmailDedupeLedger first = ledger(dataStoreFactory, 10, 60000);
+		GmailDedupeLedger second = ledger(dataStoreFactory, 10, 60000);
+
+		assertThat(second.find("key"), is(nullValue()));
+		first.record("key", "message-id");
+		for (int i = 0; i < 25; i++) {
+			second.record("key-" + i, "message-" + i);
+		}
+
+		assertThat(second.find("key"), is("message-id"));
+		assertThat(first.find("key-24"), is("message-24"));
+	}
+
+	@Test
+	public void shouldRemoveKeysOutsideWindowFromDataStoreWhenOpened() throws IOException {
+		MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+		ledger(dataStoreFactory, 10, 60000).record("key", "message-id");
+
+		now += 60000;
+		ledger(dataStoreFactory, 10, 60000);
+
+		assertThat(dataStoreFactory.getDataStore(GmailDedupeLedger.DATA_STORE_ID).isEmpty(), is(true));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldTreatKeyAsNewWhenDataStoreFails() throws IOException {
+		DataStore<GmailDedupeLedger.Sent> dataStore = mock(DataStore.class);
+		DataStoreFactory dataStoreFactory = mock(DataStoreFactory.class);
+		when(dataStoreFactory.<GmailDedupeLedger.Sent>getDataStore(GmailDedupeLedger.DATA_STORE_ID)).thenReturn(dataStore);
+		when(dataStore.get(anyString())).thenThrow(new IOException("unavailable"));
+		when(dataStore.set(anyString(), org.mockito.Matchers.any(GmailDedupeLedger.Sent.class))).thenThrow(new IOException("unavailable"));
+		GmailDedupeLedger ledger = ledger(dataStoreFactory, 1, 60000);
+
+		ledger.record("key", "message-id");
+		ledger.record("other", "other-id");
+
+		assertThat(ledger.find("other"), is("other-id"));
+		assertThat(ledger.find("key"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNeverMissKeysInBloomFilter() {
+		GmailDedupeLedger.BloomFilter filter = new GmailDedupeLedger.BloomFilter(1000);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("key-" + i);
+		}
+
+		int falsePositives = 0;
+		for (int i = 0; i < 1000; i++) {
+			assertThat(filter.mightContain("key-" + i), is(true));
+			if (filter.mightContain("other-" + i)) {
+				falsePositives++;
+			}
+		}
+		assertThat(falsePositives, is(lessThan(50)));
+	}
+
+	private GmailDedupeLedger ledger(int capacity, long windowMillis) {
+		return new GmailDedupeLedger(capacity, windowMillis) {
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+	}
+
+	private GmailDedupeLedger ledger(DataStoreFactory dataStoreFactory, int capacity, long windowMillis) throws IOException {
+		return new GmailDedupeLedger(dataStoreFactory, capacity, windowMillis) {
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+	}
+}
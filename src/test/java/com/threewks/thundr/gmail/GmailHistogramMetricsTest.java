@@ -0,0 +1,123 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.threewks.thundr.gmail.GmailMetrics.Outcome;
+import com.threewks.thundr.gmail.GmailMetrics.Stage;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailHistogramMetricsTest {
+
+	private long now = 1000000;
+
+	private GmailHistogramMetrics metrics = new GmailHistogramMetrics() {
+		@Override
+		protected long now() {
+			return now;
+		}
+	};
+
+	@Test
+	public void shouldCountTimingsByStageCredentialAndOutcome() {
+		metrics.record(Stage.Send, "inbox", Outcome.Success, millis(10));
+		metrics.record(Stage.Send, "inbox", Outcome.Success, millis(20));
+		metrics.record(Stage.Send, "inbox", Outcome.Failure, millis(30));
+		metrics.record(Stage.Send, "other", Outcome.Success, millis(40));
+		metrics.record(Stage.Encode, "inbox", Outcome.Success, millis(1));
+
+		assertThat(metrics.getCount(Stage.Send, "inbox", Outcome.Success), is(2L));
+		assertThat(metrics.getCount(Stage.Send, "inbox", Outcome.Failure), is(1L));
+		assertThat(metrics.getCount(Stage.Send, "other", Outcome.Success), is(1L));
+		assertThat(metrics.getCount(Stage.Encode, "inbox", Outcome.Success), is(1L));
+		assertThat(metrics.getCount(Stage.RenderBody, "inbox", Outcome.Success), is(0L));
+	}
+
+	@Test
+	public void shouldSummariseTimings() {
+		for (int i = 1; i <= 100; i++) {
+			metrics.record(Stage.Send, "inbox", Outcome.Success, millis(i));
+		}
+		now += 10000;
+
+		Map<String, Object> summary = summary(Stage.Send, "inbox", Outcome.Success);
+
+		assertThat(summary.get("count"), is((Object) 100L));
+		assertThat(summary.get("perSecond"), is((Object) 10.0));
+		assertThat(summary.get("meanMillis"), is((Object) 50.5));
+		assertThat(summary.get("maxMillis"), is((Object) 100.0));
+		// percentiles are the upper bound of their bucket, so within a factor of two of the actual timing
+		assertThat((Double) summary.get("p50Millis"), is(both(greaterThanOrEqualTo(50.0)).and(lessThanOrEqualTo(100.0))));
+		assertThat((Double) summary.get("p95Millis"), is(both(greaterThanOrEqualTo(95.0)).and(lessThanOrEqualTo(100.0))));
+		assertThat((Double) summary.get("p99Millis"), is(both(greaterThanOrEqualTo(99.0)).and(lessThanOrEqualTo(100.0))));
+	}
+
+	@Test
+	public void shouldOnlyIncludeRecordedStagesAndOutcomesInSnapshot() {
+		metrics.record(Stage.LoadCredential, "inbox", Outcome.Failure, millis(5));
+
+		Map<String, Object> snapshot = metrics.getSnapshot();
+
+		assertThat(snapshot.keySet(), is(Collections.singleton("LoadCredential")));
+		assertThat(((Map<?, ?>) ((Map<?, ?>) snapshot.get("LoadCredential")).get("inbox")).keySet(), is(Collections.singleton("Failure")));
+	}
+
+	@Test
+	public void shouldDiscardTimingsOnReset() {
+		metrics.record(Stage.Send, "inbox", Outcome.Success, millis(10));
+
+		metrics.reset();
+
+		assertThat(metrics.getCount(Stage.Send, "inbox", Outcome.Success), is(0L));
+		assertThat(metrics.getSnapshot().isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldCountConcurrentTimings() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int thread = 0; thread < 4; thread++) {
+			executor.execute(() -> {
+				for (int i = 0; i < 1000; i++) {
+					metrics.record(Stage.Send, "inbox", Outcome.Success, i);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+
+		assertThat(metrics.getCount(Stage.Send, "inbox", Outcome.Success), is(4000L));
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> summary(Stage stage, String credentialId, Outcome outcome) {
+		Map<String, Map<String, Map<String, Object>>> byCredential = (Map<String, Map<String, Map<String, Object>>>) metrics.getSnapshot().get(stage.name());
+		return byCredential.get(credentialId).get(outcome.name());
+	}
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+}
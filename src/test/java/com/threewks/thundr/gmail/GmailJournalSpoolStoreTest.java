@@ -0,0 +1,118 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailJournalSpoolStoreTest {
+
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void shouldReplayEmailsWhichWereNotRemoved() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("spool.journal");
+		GmailJournalSpoolStore store = new GmailJournalSpoolStore(file);
+		store.add(message("1"));
+		store.add(message("2"));
+		store.add(message("3"));
+		store.remove("2");
+		store.close();
+
+		List<GmailSpooledMessage> loaded = new GmailJournalSpoolStore(file).load();
+
+		assertThat(ids(loaded), contains("1", "3"));
+		assertThat(loaded.get(0).toMessage().getTo().keySet(), contains("to@email.com"));
+		assertThat(loaded.get(0).toMessage().getSubject(), is("Subject 1"));
+	}
+
+	@Test
+	public void shouldDiscardRecordCutOffPartWayThroughBeingWritten() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("spool.journal");
+		GmailJournalSpoolStore store = new GmailJournalSpoolStore(file);
+		store.add(message("1"));
+		store.close();
+		long complete = Files.size(file);
+		Files.write(file, new byte[]{'A', 0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+		store = new GmailJournalSpoolStore(file);
+
+		assertThat(ids(store.load()), contains("1"));
+		assertThat(Files.size(file), is(complete));
+		store.add(message("2"));
+		store.close();
+		assertThat(ids(new GmailJournalSpoolStore(file).load()), contains("1", "2"));
+	}
+
+	@Test
+	public void shouldRewriteJournalOnceMostEmailsAreRemoved() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("spool.journal");
+		GmailJournalSpoolStore store = new GmailJournalSpoolStore(file, false, 3);
+		store.add(message("keep"));
+		for (int i = 0; i < 3; i++) {
+			store.add(message("remove" + i));
+		}
+		long before = Files.size(file);
+		for (int i = 0; i < 3; i++) {
+			store.remove("remove" + i);
+		}
+
+		assertThat(Files.size(file), is(lessThan(before)));
+		store.add(message("after"));
+		store.close();
+		assertThat(ids(new GmailJournalSpoolStore(file).load()), contains("keep", "after"));
+	}
+
+	@Test
+	public void shouldIgnoreRemovingUnknownEmail() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("spool.journal");
+		GmailJournalSpoolStore store = new GmailJournalSpoolStore(file);
+
+		store.remove("missing");
+		store.close();
+
+		assertThat(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), is(""));
+	}
+
+	static GmailSpooledMessage message(String id) {
+		GmailMessage message = new GmailMessage().from("from@email.com").to("to@email.com").subject("Subject " + id);
+		GmailRenderedView body = new GmailRenderedView(("Body " + id).getBytes(StandardCharsets.UTF_8), "text/html", "UTF-8");
+		return new GmailSpooledMessage(id, System.currentTimeMillis(), message, body, Collections.<GmailSpooledMessage.SpooledAttachment>emptyList());
+	}
+
+	static List<String> ids(List<GmailSpooledMessage> messages) {
+		List<String> ids = new ArrayList<>();
+		for (GmailSpooledMessage message : messages) {
+			ids.add(message.getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailLruRenderCacheTest {
+
+	@Test
+	public void shouldReturnCachedView() {
+		GmailLruRenderCache cache = new GmailLruRenderCache();
+		GmailRenderedView rendered = rendered(10);
+		cache.put("key", rendered);
+
+		assertThat(cache.get("key"), is(sameInstance(rendered)));
+		assertThat(cache.get("other"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedViewWhenFull() {
+		GmailLruRenderCache cache = new GmailLruRenderCache(2, 1000);
+		cache.put("one", rendered(10));
+		cache.put("two", rendered(10));
+		cache.get("one");
+		cache.put("three", rendered(10));
+
+		assertThat(cache.size(), is(2));
+		assertThat(cache.get("one"), is(notNullValue()));
+		assertThat(cache.get("two"), is(nullValue()));
+		assertThat(cache.get("three"), is(notNullValue()));
+	}
+
+	@Test
+	public void shouldEvictViewsToStayWithinMaxBytes() {
+		GmailLruRenderCache cache = new GmailLruRenderCache(10, 25);
+		cache.put("one", rendered(10));
+		cache.put("two", rendered(10));
+		cache.put("three", rendered(10));
+		cache.put("too-large", rendered(26));
+
+		assertThat(cache.get("one"), is(nullValue()));
+		assertThat(cache.get("two"), is(notNullValue()));
+		assertThat(cache.get("three"), is(notNullValue()));
+		assertThat(cache.get("too-large"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldDecodeBodyWithCharacterEncoding() {
+		GmailRenderedView rendered = new GmailRenderedView("café".getBytes(java.nio.charset.StandardCharsets.ISO_8859_1), "text/plain", "ISO-8859-1");
+
+		assertThat(rendered.getBodyAsString(), is("café"));
+	}
+
+	private static GmailRenderedView rendered(int size) {
+		return new GmailRenderedView(new byte[size], "text/html", "UTF-8");
+	}
+}
@@ -19,15 +19,33 @@ package com.threewks.thundr.gmail;
 
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.BackOff;
 import com.google.api.client.util.Base64;
 import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Draft;
 import com.google.api.services.gmail.model.Message;
+import com.threewks.thundr.request.Request;
 import com.threewks.thundr.request.RequestContainer;
+import com.threewks.thundr.request.Response;
 import com.threewks.thundr.view.ViewResolverRegistry;
+import com.threewks.thundr.view.file.Disposition;
 import com.threewks.thundr.view.string.StringView;
 import com.threewks.thundr.view.string.StringViewResolver;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
@@ -35,12 +53,45 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -53,6 +104,7 @@ public class GmailMailerTest {
 	@Mock private Gmail.Users.Messages.Send send;
 	@Mock private RequestContainer requestContainer;
 
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
 	@Captor private ArgumentCaptor<Message> messageCaptor;
 
 	private GmailMailer mailer;
@@ -69,6 +121,7 @@ public class GmailMailerTest {
 		when(gmail.users()).thenReturn(users);
 		when(users.messages()).thenReturn(messages);
 		when(messages.send(eq("me"), messageCaptor.capture())).thenReturn(send);
+		when(send.execute()).thenReturn(new Message().setId("sent-id"));
 	}
 
 	@Test
@@ -106,4 +159,979 @@ public class GmailMailerTest {
 		assertThat(messageText, containsString("This is a test message"));
 	}
 
+	@Test
+	public void shouldSendGmailMessageAndReturnId() throws IOException {
+		String id = mailer.send(new GmailMessage()
+				.from("sender@email.com", "Sender")
+				.to("recipient@email.com")
+				.subject("Test subject")
+				.body(new StringView("This is a test message")));
+
+		assertThat(id, is("sent-id"));
+		String messageText = new String(Base64.decodeBase64(messageCaptor.getValue().getRaw()));
+		assertThat(messageText, containsString("From: Sender <sender@email.com>"));
+		assertThat(messageText, containsString("To: recipient@email.com"));
+	}
+
+	@Test
+	public void shouldSendWithGivenCredential() throws IOException {
+		doReturn(gmail).when(mailer).getClient("other-inbox");
+
+		mailer.send(new GmailMessage()
+				.from("sender@email.com")
+				.to("recipient@email.com")
+				.subject("Test subject")
+				.body(new StringView("This is a test message"))
+				.credentialId("other-inbox"));
+
+		verify(mailer).getClient("other-inbox");
+		verify(send).execute();
+	}
+
+	@Test
+	public void shouldSendAsyncAndCompleteWithId() throws Exception {
+		CompletableFuture<String> result = mailer.sendAsync(new GmailMessage()
+				.from("sender@email.com")
+				.to("recipient@email.com")
+				.subject("Test subject")
+				.body(new StringView("This is a test message")));
+
+		assertThat(result.get(5, TimeUnit.SECONDS), is("sent-id"));
+		verify(send).execute();
+	}
+
+	@Test
+	public void shouldCompleteAsyncSendExceptionallyWhenGmailFails() throws Exception {
+		when(send.execute()).thenThrow(new IOException("Gmail unavailable"));
+
+		CompletableFuture<String> result = mailer.sendAsync(new GmailMessage()
+				.from("sender@email.com")
+				.to("recipient@email.com")
+				.subject("Test subject")
+				.body(new StringView("This is a test message")));
+
+		try {
+			result.get(5, TimeUnit.SECONDS);
+			fail("Expected the send to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(GmailException.class));
+		}
+	}
+
+	@Test
+	public void shouldRetrySendAfterRateLimitError() throws IOException {
+		doNothing().when(mailer).sleep(anyLong());
+		when(send.execute()).thenThrow(jsonError(429, "rateLimitExceeded", "2")).thenReturn(new Message().setId("retried-id"));
+
+		String id = mailer.send(message("recipient@email.com"));
+
+		assertThat(id, is("retried-id"));
+		verify(send, times(2)).execute();
+		ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+		verify(mailer).sleep(delay.capture());
+		assertThat(delay.getValue(), is(2000L));
+	}
+
+	@Test
+	public void shouldNotRetrySendAfterInvalidRequestError() throws IOException {
+		doNothing().when(mailer).sleep(anyLong());
+		when(send.execute()).thenThrow(jsonError(400, "invalidArgument", null));
+
+		try {
+			mailer.send(message("recipient@email.com"));
+			fail("Expected the send to fail");
+		} catch (GmailException e) {
+			verify(send, times(1)).execute();
+			verify(mailer, never()).sleep(anyLong());
+		}
+	}
+
+	@Test
+	public void shouldRetryAsyncSendWithoutBlockingTheSendThread() throws Exception {
+		GmailSettings settings = new GmailSettings().setRetryPolicy(new GmailRetryPolicy().setInitialDelayMillis(20).setJitter(0));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		when(send.execute()).thenThrow(jsonError(503, "backendError", null)).thenReturn(new Message().setId("async-retried-id"));
+
+		CompletableFuture<String> result = mailer.sendAsync(message("recipient@email.com"));
+
+		assertThat(result.get(5, TimeUnit.SECONDS), is("async-retried-id"));
+		verify(send, times(2)).execute();
+		verify(mailer, never()).sleep(anyLong());
+	}
+
+	@Test
+	public void shouldRejectSendOnceCredentialQuotaIsUsedUp() throws IOException {
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(GmailRateLimiter.SEND_UNITS, 0, 0);
+		GmailSettings settings = new GmailSettings().setRateLimiter(rateLimiter);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+
+		mailer.send(message("recipient@email.com"));
+		try {
+			mailer.send(message("recipient@email.com"));
+			fail("Expected the send to be rate limited");
+		} catch (GmailException e) {
+			assertThat(e.getMessage(), containsString("quota"));
+		}
+
+		verify(send, times(1)).execute();
+		assertThat(rateLimiter.getUnitsUsed(GmailMailer.CREDENTIAL_USER_ID), is((long) GmailRateLimiter.SEND_UNITS));
+	}
+
+	@Test
+	public void shouldDelayAsyncSendUntilCredentialHasQuota() throws Exception {
+		GmailSettings settings = new GmailSettings().setRateLimiter(new GmailRateLimiter(GmailRateLimiter.SEND_UNITS * 10, 0, 5000));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 20));
+
+		long started = System.currentTimeMillis();
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < 11; i++) {
+			results.add(mailer.sendAsync(message("recipient@email.com")));
+		}
+		for (CompletableFuture<String> result : results) {
+			assertThat(result.get(5, TimeUnit.SECONDS), is("sent-id"));
+		}
+
+		assertThat(System.currentTimeMillis() - started >= 100, is(true));
+		verify(send, times(11)).execute();
+	}
+
+	@Test
+	public void shouldSpoolStandardSendsWhenSpoolIsSet() throws Exception {
+		GmailSpool spool = new GmailSpool(new GmailJournalSpoolStore(folder.getRoot().toPath().resolve("spool.journal")));
+		GmailSettings settings = new GmailSettings().setSpool(spool);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+
+		mailer.mail().from("sender@email.com").to("recipient@email.com").subject("Spooled").body(new StringView("Spooled body")).send();
+
+		verify(send, timeout(5000)).execute();
+		spool.shutdown(5, TimeUnit.SECONDS);
+		Message message = messageCaptor.getValue();
+		String raw = new String(Base64.decodeBase64(message.getRaw()));
+		assertThat(raw, containsString("Subject: Spooled"));
+		assertThat(raw, containsString("Spooled body"));
+	}
+
+	@Test
+	public void shouldFailFastOnceCredentialCircuitIsOpen() throws Exception {
+		GmailSettings settings = new GmailSettings().setRetryPolicy(GmailRetryPolicy.none()).setCircuitBreaker(new GmailCircuitBreaker(2, 60000));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		when(send.execute()).thenThrow(jsonError(401, "authError", null));
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				mailer.send(message("recipient@email.com"));
+				fail("Expected the send to fail");
+			} catch (GmailException e) {
+				// expected
+			}
+		}
+		CompletableFuture<String> async = mailer.sendAsync(message("recipient@email.com"));
+
+		verify(send, times(2)).execute();
+		assertThat(async.isCompletedExceptionally(), is(true));
+		assertThat(settings.getCircuitBreaker().getState(GmailMailer.CREDENTIAL_USER_ID), is(GmailCircuitBreaker.State.Open));
+	}
+
+	@Test
+	public void shouldFailOverToNextPooledCredentialWhenCredentialIsRateLimited() throws Exception {
+		GmailSettings settings = new GmailSettings().setRetryPolicy(GmailRetryPolicy.none())
+				.setCredentialPool(new GmailCredentialPool(Arrays.asList("inbox1", "inbox2"), GmailCredentialPool.Strategy.RoundRobin));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(gmail).when(mailer).getClient("inbox1");
+		doReturn(gmail).when(mailer).getClient("inbox2");
+		when(send.execute()).thenThrow(jsonError(429, "dailyLimitExceeded", null)).thenReturn(new Message().setId("sent-id")).thenThrow(jsonError(429, "dailyLimitExceeded", null))
+				.thenReturn(new Message().setId("async-id"));
+
+		String id = mailer.send(message("recipient@email.com"));
+		String asyncId = mailer.sendAsync(message("recipient@email.com")).get(5, TimeUnit.SECONDS);
+
+		assertThat(id, is("sent-id"));
+		assertThat(asyncId, is("async-id"));
+		verify(mailer, times(2)).getClient("inbox1");
+		verify(mailer, times(2)).getClient("inbox2");
+		verify(mailer, never()).getClient();
+	}
+
+	@Test
+	public void shouldNotFailOverWhenGmailRejectsTheEmail() throws Exception {
+		GmailSettings settings = new GmailSettings().setRetryPolicy(GmailRetryPolicy.none())
+				.setCredentialPool(new GmailCredentialPool(Arrays.asList("inbox1", "inbox2"), GmailCredentialPool.Strategy.RoundRobin));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(gmail).when(mailer).getClient("inbox1");
+		when(send.execute()).thenThrow(jsonError(400, "invalidArgument", null));
+
+		try {
+			mailer.send(message("recipient@email.com"));
+			fail("Expected the send to fail");
+		} catch (GmailException e) {
+			// expected
+		}
+
+		verify(mailer, never()).getClient("inbox2");
+		assertThat(settings.getCredentialPool().getInFlight().get("inbox1"), is(0));
+	}
+
+	@Test
+	public void shouldRecordTimingOfEachStage() throws Exception {
+		GmailHistogramMetrics metrics = new GmailHistogramMetrics();
+		GmailSettings settings = new GmailSettings().setRetryPolicy(GmailRetryPolicy.none()).setMetrics(metrics);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+
+		mailer.send(message("recipient@email.com").attach(new com.threewks.thundr.mail.Attachment("notes.txt", new StringView("Notes").withContentType("application/octet-stream"), Disposition.Attachment)));
+		when(send.execute()).thenThrow(jsonError(400, "invalidArgument", null));
+		try {
+			mailer.send(message("recipient@email.com"));
+			fail("Expected the send to fail");
+		} catch (GmailException e) {
+			// expected
+		}
+
+		String credentialId = GmailMailer.CREDENTIAL_USER_ID;
+		assertThat(metrics.getCount(GmailMetrics.Stage.RenderBody, credentialId, GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.RenderAttachments, credentialId, GmailMetrics.Outcome.Success), is(1L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.BuildMime, credentialId, GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.LoadCredential, credentialId, GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.Send, credentialId, GmailMetrics.Outcome.Success), is(1L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.Send, credentialId, GmailMetrics.Outcome.Failure), is(1L));
+		assertThat(metrics.getSnapshot().keySet(), hasItem("Encode"));
+		String messageText = new String(Base64.decodeBase64(messageCaptor.getAllValues().get(0).getRaw()));
+		assertThat(messageText, containsString("notes.txt"));
+	}
+
+	@Test
+	public void shouldNotSendTheSameEmailTwiceWhenDedupeLedgerIsSet() throws Exception {
+		GmailSettings settings = new GmailSettings().setDedupeLedger(new GmailDedupeLedger(100, 60000));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		when(send.execute()).thenReturn(new Message().setId("first-id"), new Message().setId("second-id"));
+
+		String first = mailer.send(message("recipient@email.com"));
+		String again = mailer.send(message("recipient@email.com"));
+		String againAsync = mailer.sendAsync(message("recipient@email.com")).get(5, TimeUnit.SECONDS);
+		String other = mailer.send(message("other@email.com"));
+
+		assertThat(first, is("first-id"));
+		assertThat(again, is("first-id"));
+		assertThat(againAsync, is("first-id"));
+		assertThat(other, is("second-id"));
+		verify(send, times(2)).execute();
+	}
+
+	@Test
+	public void shouldDedupeByIdempotencyKeyWhenGiven() throws Exception {
+		GmailSettings settings = new GmailSettings().setDedupeLedger(new GmailDedupeLedger(100, 60000));
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		when(send.execute()).thenReturn(new Message().setId("first-id"), new Message().setId("second-id"));
+
+		String first = mailer.send(message("recipient@email.com").idempotencyKey("order-1"));
+		String again = mailer.send(message("other@email.com").idempotencyKey("order-1"));
+		String same = mailer.send(message("recipient@email.com").idempotencyKey("order-2"));
+
+		assertThat(first, is("first-id"));
+		assertThat(again, is("first-id"));
+		assertThat(same, is("second-id"));
+		verify(send, times(2)).execute();
+	}
+
+	@Test
+	public void shouldIdentifyEmailsByTheirContent() throws Exception {
+		GmailPreparedMessage prepared = mailer.prepare(message("ignored@email.com"));
+		String key = mailer.createIdempotencyKey(mailer.createMimeMessage(message("recipient@email.com")));
+
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(message("recipient@email.com"))), is(key));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(message("other@email.com"))), is(not(key)));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(message("recipient@email.com").subject("Other subject"))), is(not(key)));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(message("recipient@email.com").body(new StringView("Other message")))), is(not(key)));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(message("recipient@email.com").attach(
+				new com.threewks.thundr.mail.Attachment("a.txt", new StringView("a").withContentType("application/octet-stream"), Disposition.Attachment)))), is(not(key)));
+		String preparedKey = mailer.createIdempotencyKey(mailer.createMimeMessage(prepared, new GmailMessage().to("recipient@email.com")));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(prepared, new GmailMessage().to("recipient@email.com"))), is(preparedKey));
+		assertThat(mailer.createIdempotencyKey(mailer.createMimeMessage(prepared, new GmailMessage().to("other@email.com"))), is(not(preparedKey)));
+	}
+
+	@Test
+	public void shouldCompleteAsyncSendExceptionallyWhenMessageIsInvalid() {
+		CompletableFuture<String> result = mailer.sendAsync(new GmailMessage()
+				.to("recipient@email.com")
+				.body(new StringView("This is a test message")));
+
+		assertThat(result.isCompletedExceptionally(), is(true));
+		verifyZeroInteractions(send);
+	}
+
+	@Test
+	public void shouldSendPreparedMessageToEachRecipient() throws Exception {
+		GmailPreparedMessage prepared = mailer.prepare(new GmailMessage()
+				.from("sender@email.com", "Sender")
+				.replyTo("reply@email.com")
+				.subject("Prepared subject")
+				.body(new StringView("This is a prepared message")));
+
+		mailer.send(prepared, new GmailMessage().to("one@email.com", "One"));
+		mailer.send(prepared, new GmailMessage().to("two@email.com").cc("cc@email.com").subject("Personal subject"));
+
+		List<Message> sent = messageCaptor.getAllValues();
+		MimeMessage first = parse(sent.get(0));
+		MimeMessage second = parse(sent.get(1));
+		assertThat(first.getHeader("To", null), is("One <one@email.com>"));
+		assertThat(first.getHeader("From", null), is("Sender <sender@email.com>"));
+		assertThat(first.getHeader("Reply-To", null), is("reply@email.com"));
+		assertThat(first.getSubject(), is("Prepared subject"));
+		assertThat(second.getHeader("To", null), is("two@email.com"));
+		assertThat(second.getHeader("Cc", null), is("cc@email.com"));
+		assertThat(second.getSubject(), is("Personal subject"));
+		assertThat(first.getMessageID(), is(not(second.getMessageID())));
+
+		MimeMultipart body = (MimeMultipart) second.getContent();
+		assertThat(body.getCount(), is(1));
+		assertThat((String) body.getBodyPart(0).getContent(), is("This is a prepared message"));
+	}
+
+	@Test
+	public void shouldRenderViewsOnceWhenRenderCacheIsSet() {
+		final AtomicInteger renders = new AtomicInteger();
+		ViewResolverRegistry viewResolverRegistry = new ViewResolverRegistry();
+		viewResolverRegistry.addResolver(StringView.class, new StringViewResolver() {
+			@Override
+			public void resolve(Request req, Response resp, StringView viewResult) {
+				renders.incrementAndGet();
+				super.resolve(req, resp, viewResult);
+			}
+		});
+		GmailSettings settings = new GmailSettings().setRenderCache(new GmailLruRenderCache(GmailLruRenderCache.DEFAULT_MAX_SIZE, GmailLruRenderCache.DEFAULT_MAX_BYTES, true));
+		mailer = mailer(viewResolverRegistry, settings, GmailSendExecutor.threadPool(1, 1));
+
+		StringView body = new StringView("This is a test message");
+		mailer.send(new GmailMessage().from("sender@email.com").to("one@email.com").subject("Subject").body(body));
+		mailer.send(new GmailMessage().from("sender@email.com").to("two@email.com").subject("Subject").body(body));
+		assertThat(renders.get(), is(1));
+
+		mailer.send(new GmailMessage().from("sender@email.com").to("one@email.com").subject("Subject").body(new GmailCachedView("key", new StringView("Keyed message"))));
+		mailer.send(new GmailMessage().from("sender@email.com").to("two@email.com").subject("Subject").body(new GmailCachedView("key", new StringView("Keyed message"))));
+		assertThat(renders.get(), is(2));
+
+		String messageText = new String(Base64.decodeBase64(messageCaptor.getValue().getRaw()));
+		assertThat(messageText, containsString("To: two@email.com"));
+		assertThat(messageText, containsString("Keyed message"));
+	}
+
+	@Test
+	public void shouldOnlyCacheKeyedViewsWhenRenderCacheDoesNotCacheByIdentity() {
+		final AtomicInteger renders = new AtomicInteger();
+		ViewResolverRegistry viewResolverRegistry = new ViewResolverRegistry();
+		viewResolverRegistry.addResolver(StringView.class, new StringViewResolver() {
+			@Override
+			public void resolve(Request req, Response resp, StringView viewResult) {
+				renders.incrementAndGet();
+				super.resolve(req, resp, viewResult);
+			}
+		});
+		GmailRenderCache renderCache = mock(GmailRenderCache.class);
+		GmailSettings settings = new GmailSettings().setRenderCache(renderCache);
+		mailer = mailer(viewResolverRegistry, settings, GmailSendExecutor.threadPool(1, 1));
+
+		StringView body = new StringView("This is a test message");
+		mailer.send(new GmailMessage().from("sender@email.com").to("one@email.com").subject("Subject").body(body));
+		mailer.send(new GmailMessage().from("sender@email.com").to("two@email.com").subject("Subject").body(body));
+		assertThat(renders.get(), is(2));
+
+		mailer.send(new GmailMessage().from("sender@email.com").to("one@email.com").subject("Subject").body(new GmailCachedView("key", new StringView("Keyed message"))));
+		ArgumentCaptor<Object> gets = ArgumentCaptor.forClass(Object.class);
+		ArgumentCaptor<Object> puts = ArgumentCaptor.forClass(Object.class);
+		verify(renderCache).get(gets.capture());
+		verify(renderCache).put(puts.capture(), org.mockito.Matchers.any(GmailRenderedView.class));
+		assertThat(gets.getAllValues(), contains((Object) "key"));
+		assertThat(puts.getAllValues(), contains((Object) "key"));
+	}
+
+	@Test
+	public void shouldEncodeIdenticalAttachmentsOnceWhenPartCacheIsSet() throws Exception {
+		GmailPartCache partCache = new GmailPartCache();
+		GmailSettings settings = new GmailSettings().setPartCache(partCache);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+
+		String terms = "Terms and conditions \u00e9\u00e8";
+		mailer.send(message("one@email.com").attach(new com.threewks.thundr.mail.Attachment("terms.pdf", new StringView(terms).withContentType("application/pdf"), Disposition.Attachment)));
+		mailer.send(message("two@email.com").attach(new com.threewks.thundr.mail.Attachment("terms.pdf", new StringView(terms).withContentType("application/pdf"), Disposition.Attachment)));
+
+		assertThat(partCache.getMisses(), is(1L));
+		assertThat(partCache.getHits(), is(1L));
+		for (Message sent : messageCaptor.getAllValues()) {
+			MimeBodyPart attachment = (MimeBodyPart) ((MimeMultipart) parse(sent).getContent()).getBodyPart(1);
+			assertThat(attachment.getFileName(), is("terms.pdf"));
+			assertThat(attachment.getDisposition(), is("Attachment"));
+			assertThat(attachment.getEncoding(), is("base64"));
+			assertThat(IOUtils.toString(attachment.getInputStream(), "UTF-8"), is(terms));
+		}
+	}
+
+	@Test
+	public void shouldMergeEmailToEachRecipientWithBoundedEmailsInFlight() throws Exception {
+		GmailSettings settings = new GmailSettings().setMergeMaxInFlight(3);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(2, 10));
+		AtomicInteger read = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		Iterator<Integer> recipients = new Iterator<Integer>() {
+			@Override
+			public boolean hasNext() {
+				return read.get() < 50;
+			}
+
+			@Override
+			public Integer next() {
+				maxInFlight.accumulateAndGet(read.incrementAndGet() - completed.get(), Math::max);
+				return read.get();
+			}
+		};
+		List<GmailSendResult> results = new ArrayList<>();
+
+		GmailMergeResult merged = mailer.merge(recipients, recipient -> new GmailMessage().from("sender@email.com").to("recipient" + recipient + "@email.com")
+				.subject("Subject").body(new StringView("Hello recipient " + recipient)), result -> {
+			completed.incrementAndGet();
+			results.add(result);
+		});
+
+		assertThat(merged.getSent(), is(50L));
+		assertThat(merged.getFailed(), is(0L));
+		assertThat(results.size(), is(50));
+		assertThat(maxInFlight.get(), is(lessThanOrEqualTo(3)));
+		verify(send, times(50)).execute();
+	}
+
+	@Test
+	public void shouldSendMergedEmailsInBulkLaneAndOthersInTransactionalLane() throws Exception {
+		GmailHistogramMetrics metrics = new GmailHistogramMetrics();
+		mailer = mailer(new GmailSettings().setMetrics(metrics), GmailSendExecutor.threadPool(1, 10));
+
+		mailer.sendAsync(message("one@email.com")).get(5, TimeUnit.SECONDS);
+		mailer.merge(Stream.of("two@email.com", "three@email.com", "four@email.com"),
+				address -> address.startsWith("four") ? message(address).priority(GmailPriority.Transactional) : message(address), null);
+
+		assertThat(metrics.getCount(GmailMetrics.Stage.Deliver, "Transactional", GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.Deliver, "Bulk", GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.Queue, "Transactional", GmailMetrics.Outcome.Success), is(2L));
+		assertThat(metrics.getCount(GmailMetrics.Stage.Queue, "Bulk", GmailMetrics.Outcome.Success), is(2L));
+	}
+
+	@Test
+	public void shouldTakeBulkQuotaOnlyWhenTransactionalShareIsLeft() throws Exception {
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(500, 0, 10000);
+		mailer = mailer(new GmailSettings().setRateLimiter(rateLimiter), GmailSendExecutor.threadPool(1, 10));
+		rateLimiter.reserve(GmailMailer.CREDENTIAL_USER_ID, 400);
+
+		// the last 100 units are reserved for transactional sends, so the transactional send goes first
+		CompletableFuture<String> bulk = mailer.sendAsync(message("bulk@email.com").priority(GmailPriority.Bulk));
+		mailer.send(message("transactional@email.com"));
+
+		assertThat(bulk.isDone(), is(false));
+		bulk.get(5, TimeUnit.SECONDS);
+		verify(send, times(2)).execute();
+		assertThat(rateLimiter.getUnitsUsed(GmailMailer.CREDENTIAL_USER_ID), is(600L));
+	}
+
+	@Test
+	public void shouldSendBulkEmailWaitingForQuotaThroughHalfOpenCircuit() throws Exception {
+		GmailCircuitBreaker circuitBreaker = halfOpenCircuitBreaker();
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(500, 0, 10000);
+		mailer = mailer(new GmailSettings().setCircuitBreaker(circuitBreaker).setRateLimiter(rateLimiter), GmailSendExecutor.threadPool(1, 10));
+		rateLimiter.reserve(GmailMailer.CREDENTIAL_USER_ID, 450);
+
+		String id = mailer.sendAsync(message("bulk@email.com").priority(GmailPriority.Bulk)).get(5, TimeUnit.SECONDS);
+
+		assertThat(id, is("sent-id"));
+		verify(send).execute();
+		assertThat(circuitBreaker.getState(GmailMailer.CREDENTIAL_USER_ID), is(GmailCircuitBreaker.State.Closed));
+	}
+
+	@Test
+	public void shouldReleaseHalfOpenCircuitWhenAsyncSendIsRejectedForQuota() throws Exception {
+		GmailCircuitBreaker circuitBreaker = halfOpenCircuitBreaker();
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(GmailRateLimiter.SEND_UNITS, 0, 0);
+		mailer = mailer(new GmailSettings().setCircuitBreaker(circuitBreaker).setRateLimiter(rateLimiter), GmailSendExecutor.threadPool(1, 10));
+		rateLimiter.reserve(GmailMailer.CREDENTIAL_USER_ID, GmailRateLimiter.SEND_UNITS);
+
+		CompletableFuture<String> rejected = mailer.sendAsync(message("recipient@email.com"));
+
+		assertThat(rejected.isCompletedExceptionally(), is(true));
+		verifyZeroInteractions(send);
+		assertThat(circuitBreaker.getState(GmailMailer.CREDENTIAL_USER_ID), is(GmailCircuitBreaker.State.HalfOpen));
+		circuitBreaker.allowRequest(GmailMailer.CREDENTIAL_USER_ID);
+	}
+
+	@Test
+	public void shouldReleaseHalfOpenCircuitWhenBatchIsRejectedForQuota() throws Exception {
+		GmailCircuitBreaker circuitBreaker = halfOpenCircuitBreaker();
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(GmailRateLimiter.SEND_UNITS, 0, 0);
+		mailer = mailer(new GmailSettings().setCircuitBreaker(circuitBreaker).setRateLimiter(rateLimiter), GmailSendExecutor.threadPool(1, 10));
+		rateLimiter.reserve(GmailMailer.CREDENTIAL_USER_ID, GmailRateLimiter.SEND_UNITS);
+
+		List<GmailSendResult> results = mailer.sendBatch(Collections.singletonList(message("recipient@email.com")));
+
+		assertThat(results.get(0).isSuccess(), is(false));
+		assertThat(circuitBreaker.getState(GmailMailer.CREDENTIAL_USER_ID), is(GmailCircuitBreaker.State.HalfOpen));
+		circuitBreaker.allowRequest(GmailMailer.CREDENTIAL_USER_ID);
+	}
+
+	@Test
+	public void shouldGiveBackQuotaWhenSendQueueIsFull() throws Exception {
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(500, 0, 10000);
+		GmailSendExecutor sendExecutor = GmailSendExecutor.threadPool(1, 1);
+		mailer = mailer(new GmailSettings().setRetryPolicy(GmailRetryPolicy.none()).setRateLimiter(rateLimiter), sendExecutor);
+		CountDownLatch block = new CountDownLatch(1);
+		sendExecutor.submit(() -> block.await(5, TimeUnit.SECONDS));
+		sendExecutor.submit(() -> block.await(5, TimeUnit.SECONDS));
+
+		CompletableFuture<String> rejected = mailer.sendAsync(message("recipient@email.com"));
+
+		assertThat(rejected.isCompletedExceptionally(), is(true));
+		assertThat(rateLimiter.getUnitsUsed(GmailMailer.CREDENTIAL_USER_ID), is(0L));
+		block.countDown();
+	}
+
+	@Test
+	public void shouldCountMergedEmailsWhichCouldNotBeCreated() throws Exception {
+		mailer = mailer(new GmailSettings(), GmailSendExecutor.threadPool(1, 10));
+		List<GmailSendResult> failures = new ArrayList<>();
+
+		GmailMergeResult merged = mailer.merge(Stream.of("one@email.com", "", "three@email.com"), address -> {
+			if (address.isEmpty()) {
+				throw new IllegalArgumentException("No address");
+			}
+			return message(address);
+		}, result -> {
+			if (!result.isSuccess()) {
+				failures.add(result);
+			}
+		});
+
+		assertThat(merged.getSent(), is(2L));
+		assertThat(merged.getFailed(), is(1L));
+		assertThat(failures.get(0).getError().getMessage(), is("No address"));
+		verify(send, times(2)).execute();
+	}
+
+	@Test
+	public void shouldSendEmailsPublishedToSinkNoFasterThanTheyComplete() throws Exception {
+		GmailSettings settings = new GmailSettings().setMergeMaxInFlight(3);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(2, 10));
+		AtomicInteger published = new AtomicInteger();
+		AtomicInteger delivered = new AtomicInteger();
+		AtomicInteger maxOutstanding = new AtomicInteger();
+		CountDownLatch completed = new CountDownLatch(1);
+		GmailSink sink = mailer.sink();
+		sink.subscribe(new GmailFlow.Subscriber<GmailSendResult>() {
+			@Override
+			public void onSubscribe(GmailFlow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(GmailSendResult result) {
+				delivered.incrementAndGet();
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+
+		sink.onSubscribe(new GmailFlow.Subscription() {
+			private boolean finished;
+
+			@Override
+			public synchronized void request(long n) {
+				for (long i = 0; i < n && published.get() < 20; i++) {
+					maxOutstanding.accumulateAndGet(published.incrementAndGet() - delivered.get(), Math::max);
+					sink.onNext(message("recipient" + published.get() + "@email.com"));
+				}
+				if (published.get() == 20 && !finished) {
+					finished = true;
+					sink.onComplete();
+				}
+			}
+
+			@Override
+			public void cancel() {
+			}
+		});
+
+		assertThat(completed.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(sink.getResult().getSent(), is(20L));
+		assertThat(delivered.get(), is(20));
+		assertThat(maxOutstanding.get(), is(lessThanOrEqualTo(3)));
+		verify(send, times(20)).execute();
+	}
+
+	@Test
+	public void shouldSpoolEmailToSendAtGivenTime() {
+		GmailSpool spool = mock(GmailSpool.class);
+		when(spool.isStarted()).thenReturn(true);
+		mailer = mailer(new GmailSettings().setSpool(spool), GmailSendExecutor.threadPool(1, 1));
+		ArgumentCaptor<GmailSpooledMessage> spooled = ArgumentCaptor.forClass(GmailSpooledMessage.class);
+
+		String id = mailer.enqueue(message("recipient@email.com"), 1893456000000L);
+
+		verify(spool).enqueue(spooled.capture());
+		assertThat(spooled.getValue().getId(), is(id));
+		assertThat(spooled.getValue().getSendAt(), is(1893456000000L));
+		assertThat(spooled.getValue().toMessage().getTo().keySet(), hasItem("recipient@email.com"));
+	}
+
+	@Test
+	public void shouldRejectPreparedSendWithoutRecipients() {
+		GmailPreparedMessage prepared = mailer.prepare(message("ignored@email.com"));
+
+		try {
+			mailer.send(prepared, new GmailMessage());
+			fail("Expected the send to be rejected");
+		} catch (RuntimeException e) {
+			verifyZeroInteractions(send);
+		}
+	}
+
+	@Test
+	public void shouldCreateDraftWithFileAttachment() throws Exception {
+		Path file = folder.newFile("report.pdf").toPath();
+		Files.write(file, "%PDF report".getBytes(StandardCharsets.UTF_8));
+		Gmail.Users.Drafts drafts = mock(Gmail.Users.Drafts.class);
+		Gmail.Users.Drafts.Create create = mock(Gmail.Users.Drafts.Create.class);
+		ArgumentCaptor<Draft> draftCaptor = ArgumentCaptor.forClass(Draft.class);
+		doReturn(gmail).when(mailer).getClient("inbox");
+		when(users.drafts()).thenReturn(drafts);
+		when(drafts.create(eq("me"), draftCaptor.capture())).thenReturn(create);
+
+		mailer.createDraft("Draft body", "Draft subject", Collections.singletonMap("recipient@email.com", "Recipient"),
+				Collections.singletonList(Attachment.fromFile("report.pdf", "application/pdf", file)), "inbox");
+
+		verify(create).execute();
+		MimeMessage draft = parse(draftCaptor.getValue().getMessage());
+		MimeMultipart body = (MimeMultipart) draft.getContent();
+		MimeBodyPart attachment = (MimeBodyPart) body.getBodyPart(1);
+		assertThat(attachment.getFileName(), is("report.pdf"));
+		assertThat(attachment.getEncoding(), is("base64"));
+		assertThat(IOUtils.toString(attachment.getInputStream(), "UTF-8"), is("%PDF report"));
+	}
+
+	@Test
+	public void shouldSendBatchAndRetryOnlyFailedParts() throws IOException {
+		final List<String> batches = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						getStreamingContent().writeTo(body);
+						batches.add(getUrl());
+						// the first batch rate limits the second message, the retry then succeeds
+						return batches.size() == 1 ?
+								batchResponse(part(200, "{\"id\":\"id-1\"}"), part(429, rateLimitError()), part(400, "{\"error\":{\"code\":400,\"message\":\"Invalid to header\"}}")) :
+								batchResponse(part(200, "{\"id\":\"id-2\"}"));
+					}
+				};
+			}
+		};
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+		doNothing().when(mailer).sleep(anyLong());
+
+		List<GmailSendResult> results = mailer.sendBatch(Arrays.asList(message("one@email.com"), message("two@email.com"), message("three@email.com"), new GmailMessage()));
+
+		assertThat(batches, contains("https://www.googleapis.com/batch/gmail/v1", "https://www.googleapis.com/batch/gmail/v1"));
+		assertThat(results.get(0).getId(), is("id-1"));
+		assertThat(results.get(1).getId(), is("id-2"));
+		assertThat(results.get(2).isSuccess(), is(false));
+		assertThat(results.get(2).getError().getMessage(), is("Failed to send email: 400 Invalid to header"));
+		assertThat(results.get(3).isSuccess(), is(false));
+	}
+
+	@Test
+	public void shouldFailBatchPartsWithoutRetryingWhenBatchRequestFails() throws IOException {
+		final List<String> batches = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						batches.add(getUrl());
+						throw new SocketException("Connection reset");
+					}
+				};
+			}
+		};
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+		doNothing().when(mailer).sleep(anyLong());
+
+		List<GmailSendResult> results = mailer.sendBatch(Arrays.asList(message("one@email.com"), message("two@email.com")));
+
+		assertThat(batches.size(), is(1));
+		assertThat(results.get(0).isSuccess(), is(false));
+		assertThat(results.get(0).getError().getCause(), is(instanceOf(SocketException.class)));
+		assertThat(results.get(1).isSuccess(), is(false));
+	}
+
+	@Test
+	public void shouldSendLargeEmailAsMediaUpload() throws IOException {
+		final List<String> requests = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						getStreamingContent().writeTo(body);
+						requests.add(getUrl());
+						requests.add(getContentType());
+						InputStream content = new ByteArrayInputStream(body.toByteArray());
+						requests.add(IOUtils.toString("gzip".equals(getContentEncoding()) ? new GZIPInputStream(content) : content, "UTF-8"));
+						return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"media-id\"}");
+					}
+				};
+			}
+		};
+		GmailSettings settings = new GmailSettings().setMediaUploadThreshold(100);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+
+		String id = mailer.send(message("recipient@email.com"));
+
+		assertThat(id, is("media-id"));
+		assertThat(requests.get(0), is("https://www.googleapis.com/upload/gmail/v1/users/me/messages/send?fields=id,threadId&uploadType=media"));
+		assertThat(requests.get(1), is("message/rfc822"));
+		assertThat(requests.get(2), containsString("To: recipient@email.com"));
+		assertThat(requests.get(2), containsString("This is a test message"));
+	}
+
+	@Test
+	public void shouldStreamLargeRawMessageWhenMediaUploadIsDisabled() throws IOException {
+		final List<String> requests = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						getStreamingContent().writeTo(body);
+						requests.add(getUrl());
+						requests.add(body.toString("UTF-8"));
+						return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"raw-id\"}");
+					}
+				};
+			}
+		};
+		GmailSettings settings = new GmailSettings().setUploadMode(GmailSettings.UploadMode.Raw).setMediaUploadThreshold(100);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+
+		String id = mailer.send(message("recipient@email.com"));
+
+		assertThat(id, is("raw-id"));
+		assertThat(requests.get(0), is("https://www.googleapis.com/gmail/v1/users/me/messages/send?fields=id,threadId"));
+		Message message = JacksonFactory.getDefaultInstance().fromString(requests.get(1), Message.class);
+		String messageText = new String(Base64.decodeBase64(message.getRaw()));
+		assertThat(messageText, containsString("To: recipient@email.com"));
+		assertThat(messageText, containsString("This is a test message"));
+	}
+
+	@Test
+	public void shouldGzipRequestsOnlyAtOrAboveGzipThreshold() throws IOException {
+		final List<String> encodings = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						getStreamingContent().writeTo(new ByteArrayOutputStream());
+						encodings.add(String.valueOf(getContentEncoding()));
+						return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"raw-id\"}");
+					}
+				};
+			}
+		};
+		GmailSettings settings = new GmailSettings().setUploadMode(GmailSettings.UploadMode.Raw).setMediaUploadThreshold(100).setGzipThreshold(2000);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+		char[] large = new char[2000];
+		Arrays.fill(large, 'x');
+
+		mailer.send(message("recipient@email.com"));
+		mailer.send(message("recipient@email.com").body(new StringView(new String(large))));
+		settings.setGzipThreshold(-1);
+		mailer.send(message("recipient@email.com").body(new StringView(new String(large))));
+
+		assertThat(encodings, is(Arrays.asList("null", "gzip", "null")));
+	}
+
+	@Test
+	public void shouldRequestFullResponseWhenPartialResponsesAreDisabled() throws IOException {
+		final List<String> urls = new ArrayList<>();
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, final String url) {
+				urls.add(url);
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"id\",\"message\":{\"id\":\"id\"}}");
+					}
+				};
+			}
+		};
+		GmailSettings settings = new GmailSettings();
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		Gmail client = new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build();
+		doReturn(client).when(mailer).getClient();
+		doReturn(client).when(mailer).getClient("inbox");
+
+		mailer.send(message("recipient@email.com"));
+		mailer.createDraft("body", "subject", Collections.singletonMap("recipient@email.com", "Recipient"), Collections.emptyList(), "inbox");
+		settings.setPartialResponses(false);
+		mailer.send(message("recipient@email.com"));
+
+		assertThat(urls, is(Arrays.asList("https://www.googleapis.com/gmail/v1/users/me/messages/send?fields=id,threadId",
+				"https://www.googleapis.com/gmail/v1/users/me/drafts?fields=id,message(id,threadId)", "https://www.googleapis.com/gmail/v1/users/me/messages/send")));
+	}
+
+	@Test
+	public void shouldResumeChunkedUploadFromLastAcknowledgedByte() throws Exception {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final List<String> requests = new ArrayList<>();
+		final AtomicInteger failures = new AtomicInteger(1);
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						String range = getFirstHeaderValue("Content-Range");
+						requests.add(method + " " + (range == null ? url : range));
+						if (url.contains("uploadType=resumable")) {
+							return new MockLowLevelHttpResponse().addHeader("Location", "https://upload.test/session");
+						}
+						if (range.startsWith("bytes */")) {
+							return new MockLowLevelHttpResponse().setStatusCode(308).addHeader("Range", "bytes=0-" + (received.size() - 1));
+						}
+						if (received.size() > 0 && failures.getAndDecrement() > 0) {
+							throw new IOException("Connection reset");
+						}
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						getStreamingContent().writeTo(body);
+						InputStream content = new ByteArrayInputStream(body.toByteArray());
+						IOUtils.copy("gzip".equals(getContentEncoding()) ? new GZIPInputStream(content) : content, received);
+						long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+						if (received.size() < total) {
+							return new MockLowLevelHttpResponse().setStatusCode(308).addHeader("Range", "bytes=0-" + (received.size() - 1));
+						}
+						return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"resumed-id\"}");
+					}
+				};
+			}
+		};
+		GmailSettings settings = new GmailSettings().setResumableUploadThreshold(1024).setUploadChunkSize(GmailSettings.UPLOAD_CHUNK_SIZE_MULTIPLE);
+		mailer = mailer(settings, GmailSendExecutor.threadPool(1, 1));
+		doReturn(new Gmail.Builder(transport, JacksonFactory.getDefaultInstance(), null).build()).when(mailer).getClient();
+		doReturn(BackOff.ZERO_BACKOFF).when(mailer).newUploadBackOff();
+		char[] large = new char[600 * 1024];
+		Arrays.fill(large, 'x');
+		String body = "This is a large message " + new String(large);
+
+		String id = mailer.send(message("recipient@email.com").body(new StringView(body)));
+
+		assertThat(id, is("resumed-id"));
+		assertThat(requests.get(0), is("POST https://www.googleapis.com/upload/gmail/v1/users/me/messages/send?fields=id,threadId&uploadType=resumable"));
+		assertThat(requests.get(1), startsWith("PUT bytes 0-262143/"));
+		assertThat(requests, hasItem(startsWith("PUT bytes */")));
+		MimeMessage sent = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(received.toByteArray()));
+		assertThat(sent.getHeader("To", null), is("recipient@email.com"));
+		assertThat((String) ((MimeMultipart) sent.getContent()).getBodyPart(0).getContent(), is(body));
+	}
+
+	@Test
+	public void shouldSendRawMessageWhenMediaUploadIsDisabled() {
+		GmailMailer rawMailer = mailer(new GmailSettings().setUploadMode(GmailSettings.UploadMode.Raw).setMediaUploadThreshold(0), GmailSendExecutor.threadPool(1, 1));
+
+		assertThat(rawMailer.isMediaUpload(10 * 1024 * 1024), is(false));
+		assertThat(mailer(new GmailSettings(), GmailSendExecutor.threadPool(1, 1)).isMediaUpload(GmailSettings.DEFAULT_MEDIA_UPLOAD_THRESHOLD - 1), is(false));
+		assertThat(mailer(new GmailSettings(), GmailSendExecutor.threadPool(1, 1)).isMediaUpload(GmailSettings.DEFAULT_MEDIA_UPLOAD_THRESHOLD), is(true));
+	}
+
+	private static MimeMessage parse(Message message) throws MessagingException {
+		return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(Base64.decodeBase64(message.getRaw())));
+	}
+
+	private GmailMailer mailer(GmailSettings settings, GmailSendExecutor sendExecutor) {
+		ViewResolverRegistry viewResolverRegistry = new ViewResolverRegistry();
+		viewResolverRegistry.addResolver(StringView.class, new StringViewResolver());
+		return mailer(viewResolverRegistry, settings, sendExecutor);
+	}
+
+	private GmailMailer mailer(ViewResolverRegistry viewResolverRegistry, GmailSettings settings, GmailSendExecutor sendExecutor) {
+		GmailMailer mailer = spy(new GmailMailer(viewResolverRegistry, flow, requestContainer, new GmailClientCache(flow), sendExecutor, settings));
+		doReturn(gmail).when(mailer).getClient();
+		return mailer;
+	}
+
+	/**
+	 * @return a circuit breaker whose circuit for {@link GmailMailer#CREDENTIAL_USER_ID} has been open long enough to let a trial through
+	 */
+	private GmailCircuitBreaker halfOpenCircuitBreaker() throws IOException {
+		AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+		GmailCircuitBreaker circuitBreaker = new GmailCircuitBreaker(1, 30000) {
+			@Override
+			protected long now() {
+				return clock.get();
+			}
+		};
+		circuitBreaker.allowRequest(GmailMailer.CREDENTIAL_USER_ID);
+		circuitBreaker.onFailure(GmailMailer.CREDENTIAL_USER_ID, jsonError(401, "authError", null));
+		clock.addAndGet(31000);
+		return circuitBreaker;
+	}
+
+	private GmailMessage message(String to) {
+		return new GmailMessage().from("sender@email.com").to(to).subject("Test subject").body(new StringView("This is a test message"));
+	}
+
+	private static GoogleJsonResponseException jsonError(int code, String reason, String retryAfter) {
+		GoogleJsonError error = new GoogleJsonError();
+		error.setCode(code);
+		error.setMessage(reason);
+		GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+		errorInfo.setReason(reason);
+		error.setErrors(Collections.singletonList(errorInfo));
+		HttpHeaders headers = new HttpHeaders().setRetryAfter(retryAfter);
+		return new GoogleJsonResponseException(new HttpResponseException.Builder(code, reason, headers), error);
+	}
+
+	private static String rateLimitError() {
+		return "{\"error\":{\"code\":429,\"message\":\"Rate limit exceeded\",\"errors\":[{\"reason\":\"rateLimitExceeded\"}]}}";
+	}
+
+	private static String part(int status, String json) {
+		return "Content-Type: application/http\r\n\r\n" +
+				"HTTP/1.1 " + status + " Status\r\n" +
+				"Content-Type: application/json; charset=UTF-8\r\n\r\n" +
+				json + "\r\n";
+	}
+
+	private static LowLevelHttpResponse batchResponse(String... parts) {
+		StringBuilder content = new StringBuilder();
+		for (String part : parts) {
+			content.append("--batch_boundary\r\n").append(part);
+		}
+		content.append("--batch_boundary--\r\n");
+		return new MockLowLevelHttpResponse()
+				.setContentType("multipart/mixed; boundary=batch_boundary")
+				.setContent(content.toString());
+	}
+
 }
@@ -19,11 +19,16 @@ package com.threewks.thundr.gmail;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.threewks.thundr.configuration.ConfigurationException;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
 import com.threewks.thundr.module.DependencyRegistry;
 import com.threewks.thundr.route.Router;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,6 +38,10 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.net.SocketException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
@@ -56,6 +65,50 @@ import static org.mockito.Mockito.*;
 		when(injectionContext.get(String.class, "gmailOAuthClientId")).thenReturn("oAuthClientId");
 		when(injectionContext.get(String.class, "gmailOAuthClientSecret")).thenReturn("oAuthClientSecret");
 		when(injectionContext.get(String.class, "gmailAdminRootPath")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailClientCacheMaxSize")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailClientCacheTtlSeconds")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailTokenRefreshAheadSeconds")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailTokenBackgroundRefresh")).thenReturn("false");
+		when(injectionContext.get(String.class, "gmailSendThreads")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSendQueueCapacity")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSendVirtualThreads")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailBatchSize")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailBatchRetries")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailMediaUploadThreshold")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailUploadMode")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailMetrics")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailCredentialPool")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailCredentialPoolStrategy")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailCredentialPoolRoutes")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailDedupe")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailPartCacheMaxBytes")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailMergeParallelism")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailMergeMaxInFlight")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailDedupeCapacity")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailDedupeWindowSeconds")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRequestGzipThreshold")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailPartialResponses")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailHttpMaxConnections")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailHttpKeepAliveSeconds")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailCircuitBreakerFailureThreshold")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailCircuitBreakerOpenMillis")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSpool")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSpoolWorkers")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRateLimitUnitsPerSecond")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRateLimitUnitsPerDay")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRateLimitMaxWaitMillis")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRateLimitReservedPercent")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSendTransactionalWeight")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailSendBulkWeight")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRetryMaxAttempts")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRetryInitialDelayMillis")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRetryMaxDelayMillis")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRetryBudgetMillis")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailResumableUploadThreshold")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailUploadChunkSize")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRenderCacheSize")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRenderCacheMaxBytes")).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailRenderCacheByInstance")).thenReturn(null);
 		when(injectionContext.get(DataStoreFactory.class)).thenReturn(mock(DataStoreFactory.class));
 		when(injectionContext.get(HttpTransport.class)).thenReturn(mock(HttpTransport.class));
 		when(injectionContext.get(Router.class)).thenReturn(router);
@@ -75,11 +128,120 @@ import static org.mockito.Mockito.*;
 		assertThat(injectionContext.get(GoogleAuthorizationCodeFlow.class, "gmailAuthorizationCodeFlow"), notNullValue());
 	}
 
+	@Test public void shouldThrowExceptionIfClientCacheMaxSizeIsNotANumber() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailClientCacheMaxSize` must be a whole number but was `lots`"));
+
+		when(injectionContext.get(String.class, "gmailClientCacheMaxSize")).thenReturn("lots");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfBatchSizeIsTooLarge() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailBatchSize` must be between 1 and 100"));
+
+		when(injectionContext.get(String.class, "gmailBatchSize")).thenReturn("101");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfCredentialPoolStrategyIsUnknown() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailCredentialPoolStrategy` must be one of round-robin, least-loaded or quota-remaining but was `random`"));
+
+		when(injectionContext.get(String.class, "gmailCredentialPool")).thenReturn("inbox1, inbox2");
+		when(injectionContext.get(String.class, "gmailCredentialPoolStrategy")).thenReturn("random");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfCredentialPoolRouteIsInvalid() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailCredentialPoolRoutes` must be a comma separated list of from-address=credentialId but contained `sales@example.com`"));
+
+		when(injectionContext.get(String.class, "gmailCredentialPool")).thenReturn("inbox1, inbox2");
+		when(injectionContext.get(String.class, "gmailCredentialPoolStrategy")).thenReturn("least-loaded");
+		when(injectionContext.get(String.class, "gmailCredentialPoolRoutes")).thenReturn("sales@example.com");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfMergeMaxInFlightIsLessThanOne() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailMergeMaxInFlight` must be at least 1"));
+
+		when(injectionContext.get(String.class, "gmailMergeMaxInFlight")).thenReturn("0");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfDedupeIsUnknown() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailDedupe` must be one of memory or datastore but was `disk`"));
+
+		when(injectionContext.get(String.class, "gmailDedupe")).thenReturn("disk");
+
+		module.configure(injectionContext);
+	}
+
+	@Test public void shouldThrowExceptionIfSpoolIsUnknown() {
+		expectedException.expect(ConfigurationException.class);
+		expectedException.expectMessage(is("Property `gmailSpool` must be one of datastore or journal but was `queue`"));
+
+		when(injectionContext.get(String.class, "gmailSpool")).thenReturn("queue");
+
+		module.configure(injectionContext);
+	}
+
 	@Test public void shouldAddRoutesOnStart() {
 		module.start(injectionContext);
 
 		verify(router).get("/admin/gmail/setup", GmailAdminController.class, "setup", "gmail.admin.setup");
 		verify(router).get("/admin/gmail/setup/oauth2callback", GmailAdminController.class, "oauthCallback", "gmail.admin.oauthCallback");
+		verify(router).get("/admin/gmail/circuits", GmailAdminController.class, "circuits", "gmail.admin.circuits");
+		verify(router).post("/admin/gmail/circuits/reset", GmailAdminController.class, "resetCircuit", "gmail.admin.resetCircuit");
+		verify(router).get("/admin/gmail/metrics", GmailAdminController.class, "metrics", "gmail.admin.metrics");
+		verify(router).get("/admin/gmail/lanes", GmailAdminController.class, "lanes", "gmail.admin.lanes");
+	}
+
+	@Test public void shouldShutdownTokenManagerAndSendExecutorOnStop() {
+		GmailTokenManager tokenManager = mock(GmailTokenManager.class);
+		GmailSendExecutor sendExecutor = mock(GmailSendExecutor.class);
+		GmailSpool spool = mock(GmailSpool.class);
+		when(injectionContext.get(GmailTokenManager.class)).thenReturn(tokenManager);
+		when(injectionContext.get(GmailSpool.class)).thenReturn(spool);
+		when(injectionContext.get(GmailSendExecutor.class)).thenReturn(sendExecutor);
+		when(injectionContext.get(GmailSettings.class)).thenReturn(new GmailSettings());
+
+		module.stop(injectionContext);
+
+		verify(tokenManager).shutdown();
+		verify(sendExecutor).shutdown(30, TimeUnit.SECONDS);
+		verify(spool).shutdown(30, TimeUnit.SECONDS);
+	}
+
+	@Test public void shouldShutdownMergePoolOnStop() {
+		ForkJoinPool mergePool = new ForkJoinPool(2);
+		when(injectionContext.get(GmailTokenManager.class)).thenReturn(null);
+		when(injectionContext.get(GmailSpool.class)).thenReturn(null);
+		when(injectionContext.get(GmailSendExecutor.class)).thenReturn(null);
+		when(injectionContext.get(GmailSettings.class)).thenReturn(new GmailSettings().setMergeExecutor(mergePool));
+
+		module.stop(injectionContext);
+
+		assertThat(mergePool.isTerminated(), is(true));
+	}
+
+	@Test public void shouldNotShutdownCommonPoolOnStop() {
+		when(injectionContext.get(GmailTokenManager.class)).thenReturn(null);
+		when(injectionContext.get(GmailSpool.class)).thenReturn(null);
+		when(injectionContext.get(GmailSendExecutor.class)).thenReturn(null);
+		when(injectionContext.get(GmailSettings.class)).thenReturn(new GmailSettings());
+
+		module.stop(injectionContext);
+
+		assertThat(ForkJoinPool.commonPool().isShutdown(), is(false));
 	}
 
 	@Test public void shouldThrowExceptionIfHostPropertyNotSet() {
@@ -127,6 +289,33 @@ import static org.mockito.Mockito.*;
 		module.configure(injectionContext);
 	}
 
+	@Test public void shouldCreatePooledHttpTransportIfNoneIsInjected() {
+		when(injectionContext.get(HttpTransport.class)).thenReturn(null);
+		when(injectionContext.get(String.class, "gmailHttpMaxConnections")).thenReturn("20");
+
+		module.configure(injectionContext);
+
+		verify(injectionContext).inject(org.mockito.Matchers.isA(ApacheHttpTransport.class));
+	}
+
+	@Test public void shouldOnlyRetryPooledRequestsWhichWereNotSent() {
+		HttpContext context = new BasicHttpContext();
+
+		assertThat(GmailModule.RETRY_UNSENT_REQUESTS.retryRequest(new SocketException("Connection reset"), 1, context), is(true));
+		assertThat(GmailModule.RETRY_UNSENT_REQUESTS.retryRequest(new SocketException("Connection reset"), 2, context), is(false));
+		context.setAttribute(ExecutionContext.HTTP_REQ_SENT, true);
+		assertThat(GmailModule.RETRY_UNSENT_REQUESTS.retryRequest(new NoHttpResponseException("No response"), 1, context), is(false));
+	}
+
+	@Test public void shouldPreferInjectedHttpTransportToPooledHttpTransport() {
+		when(injectionContext.contains(HttpTransport.class)).thenReturn(true);
+		when(injectionContext.get(String.class, "gmailHttpMaxConnections")).thenReturn("20");
+
+		module.configure(injectionContext);
+
+		verify(injectionContext, never()).inject(org.mockito.Matchers.isA(ApacheHttpTransport.class));
+	}
+
 	@Test public void shoudlAllowOverridingOfAdminRootPath() {
 		when(injectionContext.get(String.class, "gmailAdminRootPath")).thenReturn("/custom/admin/gmail");
 
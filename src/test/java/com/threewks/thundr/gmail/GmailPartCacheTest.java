@@ -0,0 +1,129 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailPartCacheTest {
+
+	@Test
+	public void shouldEncodeContentOnce() throws Exception {
+		GmailPartCache cache = new GmailPartCache();
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		MimeBodyPart first = cache.createPart(new GmailRenderedView(data, "application/pdf", null), "application/pdf");
+		MimeBodyPart second = cache.createPart(new GmailRenderedView(data.clone(), "application/pdf", null), "application/pdf");
+
+		assertThat(cache.getMisses(), is(1L));
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.size(), is(1));
+		assertThat(second.getEncoding(), is("base64"));
+		assertThat(second.getContentType(), is("application/pdf"));
+		assertThat(IOUtils.toByteArray(first.getInputStream()), is(data));
+		assertThat(IOUtils.toByteArray(second.getInputStream()), is(data));
+	}
+
+	@Test
+	public void shouldWriteTheSameEncodedContentAsAStandardPart() throws Exception {
+		byte[] data = "A plain text attachment".getBytes(StandardCharsets.UTF_8);
+		MimeBodyPart standard = new MimeBodyPart();
+		standard.setContent(data, "application/octet-stream");
+		// saving an email updates the headers of its parts, choosing their transfer encoding
+		MimeMessage email = new MimeMessage(Session.getInstance(new Properties()));
+		MimeMultipart multipart = new MimeMultipart();
+		multipart.addBodyPart(standard);
+		email.setContent(multipart);
+		email.saveChanges();
+
+		MimeBodyPart cached = new GmailPartCache().createPart(new GmailRenderedView(data, "application/octet-stream", null), "application/octet-stream");
+
+		assertThat(cached.getEncoding(), is(standard.getEncoding()));
+		assertThat(body(cached), is(body(standard)));
+	}
+
+	@Test
+	public void shouldEncodeSameContentSeparatelyForEachContentType() throws Exception {
+		GmailPartCache cache = new GmailPartCache();
+		byte[] data = "content".getBytes(StandardCharsets.UTF_8);
+
+		cache.createPart(new GmailRenderedView(data, "text/plain", null), "text/plain");
+		cache.createPart(new GmailRenderedView(data, "application/pdf", null), "application/pdf");
+
+		assertThat(cache.getMisses(), is(2L));
+		assertThat(cache.size(), is(2));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedContentOnceFull() throws Exception {
+		GmailPartCache cache = new GmailPartCache(3000);
+		GmailRenderedView first = view('a', 900);
+		GmailRenderedView second = view('b', 900);
+
+		cache.createPart(first, "application/pdf");
+		cache.createPart(second, "application/pdf");
+		cache.createPart(first, "application/pdf");
+		cache.createPart(view('c', 900), "application/pdf");
+
+		assertThat(cache.size(), is(2));
+		assertThat(cache.getBytes(), is(lessThanOrEqualTo(3000L)));
+		cache.createPart(first, "application/pdf");
+		assertThat(cache.getHits(), is(2L));
+		cache.createPart(second, "application/pdf");
+		assertThat(cache.getMisses(), is(4L));
+	}
+
+	@Test
+	public void shouldNotCacheContentLargerThanCache() throws Exception {
+		GmailPartCache cache = new GmailPartCache(100);
+
+		MimeBodyPart part = cache.createPart(view('a', 500), "application/pdf");
+
+		assertThat(cache.size(), is(0));
+		assertThat(IOUtils.toByteArray(part.getInputStream()).length, is(500));
+	}
+
+	private static GmailRenderedView view(char c, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (c + (i % 2 == 0 ? 0 : 128));
+		}
+		return new GmailRenderedView(data, "application/pdf", null);
+	}
+
+	private static String body(MimeBodyPart part) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.writeTo(out);
+		String written = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+		return written.substring(written.indexOf("\r\n\r\n") + 4);
+	}
+}
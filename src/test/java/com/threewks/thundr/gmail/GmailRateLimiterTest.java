@@ -0,0 +1,213 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GmailRateLimiterTest {
+
+	private long now = 1000000;
+	private List<Long> sleeps = new ArrayList<>();
+
+	@Test
+	public void shouldLetBurstThroughThenPaceRequests() {
+		GmailRateLimiter rateLimiter = rateLimiter(250, 0, 10000);
+
+		assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+		assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+		assertThat(rateLimiter.reserve("inbox", 100), is(200L));
+		assertThat(rateLimiter.reserve("inbox", 100), is(600L));
+
+		now += 600;
+		assertThat(rateLimiter.reserve("inbox", 100), is(400L));
+	}
+
+	@Test
+	public void shouldGiveBackReleasedUnits() {
+		GmailRateLimiter rateLimiter = rateLimiter(100, 1000, 10000);
+
+		rateLimiter.reserve("inbox", 100);
+		rateLimiter.release("inbox", 100);
+
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(0L));
+		assertThat(rateLimiter.getUnitsAvailable("inbox"), is(100L));
+		assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+	}
+
+	@Test
+	public void shouldKeepSeparateQuotaForEachCredential() {
+		GmailRateLimiter rateLimiter = rateLimiter(100, 0, 0);
+
+		rateLimiter.acquire("inbox1", 100);
+		rateLimiter.acquire("inbox2", 100);
+
+		assertThat(rateLimiter.getUnitsUsed("inbox1"), is(100L));
+		assertThat(rateLimiter.getUnitsUsed("inbox2"), is(100L));
+		assertThat(rateLimiter.getUnitsUsed("inbox3"), is(0L));
+		assertThat(rateLimiter.getUnitsUsed().size(), is(2));
+	}
+
+	@Test
+	public void shouldWaitForQuotaWhenBlocking() {
+		GmailRateLimiter rateLimiter = rateLimiter(100, 0, 5000);
+
+		rateLimiter.acquire("inbox", 100);
+		rateLimiter.acquire("inbox", 100);
+
+		assertThat(sleeps, contains(1000L));
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(200L));
+	}
+
+	@Test
+	public void shouldRejectWithoutTakingQuotaWhenWaitIsTooLong() {
+		GmailRateLimiter rateLimiter = rateLimiter(100, 0, 500);
+		rateLimiter.acquire("inbox", 100);
+
+		try {
+			rateLimiter.acquire("inbox", 100);
+			fail("Expected the request to be rejected");
+		} catch (GmailException e) {
+			assertThat(e.getMessage(), containsString("inbox"));
+		}
+
+		assertThat(sleeps, is(empty()));
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(100L));
+		now += 1000;
+		assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+	}
+
+	@Test
+	public void shouldLimitUnitsPerDay() {
+		GmailRateLimiter rateLimiter = rateLimiter(1000, 300, 10000);
+
+		for (int i = 0; i < 3; i++) {
+			now += 1000;
+			assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+		}
+		try {
+			rateLimiter.reserve("inbox", 100);
+			fail("Expected the daily quota to be used up");
+		} catch (GmailException e) {
+			assertThat(rateLimiter.getUnitsUsed("inbox"), is(300L));
+		}
+	}
+
+	@Test
+	public void shouldLetRequestLargerThanQuotaThroughOnceQuotaIsFull() {
+		GmailRateLimiter rateLimiter = rateLimiter(100, 0, 10000);
+
+		assertThat(rateLimiter.reserve("inbox", 500), is(0L));
+		assertThat(rateLimiter.reserve("inbox", 100), is(5000L));
+	}
+
+	@Test
+	public void shouldReportUnitsAvailableAsQuotaRefills() {
+		GmailRateLimiter rateLimiter = rateLimiter(250, 1000, 10000);
+
+		assertThat(rateLimiter.getUnitsAvailable("inbox"), is(250L));
+		rateLimiter.reserve("inbox", 200);
+		assertThat(rateLimiter.getUnitsAvailable("inbox"), is(50L));
+
+		now += 1000;
+		assertThat(rateLimiter.getUnitsAvailable("inbox"), is(250L));
+		rateLimiter.reserve("inbox", 250);
+		rateLimiter.reserve("inbox", 250);
+		rateLimiter.reserve("inbox", 250);
+		now += 5000;
+		// the daily quota is nearly used up, so limits the units available
+		assertThat(rateLimiter.getUnitsAvailable("inbox"), is(50L));
+	}
+
+	@Test
+	public void shouldKeepReservedShareForTransactionalRequests() {
+		GmailRateLimiter rateLimiter = rateLimiter(500, 0, 10000);
+
+		for (int i = 0; i < 4; i++) {
+			assertThat(rateLimiter.reserveBulk("inbox", 100), is(0L));
+		}
+		// taking another 100 would leave less than the reserved 20%, so the bulk request waits without taking quota
+		assertThat(rateLimiter.reserveBulk("inbox", 100), is(200L));
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(400L));
+
+		assertThat(rateLimiter.reserve("inbox", 100), is(0L));
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(500L));
+	}
+
+	@Test
+	public void shouldWaitForBulkQuotaWhenBlocking() {
+		GmailRateLimiter rateLimiter = rateLimiter(500, 0, 10000);
+		rateLimiter.reserve("inbox", 400);
+
+		rateLimiter.acquire("inbox", 100, GmailPriority.Bulk);
+
+		assertThat(sleeps, contains(200L));
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(500L));
+	}
+
+	@Test
+	public void shouldLetTransactionalRequestsTakeReservedShare() {
+		GmailRateLimiter rateLimiter = rateLimiter(500, 0, 10000);
+		rateLimiter.reserve("inbox", 400);
+
+		rateLimiter.acquire("inbox", 100, GmailPriority.Transactional);
+
+		assertThat(sleeps, is(empty()));
+	}
+
+	@Test
+	public void shouldRejectBulkRequestWhenWaitIsTooLong() {
+		GmailRateLimiter rateLimiter = new GmailRateLimiter(100, 0, 500, 50) {
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+
+		try {
+			// half of the quota is reserved, so the bulk request waits for the whole bucket to refill, which takes 1000ms
+			rateLimiter.reserve("inbox", 100);
+			rateLimiter.reserveBulk("inbox", 100);
+			fail("Expected the request to be rejected");
+		} catch (GmailException e) {
+			assertThat(e.getMessage(), containsString("bulk"));
+		}
+		assertThat(rateLimiter.getUnitsUsed("inbox"), is(100L));
+	}
+
+	private GmailRateLimiter rateLimiter(long unitsPerSecond, long unitsPerDay, long maxWaitMillis) {
+		return new GmailRateLimiter(unitsPerSecond, unitsPerDay, maxWaitMillis) {
+			@Override
+			protected long now() {
+				return now;
+			}
+
+			@Override
+			protected void sleep(long millis) {
+				sleeps.add(millis);
+				now += millis;
+			}
+		};
+	}
+}
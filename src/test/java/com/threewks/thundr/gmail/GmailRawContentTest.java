@@ -0,0 +1,110 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailRawContentTest {
+
+	private GmailMimeContent email;
+	private byte[] emailBytes;
+
+	@Before
+	public void before() throws Exception {
+		MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+		mimeMessage.setFrom(new InternetAddress("sender@email.com"));
+		mimeMessage.setSubject("Test subject");
+		mimeMessage.setText("This is a test message with some length to it \u00e9\u00e8", "UTF-8");
+		mimeMessage.saveChanges();
+		email = new GmailMimeContent(mimeMessage);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		mimeMessage.writeTo(bytes);
+		emailBytes = bytes.toByteArray();
+	}
+
+	@Test
+	public void shouldWriteEmailAsIsWithItsLength() throws IOException {
+		assertThat(email.getType(), is("message/rfc822"));
+		assertThat(email.getLength(), is((long) emailBytes.length));
+		assertThat(write(email), is(emailBytes));
+	}
+
+	@Test
+	public void shouldKeepEmailWithinBufferLimitOnceMeasured() throws IOException {
+		GmailMimeContent buffered = new GmailMimeContent(email.getMimeMessage(), emailBytes.length);
+
+		assertThat(buffered.getBuffered(), is(nullValue()));
+		assertThat(buffered.getLength(), is((long) emailBytes.length));
+		assertThat(buffered.getBuffered(), is(emailBytes));
+		assertThat(write(buffered), is(emailBytes));
+	}
+
+	@Test
+	public void shouldNotKeepEmailLargerThanBufferLimit() throws IOException {
+		GmailMimeContent buffered = new GmailMimeContent(email.getMimeMessage(), emailBytes.length - 1);
+
+		assertThat(buffered.getLength(), is((long) emailBytes.length));
+		assertThat(buffered.getBuffered(), is(nullValue()));
+		assertThat(write(buffered), is(emailBytes));
+	}
+
+	@Test
+	public void shouldWriteEmailBase64UrlEncodedInsideJson() throws IOException {
+		GmailRawContent content = GmailRawContent.message(email);
+
+		String json = new String(write(content), StandardCharsets.UTF_8);
+
+		assertThat(json, is("{\"raw\":\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(emailBytes) + "\"}"));
+		assertThat(content.getLength(), is((long) json.length()));
+	}
+
+	@Test
+	public void shouldWrapEmailForDrafts() throws IOException {
+		String json = new String(write(GmailRawContent.draft(email)), StandardCharsets.UTF_8);
+
+		assertThat(json, startsWith("{\"message\":{\"raw\":\""));
+		assertThat(json, endsWith("\"}}"));
+	}
+
+	@Test
+	public void shouldCalculateUnpaddedEncodedLength() {
+		for (int length = 0; length < 10; length++) {
+			assertThat(GmailRawContent.encodedLength(length), is((long) Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[length]).length()));
+		}
+	}
+
+	private static byte[] write(com.google.api.client.http.HttpContent content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		content.writeTo(out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailRetryPolicyTest {
+
+	private GmailRetryPolicy policy = new GmailRetryPolicy() {
+		@Override
+		protected double random() {
+			return 1;
+		}
+
+		@Override
+		protected long now() {
+			return 1000000;
+		}
+	};
+
+	@Test
+	public void shouldRetryRateLimitsAndServerErrorsOnly() {
+		assertThat(policy.isRetryable(error(429, null)), is(true));
+		assertThat(policy.isRetryable(error(500, null)), is(true));
+		assertThat(policy.isRetryable(error(503, null)), is(true));
+		assertThat(policy.isRetryable(error(403, "userRateLimitExceeded")), is(true));
+		assertThat(policy.isRetryable(error(403, "rateLimitExceeded")), is(true));
+		assertThat(policy.isRetryable(error(403, "insufficientPermissions")), is(false));
+		assertThat(policy.isRetryable(error(400, null)), is(false));
+		assertThat(policy.isRetryable(new HttpResponseException.Builder(502, "Bad Gateway", new HttpHeaders()).build()), is(true));
+		assertThat(policy.isRetryable(new IOException("Connection reset")), is(false));
+	}
+
+	@Test
+	public void shouldBackOffExponentiallyWithJitterUpToMaxDelay() {
+		policy.setInitialDelayMillis(1000).setMaxDelayMillis(5000).setJitter(0.5);
+
+		assertThat(policy.backOffMillis(1), is(500L));
+		assertThat(policy.backOffMillis(2), is(1000L));
+		assertThat(policy.backOffMillis(3), is(2000L));
+		assertThat(policy.backOffMillis(4), is(2500L));
+
+		policy.setJitter(0);
+		assertThat(policy.backOffMillis(3), is(4000L));
+		assertThat(policy.backOffMillis(10), is(5000L));
+	}
+
+	@Test
+	public void shouldWaitAtLeastRetryAfter() {
+		policy.setJitter(0);
+		HttpHeaders seconds = new HttpHeaders().setRetryAfter("7");
+		HttpHeaders date = new HttpHeaders().setRetryAfter(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(1000000 + 9000), ZoneOffset.UTC)));
+
+		assertThat(policy.retryAfterMillis(seconds), is(7000L));
+		assertThat(policy.retryAfterMillis(date), is(9000L));
+		assertThat(policy.retryAfterMillis(new HttpHeaders().setRetryAfter("soon")), is(0L));
+		assertThat(policy.retryDelay(1, 0, 7000), is(7000L));
+		assertThat(policy.retryDelay(1, 0, 0), is(1000L));
+	}
+
+	@Test
+	public void shouldStopRetryingWhenAttemptsOrBudgetAreUsedUp() {
+		policy.setJitter(0).setMaxAttempts(3).setBudgetMillis(10000);
+
+		assertThat(policy.retryDelay(2, 0, 0), is(2000L));
+		assertThat(policy.retryDelay(3, 0, 0), is(-1L));
+		assertThat(policy.retryDelay(1, 9500, 0), is(-1L));
+		assertThat(policy.retryDelay(1, 0, 20000), is(-1L));
+		assertThat(GmailRetryPolicy.none().retryDelay(1, 0, 0), is(-1L));
+	}
+
+	private static GoogleJsonError error(int code, String reason) {
+		GoogleJsonError error = new GoogleJsonError();
+		error.setCode(code);
+		if (reason != null) {
+			GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+			errorInfo.setReason(reason);
+			error.setErrors(Collections.singletonList(errorInfo));
+		}
+		return error;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GmailSendExecutorTest {
+
+	private GmailSendExecutor executor;
+
+	@After
+	public void after() {
+		executor.shutdown(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void shouldCompleteFutureWithResult() throws Exception {
+		executor = GmailSendExecutor.threadPool(1, 1);
+
+		assertThat(executor.submit(() -> "id").get(5, TimeUnit.SECONDS), is("id"));
+	}
+
+	@Test
+	public void shouldCompleteFutureExceptionallyWhenTaskFails() throws Exception {
+		executor = GmailSendExecutor.threadPool(1, 1);
+
+		CompletableFuture<String> future = executor.submit(() -> {
+			throw new GmailException("failed");
+		});
+
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected the task to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause().getMessage(), is("failed"));
+		}
+	}
+
+	@Test
+	public void shouldRejectWorkOnceThreadPoolQueueIsFull() throws Exception {
+		executor = GmailSendExecutor.threadPool(1, 1);
+		CountDownLatch block = new CountDownLatch(1);
+
+		CompletableFuture<String> running = executor.submit(() -> {
+			block.await();
+			return "running";
+		});
+		CompletableFuture<String> queued = executor.submit(() -> "queued");
+		CompletableFuture<String> rejected = executor.submit(() -> "rejected");
+
+		assertThat(rejected.isCompletedExceptionally(), is(true));
+		block.countDown();
+		assertThat(running.get(5, TimeUnit.SECONDS), is("running"));
+		assertThat(queued.get(5, TimeUnit.SECONDS), is("queued"));
+	}
+
+	@Test
+	public void shouldBoundInFlightAndRunningWork() throws Exception {
+		executor = new GmailSendExecutor(Executors.newCachedThreadPool(), 2, 1);
+		CountDownLatch block = new CountDownLatch(1);
+
+		CompletableFuture<String> running = executor.submit(() -> {
+			block.await();
+			return "running";
+		});
+		CompletableFuture<String> waiting = executor.submit(() -> "waiting");
+		CompletableFuture<String> rejected = executor.submit(() -> "rejected");
+
+		assertThat(rejected.isCompletedExceptionally(), is(true));
+		Thread.sleep(50);
+		assertThat(waiting.isDone(), is(false));
+		block.countDown();
+		assertThat(running.get(5, TimeUnit.SECONDS), is("running"));
+		assertThat(waiting.get(5, TimeUnit.SECONDS), is("waiting"));
+	}
+
+	@Test
+	public void shouldFreeSlotBeforeCompletingFuture() throws Exception {
+		executor = new GmailSendExecutor(Executors.newCachedThreadPool(), 1, 1);
+		CountDownLatch block = new CountDownLatch(1);
+
+		CompletableFuture<String> followUp = executor.submit(() -> {
+			block.await();
+			return "first";
+		}).thenCompose(first -> executor.submit(() -> "follow up"));
+		block.countDown();
+
+		assertThat(followUp.get(5, TimeUnit.SECONDS), is("follow up"));
+	}
+
+	@Test
+	public void shouldTakeTurnsBetweenLanesByWeight() throws Exception {
+		executor = new GmailSendExecutor(Executors.newCachedThreadPool(), 100, 1);
+		CountDownLatch block = new CountDownLatch(1);
+		List<GmailPriority> order = Collections.synchronizedList(new ArrayList<>());
+
+		CompletableFuture<String> running = executor.submit(() -> {
+			block.await();
+			return "running";
+		});
+		List<CompletableFuture<GmailPriority>> sends = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			sends.add(executor.submit(() -> record(order, GmailPriority.Bulk), GmailPriority.Bulk));
+		}
+		for (int i = 0; i < 8; i++) {
+			sends.add(executor.submit(() -> record(order, GmailPriority.Transactional), GmailPriority.Transactional));
+		}
+		assertThat(executor.getQueueDepth(GmailPriority.Bulk), is(5));
+		assertThat(executor.getQueueDepth(GmailPriority.Transactional), is(8));
+		block.countDown();
+		running.get(5, TimeUnit.SECONDS);
+		for (CompletableFuture<GmailPriority> send : sends) {
+			send.get(5, TimeUnit.SECONDS);
+		}
+
+		// four transactional sends for every bulk send while both are waiting, then the rest of the bulk sends
+		assertThat(Collections.frequency(order.subList(0, 10), GmailPriority.Bulk), is(2));
+		assertThat(order.subList(10, 13), everyItem(is(GmailPriority.Bulk)));
+	}
+
+	@Test
+	public void shouldKeepCapacityForTransactionalSends() throws Exception {
+		executor = new GmailSendExecutor(Executors.newCachedThreadPool(), 10, 1);
+		CountDownLatch block = new CountDownLatch(1);
+
+		List<CompletableFuture<String>> bulk = new ArrayList<>();
+		for (int i = 0; i < 9; i++) {
+			bulk.add(executor.submit(() -> {
+				block.await();
+				return "bulk";
+			}, GmailPriority.Bulk));
+		}
+		CompletableFuture<String> rejected = executor.submit(() -> "rejected", GmailPriority.Bulk);
+		CompletableFuture<String> transactional = executor.submit(() -> "transactional");
+
+		assertThat(rejected.isCompletedExceptionally(), is(true));
+		assertThat(transactional.isCompletedExceptionally(), is(false));
+		assertThat(executor.getQueueDepth(GmailPriority.Bulk), is(8));
+		assertThat(executor.getQueueDepth(GmailPriority.Transactional), is(1));
+		block.countDown();
+		assertThat(transactional.get(5, TimeUnit.SECONDS), is("transactional"));
+		for (CompletableFuture<String> send : bulk) {
+			assertThat(send.get(5, TimeUnit.SECONDS), is("bulk"));
+		}
+	}
+
+	@Test
+	public void shouldRunDelayedWorkAfterDelay() throws Exception {
+		executor = GmailSendExecutor.threadPool(1, 1);
+		long started = System.currentTimeMillis();
+
+		CompletableFuture<Long> ran = executor.submit(System::currentTimeMillis, 50);
+
+		assertThat(ran.get(5, TimeUnit.SECONDS) - started, is(greaterThanOrEqualTo(50L)));
+	}
+
+	@Test
+	public void shouldFailDelayedWorkWhenShutDown() throws Exception {
+		executor = GmailSendExecutor.threadPool(1, 1);
+
+		CompletableFuture<String> delayed = executor.submit(() -> "delayed", 60000);
+		executor.shutdown(5, TimeUnit.SECONDS);
+
+		assertThat(delayed.isCompletedExceptionally(), is(true));
+	}
+
+	private static GmailPriority record(List<GmailPriority> order, GmailPriority priority) {
+		order.add(priority);
+		return priority;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GmailSinkTest {
+
+	@Mock private GmailMailer mailer;
+
+	private final List<Consumer<GmailSendResult>> completions = new ArrayList<>();
+	private final RecordingSubscription upstream = new RecordingSubscription();
+	private final RecordingSubscriber downstream = new RecordingSubscriber();
+	private GmailSink sink;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void before() {
+		doAnswer(invocation -> {
+			completions.add((Consumer<GmailSendResult>) invocation.getArguments()[2]);
+			return null;
+		}).when(mailer).renderAndSendAsync(org.mockito.Matchers.any(), org.mockito.Matchers.any(Function.class), org.mockito.Matchers.any(Consumer.class));
+		sink = new GmailSink(mailer, 2);
+	}
+
+	@Test
+	public void shouldRequestMoreEmailsOnlyAsResultsAreDelivered() {
+		sink.subscribe(downstream);
+		sink.onSubscribe(upstream);
+		assertThat(upstream.requested, is(2L));
+
+		GmailMessage first = new GmailMessage().to("one@email.com");
+		sink.onNext(first);
+		sink.onNext(new GmailMessage().to("two@email.com"));
+		completions.get(0).accept(GmailSendResult.success(first, "id-1"));
+		assertThat(upstream.requested, is(2L));
+		assertThat(sink.getSending(), is(1));
+
+		downstream.subscription.request(1);
+
+		assertThat(downstream.results.size(), is(1));
+		assertThat(downstream.results.get(0).getId(), is("id-1"));
+		assertThat(upstream.requested, is(3L));
+	}
+
+	@Test
+	public void shouldCompleteOnceEmailsInFlightAreDelivered() {
+		sink.subscribe(downstream);
+		sink.onSubscribe(upstream);
+		downstream.subscription.request(Long.MAX_VALUE);
+		GmailMessage message = new GmailMessage().to("one@email.com");
+		sink.onNext(message);
+
+		sink.onComplete();
+		assertThat(downstream.completed, is(false));
+		completions.get(0).accept(GmailSendResult.failure(message, new GmailException("failed")));
+
+		assertThat(downstream.completed, is(true));
+		assertThat(downstream.results.size(), is(1));
+		assertThat(sink.getResult().getFailed(), is(1L));
+	}
+
+	@Test
+	public void shouldPassPublisherErrorOnAfterEmailsInFlightAreDelivered() {
+		sink.subscribe(downstream);
+		sink.onSubscribe(upstream);
+		downstream.subscription.request(1);
+		GmailMessage message = new GmailMessage().to("one@email.com");
+		sink.onNext(message);
+
+		sink.onError(new IllegalStateException("stream failed"));
+		completions.get(0).accept(GmailSendResult.success(message, "id-1"));
+
+		assertThat(downstream.results.size(), is(1));
+		assertThat(downstream.error.getMessage(), is("stream failed"));
+	}
+
+	@Test
+	public void shouldKeepSendingWithoutResultSubscriber() {
+		sink.onSubscribe(upstream);
+		GmailMessage message = new GmailMessage().to("one@email.com");
+		sink.onNext(message);
+		completions.get(0).accept(GmailSendResult.success(message, "id-1"));
+
+		assertThat(upstream.requested, is(3L));
+		assertThat(sink.getResult().getSent(), is(1L));
+	}
+
+	@Test
+	public void shouldCancelSecondPublisherSubscription() {
+		RecordingSubscription second = new RecordingSubscription();
+		sink.onSubscribe(upstream);
+		sink.onSubscribe(second);
+
+		assertThat(second.cancelled, is(true));
+		assertThat(second.requested, is(0L));
+	}
+
+	@Test
+	public void shouldRejectSecondResultSubscriber() {
+		RecordingSubscriber second = new RecordingSubscriber();
+		sink.subscribe(downstream);
+		sink.subscribe(second);
+
+		assertThat(second.error.getMessage(), is("A Gmail sink publishes its results to a single subscriber"));
+		assertThat(downstream.error, is(nullValue()));
+	}
+
+	@Test
+	public void shouldSignalErrorWhenResultsAreRequestedInNonPositiveAmount() {
+		sink.subscribe(downstream);
+		downstream.subscription.request(0);
+
+		assertThat(downstream.error, is(instanceOf(IllegalArgumentException.class)));
+	}
+
+	@Test(expected = GmailException.class)
+	public void shouldRejectMaxInFlightLessThanOne() {
+		new GmailSink(mailer, 0);
+	}
+
+	private static class RecordingSubscription implements GmailFlow.Subscription {
+		private long requested;
+		private boolean cancelled;
+
+		@Override
+		public void request(long n) {
+			requested += n;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private static class RecordingSubscriber implements GmailFlow.Subscriber<GmailSendResult> {
+		private GmailFlow.Subscription subscription;
+		private final List<GmailSendResult> results = new ArrayList<>();
+		private Throwable error;
+		private boolean completed;
+
+		@Override
+		public void onSubscribe(GmailFlow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(GmailSendResult item) {
+			results.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
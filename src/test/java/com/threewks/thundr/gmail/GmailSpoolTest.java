@@ -0,0 +1,194 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.threewks.thundr.gmail.GmailJournalSpoolStoreTest.ids;
+import static com.threewks.thundr.gmail.GmailJournalSpoolStoreTest.message;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GmailSpoolTest {
+
+	@Mock private GmailMailer mailer;
+
+	private MemoryDataStoreFactory dataStoreFactory;
+	private GmailSpoolStore store;
+	private GmailSpool spool;
+
+	@Before
+	public void before() throws IOException {
+		dataStoreFactory = new MemoryDataStoreFactory();
+		store = new GmailDataStoreSpoolStore(dataStoreFactory);
+		spool = new GmailSpool(store, 1, new GmailRetryPolicy().setMaxAttempts(3).setInitialDelayMillis(10).setJitter(0));
+	}
+
+	@After
+	public void after() {
+		spool.shutdown(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void shouldSendEmailAndRemoveItFromStore() throws Exception {
+		spool.start(mailer);
+
+		spool.enqueue(message("1"));
+
+		verify(mailer, timeout(5000)).send(any(GmailMessage.class));
+		awaitEmpty();
+		assertThat(store.load(), is(empty()));
+	}
+
+	@Test
+	public void shouldSendEmailsLeftInStoreWhenStarted() throws Exception {
+		store.add(message("1"));
+		store.add(message("2"));
+
+		spool.start(mailer);
+
+		verify(mailer, timeout(5000).times(2)).send(any(GmailMessage.class));
+		awaitEmpty();
+		assertThat(store.load(), is(empty()));
+	}
+
+	@Test
+	public void shouldKeepEmailInStoreUntilStarted() throws Exception {
+		spool.enqueue(message("1"));
+
+		assertThat(ids(store.load()), is(Collections.singletonList("1")));
+		verify(mailer, never()).send(any(GmailMessage.class));
+	}
+
+	@Test
+	public void shouldTryFailedEmailAgainLater() throws Exception {
+		when(mailer.send(any(GmailMessage.class))).thenThrow(new GmailException(new IOException("Connection reset"))).thenReturn("sent-id");
+		spool.start(mailer);
+
+		spool.enqueue(message("1"));
+
+		verify(mailer, timeout(5000).times(2)).send(any(GmailMessage.class));
+		awaitEmpty();
+		assertThat(store.load(), is(empty()));
+	}
+
+	@Test
+	public void shouldGiveUpOnEmailGmailRejects() throws Exception {
+		HttpResponseException rejected = new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders()).build();
+		when(mailer.send(any(GmailMessage.class))).thenThrow(new GmailException(rejected));
+		spool.start(mailer);
+
+		spool.enqueue(message("1"));
+
+		awaitEmpty();
+		verify(mailer, times(1)).send(any(GmailMessage.class));
+		assertThat(store.load(), is(empty()));
+	}
+
+	@Test
+	public void shouldLeaveUnsentEmailsInStoreOnShutdown() throws Exception {
+		when(mailer.send(any(GmailMessage.class))).thenThrow(new GmailException(new IOException("Connection reset")));
+		spool = new GmailSpool(store, 1, new GmailRetryPolicy().setInitialDelayMillis(60000).setJitter(0));
+		spool.start(mailer);
+		spool.enqueue(message("1"));
+		verify(mailer, timeout(5000)).send(any(GmailMessage.class));
+
+		assertThat(spool.shutdown(5, TimeUnit.SECONDS), is(true));
+
+		assertThat(ids(store.load()), is(Collections.singletonList("1")));
+	}
+
+	@Test
+	public void shouldHoldScheduledEmailUntilItsSendTime() throws Exception {
+		spool = new GmailSpool(store, 1, new GmailRetryPolicy(), 10);
+		spool.start(mailer);
+		long sendAt = System.currentTimeMillis() + 200;
+
+		spool.enqueue(message("1").sendAt(sendAt));
+		assertThat(spool.scheduled(), is(1));
+		Thread.sleep(100);
+		verify(mailer, never()).send(any(GmailMessage.class));
+
+		verify(mailer, timeout(5000)).send(any(GmailMessage.class));
+		assertThat(System.currentTimeMillis(), is(greaterThanOrEqualTo(sendAt)));
+		awaitEmpty();
+		assertThat(spool.scheduled(), is(0));
+		assertThat(store.load(), is(empty()));
+	}
+
+	@Test
+	public void shouldKeepScheduledEmailsInStoreOverRestart() throws Exception {
+		spool = new GmailSpool(store, 1, new GmailRetryPolicy(), 10);
+		spool.start(mailer);
+		spool.enqueue(message("1").sendAt(System.currentTimeMillis() + 60000));
+		spool.enqueue(message("2").sendAt(System.currentTimeMillis() + 100));
+		spool.shutdown(5, TimeUnit.SECONDS);
+		assertThat(ids(store.load()), containsInAnyOrder("1", "2"));
+
+		store = new GmailDataStoreSpoolStore(dataStoreFactory);
+		spool = new GmailSpool(store, 1, new GmailRetryPolicy(), 10);
+		spool.start(mailer);
+
+		verify(mailer, timeout(5000)).send(any(GmailMessage.class));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.load().size() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(spool.scheduled(), is(1));
+		assertThat(ids(store.load()), is(Collections.singletonList("1")));
+	}
+
+	@Test
+	public void shouldNotSendEmailsOfAnotherRunningInstanceSharingTheStore() throws Exception {
+		spool.start(mailer);
+		spool.enqueue(message("1").sendAt(System.currentTimeMillis() + 60000));
+
+		GmailSpool other = new GmailSpool(new GmailDataStoreSpoolStore(dataStoreFactory), 1, new GmailRetryPolicy());
+		try {
+			other.start(mailer);
+
+			assertThat(other.size(), is(0));
+			assertThat(spool.scheduled(), is(1));
+		} finally {
+			other.shutdown(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private void awaitEmpty() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (spool.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(spool.size(), is(0));
+	}
+}
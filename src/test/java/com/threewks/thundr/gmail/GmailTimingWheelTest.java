@@ -0,0 +1,91 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GmailTimingWheelTest {
+
+	@Test
+	public void shouldReleaseItemOnceItsTickHasPassed() {
+		GmailTimingWheel<String> wheel = new GmailTimingWheel<>(10, 8, 1000);
+		wheel.add("a", 1025);
+
+		assertThat(wheel.advance(1025), is(empty()));
+		assertThat(wheel.advance(1029), is(empty()));
+		assertThat(wheel.advance(1030), is(Collections.singletonList("a")));
+		assertThat(wheel.size(), is(0));
+	}
+
+	@Test
+	public void shouldReleaseItemAlreadyDueOnNextAdvance() {
+		GmailTimingWheel<String> wheel = new GmailTimingWheel<>(10, 8, 1000);
+		wheel.add("a", 500);
+
+		assertThat(wheel.size(), is(1));
+		assertThat(wheel.advance(1000), is(Collections.singletonList("a")));
+	}
+
+	@Test
+	public void shouldCascadeItemsDueBeyondFirstLevel() {
+		GmailTimingWheel<String> wheel = new GmailTimingWheel<>(10, 4, 0);
+		wheel.add("level-1", 75);
+		wheel.add("level-2", 500);
+
+		assertThat(wheel.advance(70), is(empty()));
+		assertThat(wheel.advance(80), is(Collections.singletonList("level-1")));
+		assertThat(wheel.advance(499), is(empty()));
+		assertThat(wheel.advance(510), is(Collections.singletonList("level-2")));
+	}
+
+	@Test
+	public void shouldNeverReleaseEarlyOrMoreThanATickLate() {
+		GmailTimingWheel<Long> wheel = new GmailTimingWheel<>(10, 4, 3);
+		Random random = new Random(42);
+		List<Long> dueTimes = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			long dueAt = random.nextInt(50000);
+			dueTimes.add(dueAt);
+			wheel.add(dueAt, dueAt);
+		}
+
+		int released = 0;
+		for (long now = 0; now <= 50010; now += 7) {
+			for (Long dueAt : wheel.advance(now)) {
+				assertThat(dueAt, is(lessThanOrEqualTo(now)));
+				assertThat(now - dueAt, is(lessThan(10L + 7L)));
+				released++;
+			}
+		}
+		assertThat(released, is(dueTimes.size()));
+		assertThat(wheel.size(), is(0));
+	}
+
+	@Test(expected = GmailException.class)
+	public void shouldRejectWheelWithoutTicks() {
+		new GmailTimingWheel<String>(0, 8, 0);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://3wks.github.io/thundr/
+ * Copyright (C) 2015 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.gmail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GmailTokenManagerTest {
+
+	@Mock private GoogleAuthorizationCodeFlow flow;
+
+	@Test
+	public void shouldRefreshCredentialAboutToExpireWhenLoaded() throws IOException {
+		CountingCredential credential = new CountingCredential(60);
+		when(flow.loadCredential("inbox")).thenReturn(credential);
+
+		GmailTokenManager tokenManager = new GmailTokenManager(flow, 300, null);
+
+		assertThat(tokenManager.load("inbox"), is((Credential) credential));
+		assertThat(credential.refreshes.get(), is(1));
+		assertThat(credential.getAccessToken(), is("token-1"));
+	}
+
+	@Test
+	public void shouldNotRefreshCredentialOutsideRefreshAheadWindow() throws IOException {
+		CountingCredential credential = new CountingCredential(3600);
+		when(flow.loadCredential("inbox")).thenReturn(credential);
+
+		GmailTokenManager tokenManager = new GmailTokenManager(flow, 300, null);
+		tokenManager.load("inbox");
+		tokenManager.ensureFresh("inbox", credential);
+
+		assertThat(credential.refreshes.get(), is(0));
+	}
+
+	@Test
+	public void shouldReturnNullWhenNoCredentialIsStored() throws IOException {
+		GmailTokenManager tokenManager = new GmailTokenManager(flow);
+
+		assertThat(tokenManager.load("missing"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldShareInFlightRefreshBetweenConcurrentCallers() throws Exception {
+		final CountingCredential credential = new CountingCredential(3600);
+		credential.block = new CountDownLatch(1);
+		final GmailTokenManager tokenManager = new GmailTokenManager(flow, 300, null);
+
+		int callers = 5;
+		final CountDownLatch started = new CountDownLatch(callers);
+		ExecutorService executor = Executors.newFixedThreadPool(callers);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int i = 0; i < callers; i++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					started.countDown();
+					return tokenManager.refresh("inbox", credential);
+				}
+			}));
+		}
+		started.await(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		credential.block.countDown();
+
+		for (Future<Boolean> result : results) {
+			assertThat(result.get(5, TimeUnit.SECONDS), is(true));
+		}
+		executor.shutdown();
+		assertThat(credential.refreshes.get(), is(1));
+	}
+
+	@Test
+	public void shouldRefreshInBackgroundBeforeExpiry() throws Exception {
+		CountingCredential credential = new CountingCredential(3600);
+		when(flow.loadCredential("inbox")).thenReturn(credential);
+
+		GmailTokenManager tokenManager = new GmailTokenManager(flow, 3600, GmailTokenManager.newScheduler());
+		tokenManager.load("inbox");
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (credential.refreshes.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		tokenManager.shutdown();
+		assertThat(credential.refreshes.get(), is(greaterThanOrEqualTo(1)));
+	}
+
+	@Test
+	public void shouldStopRefreshingCredentialUnusedSinceLastRefresh() throws IOException {
+		CountingCredential credential = new CountingCredential(3600);
+		when(flow.loadCredential("inbox")).thenReturn(credential);
+		ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+		ArgumentCaptor<Runnable> refreshes = ArgumentCaptor.forClass(Runnable.class);
+		GmailTokenManager tokenManager = new GmailTokenManager(flow, 300, scheduler);
+
+		tokenManager.load("inbox");
+		verify(scheduler).schedule(refreshes.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		refreshes.getValue().run();
+		verify(scheduler, times(2)).schedule(refreshes.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		refreshes.getValue().run();
+
+		assertThat(credential.refreshes.get(), is(1));
+		verify(scheduler, times(2)).schedule(org.mockito.Matchers.any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void shouldKeepRefreshingCredentialUsedSinceLastRefresh() throws IOException {
+		CountingCredential credential = new CountingCredential(3600);
+		when(flow.loadCredential("inbox")).thenReturn(credential);
+		ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+		ArgumentCaptor<Runnable> refreshes = ArgumentCaptor.forClass(Runnable.class);
+		GmailTokenManager tokenManager = new GmailTokenManager(flow, 300, scheduler);
+
+		tokenManager.load("inbox");
+		verify(scheduler).schedule(refreshes.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		refreshes.getValue().run();
+		tokenManager.ensureFresh("inbox", credential);
+		verify(scheduler, times(2)).schedule(refreshes.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		refreshes.getValue().run();
+
+		assertThat(credential.refreshes.get(), is(2));
+		verify(scheduler, times(3)).schedule(org.mockito.Matchers.any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+	}
+
+	private static class CountingCredential extends Credential {
+		private final AtomicInteger refreshes = new AtomicInteger();
+		private CountDownLatch block;
+
+		private CountingCredential(long expiresInSeconds) {
+			super(BearerToken.authorizationHeaderAccessMethod());
+			setAccessToken("token-0");
+			setExpirationTimeMilliseconds(System.currentTimeMillis() + expiresInSeconds * 1000);
+		}
+
+		@Override
+		protected TokenResponse executeRefreshToken() throws IOException {
+			if (block != null) {
+				try {
+					block.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			int count = refreshes.incrementAndGet();
+			return new TokenResponse().setAccessToken("token-" + count).setExpiresInSeconds(3600L);
+		}
+	}
+}